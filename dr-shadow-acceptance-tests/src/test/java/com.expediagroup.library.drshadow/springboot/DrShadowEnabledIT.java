@@ -33,8 +33,9 @@ import javax.annotation.PostConstruct;
 
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.doThrow;
-import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
@@ -83,12 +84,26 @@ public class DrShadowEnabledIT {
             .andExpect(status().is2xxSuccessful());
 
         //Assert
-        verify(shadowTrafficAdapter, times(1)).invokeShadowTraffic(any(), any());
+        verify(shadowTrafficAdapter, timeout(1000).times(1)).invokeShadowTraffic(any(), any());
 
         //  Verify that the shadowTrafficAdapter never even got wired.
         assertTrue("shadowTrafficAdapter should have been wired.", ((GenericWebApplicationContext) wac).isBeanNameInUse("shadowTrafficAdapter"));
     }
 
+    @Test
+    public void testAnnotatedHandlerUsesAnnotationPolicy() throws Exception {
+
+        //Arrange
+        requestBuilder = get("/annotated");
+
+        //Act
+        mockMvc.perform(requestBuilder).andDo(print())
+            .andExpect(status().is2xxSuccessful());
+
+        //Assert
+        verify(shadowTrafficAdapter, timeout(1000).times(1)).invokeShadowTraffic(any(), argThat(policy -> policy.getPercentage() == 100));
+    }
+
     @Test
     public void testShadowTrafficFailureDoesNotImpactOriginalRequest() throws Exception {
 
@@ -33,4 +33,12 @@ public class TestController {
         // We don't care about the response
         return "SUCCESS";
     }
-}
\ No newline at end of file
+
+    @ShadowTraffic(percentage = 100)
+    @RequestMapping(value = {"/annotated"}, method = RequestMethod.GET)
+    @ResponseBody
+    public String annotated() {
+        // We don't care about the response
+        return "SUCCESS";
+    }
+}
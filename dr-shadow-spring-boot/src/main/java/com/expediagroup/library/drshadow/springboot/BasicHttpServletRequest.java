@@ -16,65 +16,146 @@
 package com.expediagroup.library.drshadow.springboot;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 
-import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 
+import io.netty.buffer.ByteBufAllocator;
 import org.apache.commons.io.IOUtils;
 
+import com.expediagroup.library.drshadow.springboot.ShadowBody.BufferedShadowBody;
+
 public class BasicHttpServletRequest extends DrShadowHttpServletRequest {
     
-    protected byte[] body;
-    private ByteArrayInputStream copy;
+    protected BufferedShadowBody body;
     private ServletInputStream sis;
     private BufferedReader reader;
+    private boolean oversized;
+    private boolean captureFailed;
     
     public BasicHttpServletRequest(HttpServletRequest request) throws IOException {
+        this(request, CaptureBuffer.MAX_ARRAY_LENGTH, CaptureBuffer.MAX_ARRAY_LENGTH);
+    }
+    
+    /**
+     * The whole body is read up front and replayed to the application, so a body larger than the maximum is still captured, it is only not
+     * shadowed.
+     *
+     * @param request Original http servlet request
+     * @param maxInMemoryBytes size above which the body spills to a memory mapped temporary file
+     * @param maxBytes size above which the request is not shadowed
+     * @throws IOException IOException
+     */
+    public BasicHttpServletRequest(HttpServletRequest request, int maxInMemoryBytes, int maxBytes) throws IOException {
+        this(request, maxInMemoryBytes, maxBytes, CaptureBuffer.UNPOOLED);
+    }
+    
+    /**
+     *
+     * @param request Original http servlet request
+     * @param maxInMemoryBytes size above which the body spills to a memory mapped temporary file
+     * @param maxBytes size above which the request is not shadowed
+     * @param allocator allocator of the in memory body
+     * @throws IOException IOException
+     */
+    public BasicHttpServletRequest(HttpServletRequest request, int maxInMemoryBytes, int maxBytes, ByteBufAllocator allocator) throws IOException {
+        this(request, maxInMemoryBytes, maxBytes, allocator, null);
+    }
+    
+    /**
+     * The application is served from the captured body, so a body whose temporary file fails is kept on the heap and only not shadowed.
+     *
+     * @param request Original http servlet request
+     * @param maxInMemoryBytes size above which the body spills to a memory mapped temporary file
+     * @param maxBytes size above which the request is not shadowed
+     * @param allocator allocator of the in memory body
+     * @param spillDirectory directory of the temporary file, null for the default temporary directory
+     * @throws IOException IOException
+     */
+    BasicHttpServletRequest(HttpServletRequest request, int maxInMemoryBytes, int maxBytes, ByteBufAllocator allocator, Path spillDirectory)
+            throws IOException {
         super(request);
         // can't access the input stream and access the request parameters
         // at the same time
         final InputStream input = request.getInputStream();
         if (input != null) {
-            final InputStream bis = IOUtils.toBufferedInputStream(input);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            IOUtils.copy(bis, baos);
-            body = baos.toByteArray();
-            copy = new ByteArrayInputStream(body);
+            CaptureBuffer capture = new CaptureBuffer(request.getContentLengthLong(), maxInMemoryBytes, CaptureBuffer.MAX_ARRAY_LENGTH, allocator,
+                    true, spillDirectory);
+            try {
+                capture.readFrom(input);
+            } catch (IOException e) {
+                capture.discard();
+                throw e;
+            }
+            body = capture.toShadowBody();
+            if (body == null) {
+                throw new IOException("Unable to capture the request body of " + capture.size() + " bytes");
+            }
+            oversized = capture.size() > maxBytes;
+            captureFailed = capture.isFailed();
         }
     }
     
-    String getBody() {
-        String sBody = null;
-        sBody = (body != null) ? new String(body) : null;
-        return sBody;
+    @Override
+    ShadowBody getBody() {
+        return body;
+    }
+    
+    @Override
+    boolean finishCapture() {
+        return !oversized && !captureFailed;
+    }
+    
+    @Override
+    boolean isOversized() {
+        return oversized;
+    }
+    
+    @Override
+    boolean isCaptureFailed() {
+        return captureFailed;
+    }
+    
+    @Override
+    void freeBody() {
+        if (body != null) {
+            body.free();
+        }
     }
     
     @Override
     public ServletInputStream getInputStream() throws IOException {
-        if (copy != null) {
-            copy.reset();
-            sis = new DrShadowTrafficServletInputStream(copy);
+        if (body != null) {
+            sis = new ByteBufferServletInputStream(body.asByteBuffer());
         }
         return sis;
     }
     
     @Override
     public BufferedReader getReader() throws IOException {
-        if (copy != null && reader == null) {
-            reader = IOUtils.toBufferedReader(new InputStreamReader(copy));
+        if (body != null && reader == null) {
+            reader = IOUtils.toBufferedReader(new InputStreamReader(new ByteBufferServletInputStream(body.asByteBuffer()), getBodyCharset()));
         }
         return reader;
     }
     
-    protected static class DrShadowTrafficServletInputStream extends ServletInputStream {
+    private Charset getBodyCharset() {
+        String characterEncoding = getCharacterEncoding();
+        // ISO-8859-1 is the servlet default when the request does not declare its encoding
+        return characterEncoding != null ? Charset.forName(characterEncoding) : StandardCharsets.ISO_8859_1;
+    }
+    
+    protected static class DrShadowTrafficServletInputStream extends ReplayServletInputStream {
         
         private final InputStream in;
+        private boolean finished;
         
         public DrShadowTrafficServletInputStream(final InputStream in) {
             this.in = in;
@@ -82,26 +163,94 @@ public class BasicHttpServletRequest extends DrShadowHttpServletRequest {
         
         @Override
         public int read() throws IOException {
-            return in.read();
+            return endOfBody(in.read());
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return endOfBody(in.read(b, off, len));
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            return in.skip(n);
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return in.available();
         }
         
         @Override
         public boolean isFinished() {
-            try {
-                return in.available() == 0;
-            } catch (IOException e) {
-                return true;
+            return finished;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+        
+        private int endOfBody(int read) throws IOException {
+            if (read == -1 && !finished) {
+                finished = true;
+                notifyAllDataRead();
             }
+            return read;
+        }
+    }
+    
+    /**
+     * Replays the captured body, read straight from the heap or from the memory mapped file.
+     */
+    static final class ByteBufferServletInputStream extends ReplayServletInputStream {
+        
+        private final ByteBuffer buffer;
+        
+        ByteBufferServletInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int b = buffer.get() & 0xff;
+            notifyAllDataRead();
+            return b;
         }
         
         @Override
-        public boolean isReady() {
-            return true;
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(len, buffer.remaining());
+            buffer.get(b, off, read);
+            notifyAllDataRead();
+            return read;
         }
         
         @Override
-        public void setReadListener(ReadListener readListener) {
-            throw new UnsupportedOperationException();
+        public long skip(long n) throws IOException {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            notifyAllDataRead();
+            return skipped;
+        }
+        
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+        
+        @Override
+        public boolean isFinished() {
+            return !buffer.hasRemaining();
         }
     }
     
@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.expediagroup.library.drshadow.springboot.ShadowBody.BufferedShadowBody;
+import com.expediagroup.library.drshadow.springboot.ShadowBody.ByteBufShadowBody;
+import com.expediagroup.library.drshadow.springboot.ShadowBody.MappedShadowBody;
+
+/**
+ * Buffer the request body is captured into. It is held in a buffer of the given allocator, pooled or not, sized up front from the declared
+ * content length so that a body of the declared length is copied exactly once. Past the in memory threshold it spills to a temporary file, and past the maximum size the capture
+ * is given up and the buffer only counts the bytes. If the temporary file cannot be written the body is marked failed and no longer
+ * shadowed: the capture is given up as well, or, for a buffer the application is served from, what was captured is moved back to the heap
+ * and the rest kept there. Writing to the buffer never fails so that it can sit behind the stream the application reads.
+ *
+ * Not thread safe, it is filled by the request thread before the body is handed over.
+ */
+final class CaptureBuffer extends OutputStream {
+    
+    static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+    /** Plain heap buffers left to the garbage collector, leak detection is pointless for them */
+    static final ByteBufAllocator UNPOOLED = new UnpooledByteBufAllocator(false, true);
+    private static final Logger LOGGER = LoggerFactory.getLogger(CaptureBuffer.class);
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int SPILL_BUFFER_SIZE = 8192;
+    
+    private final int maxInMemoryBytes;
+    private final int maxBytes;
+    private final boolean heapFallback;
+    private final Path spillDirectory;
+    private ByteBuf buffer;
+    private long size;
+    private Path spillFile;
+    private FileChannel spillChannel;
+    private ByteBuffer spillBuffer;
+    private long spilled;
+    private boolean overflowed;
+    private boolean failed;
+    
+    /**
+     *
+     * @param expectedLength declared content length, negative if unknown, a body declared larger than the maximum is not captured at all
+     * @param maxInMemoryBytes size above which the body spills to a temporary file
+     * @param maxBytes size above which the body is not captured
+     * @param allocator allocator of the in memory buffer, its buffer must be released by {@link #toShadowBody()} or {@link #discard()}
+     */
+    CaptureBuffer(long expectedLength, int maxInMemoryBytes, int maxBytes, ByteBufAllocator allocator) {
+        this(expectedLength, maxInMemoryBytes, maxBytes, allocator, false, null);
+    }
+    
+    /**
+     *
+     * @param expectedLength declared content length, negative if unknown, a body declared larger than the maximum is not captured at all
+     * @param maxInMemoryBytes size above which the body spills to a temporary file
+     * @param maxBytes size above which the body is not captured
+     * @param allocator allocator of the in memory buffer, its buffer must be released by {@link #toShadowBody()} or {@link #discard()}
+     * @param heapFallback true to keep the body on the heap if the temporary file fails instead of giving the capture up
+     * @param spillDirectory directory of the temporary file, null for the default temporary directory
+     */
+    CaptureBuffer(long expectedLength, int maxInMemoryBytes, int maxBytes, ByteBufAllocator allocator, boolean heapFallback,
+            Path spillDirectory) {
+        this.heapFallback = heapFallback;
+        this.spillDirectory = spillDirectory;
+        this.maxInMemoryBytes = Math.max(0, Math.min(maxInMemoryBytes, MAX_ARRAY_LENGTH));
+        this.maxBytes = Math.min(maxBytes, MAX_ARRAY_LENGTH);
+        if (expectedLength > this.maxBytes) {
+            this.overflowed = true;
+            return;
+        }
+        int capacity = expectedLength >= 0 ? (int) expectedLength : DEFAULT_CAPACITY;
+        this.buffer = allocator.heapBuffer(Math.min(capacity, this.maxInMemoryBytes), this.maxInMemoryBytes);
+    }
+    
+    /**
+     * Read the stream to its end, straight into the heap buffer as long as it fits. Reading stops early once nothing more can be captured,
+     * past the maximum size or when the temporary file failed without falling back to the heap.
+     */
+    void readFrom(InputStream in) throws IOException {
+        byte[] chunk = null;
+        while (!overflowed && (!failed || buffer != null)) {
+            if (spillFile == null && !overflowed && !failed && buffer.isWritable()) {
+                int read = buffer.writeBytes(in, buffer.writableBytes());
+                if (read == -1) {
+                    return;
+                }
+                size += read;
+                if (size > maxBytes) {
+                    overflow();
+                }
+                continue;
+            }
+            if (chunk == null) {
+                chunk = new byte[SPILL_BUFFER_SIZE];
+            }
+            int read = in.read(chunk, 0, chunk.length);
+            if (read == -1) {
+                return;
+            }
+            write(chunk, 0, read);
+        }
+    }
+    
+    @Override
+    public void write(int b) {
+        if (reserve(1)) {
+            if (spillFile != null) {
+                try {
+                    if (!spillBuffer.hasRemaining()) {
+                        flushSpillBuffer();
+                    }
+                    spillBuffer.put((byte) b);
+                    return;
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            if (buffer != null) {
+                buffer.writeByte(b);
+            }
+        }
+    }
+    
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        if (reserve(length)) {
+            if (spillFile != null) {
+                try {
+                    writeSpill(bytes, offset, length);
+                    return;
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+            if (buffer != null) {
+                buffer.writeBytes(bytes, offset, length);
+            }
+        }
+    }
+    
+    /**
+     * @return size of the body written so far, including what was not captured
+     */
+    long size() {
+        return size;
+    }
+    
+    /**
+     * @return true if the body grew past the maximum size and was not captured
+     */
+    boolean isOverflowed() {
+        return overflowed;
+    }
+    
+    /**
+     * @return true if the temporary file failed, the body must then not be shadowed even if it was kept on the heap
+     */
+    boolean isFailed() {
+        return failed;
+    }
+    
+    /**
+     * Hand the captured body over, the temporary file, if any, is then owned by the body.
+     *
+     * @return the captured body, null if it grew past the maximum size or its temporary file failed without falling back to the heap
+     */
+    BufferedShadowBody toShadowBody() {
+        if (spillFile != null) {
+            try {
+                flushSpillBuffer();
+                MappedShadowBody body = new MappedShadowBody(spillFile, spillChannel.map(FileChannel.MapMode.READ_ONLY, 0, spilled));
+                spillChannel.close();
+                spillFile = null;
+                return body;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        if (buffer == null) {
+            return null;
+        }
+        BufferedShadowBody body = new ByteBufShadowBody(buffer);
+        buffer = null;
+        return body;
+    }
+
+    
+    /**
+     * Drop the captured body and its temporary file, if any.
+     */
+    void discard() {
+        releaseBuffer();
+        spillBuffer = null;
+        if (spillFile != null) {
+            try {
+                if (spillChannel != null) {
+                    spillChannel.close();
+                }
+            } catch (IOException e) {
+                // nothing else to do, the file is deleted anyway
+            }
+            MappedShadowBody.delete(spillFile);
+            spillFile = null;
+        }
+    }
+    
+    /**
+     * Account for the next bytes and make room for them, spilling to a temporary file past the in memory threshold.
+     *
+     * @return false if the bytes must not be captured
+     */
+    private boolean reserve(int length) {
+        size += length;
+        if (overflowed || (failed && buffer == null)) {
+            return false;
+        }
+        if (size > maxBytes) {
+            overflow();
+            return false;
+        }
+        if (spillFile == null && !failed && size > maxInMemoryBytes) {
+            return spill();
+        }
+        return true;
+    }
+    
+    private boolean spill() {
+        try {
+            spillFile = spillDirectory != null ? Files.createTempFile(spillDirectory, "dr-shadow-", ".body")
+                    : Files.createTempFile("dr-shadow-", ".body");
+            spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            spillBuffer = ByteBuffer.allocate(SPILL_BUFFER_SIZE);
+            writeSpillFile(buffer.nioBuffer());
+        } catch (IOException e) {
+            fail(e);
+            return buffer != null;
+        }
+        releaseBuffer();
+        return true;
+    }
+    
+    private void releaseBuffer() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+    
+    private void writeSpill(byte[] bytes, int offset, int length) throws IOException {
+        if (length > spillBuffer.remaining()) {
+            flushSpillBuffer();
+            if (length > spillBuffer.capacity()) {
+                writeSpillFile(ByteBuffer.wrap(bytes, offset, length));
+                return;
+            }
+        }
+        spillBuffer.put(bytes, offset, length);
+    }
+    
+    /**
+     * The pending bytes are only dropped once written, so that they are still around if the temporary file fails.
+     */
+    private void flushSpillBuffer() throws IOException {
+        ByteBuffer pending = spillBuffer.duplicate();
+        pending.flip();
+        writeSpillFile(pending);
+        spillBuffer.clear();
+    }
+    
+    /**
+     * Append the bytes to the temporary file, the file only counts as holding them once they are all written.
+     */
+    private void writeSpillFile(ByteBuffer source) throws IOException {
+        long position = spilled;
+        while (source.hasRemaining()) {
+            position += spillChannel.write(source, position);
+        }
+        spilled = position;
+    }
+    
+    private void overflow() {
+        overflowed = true;
+        discard();
+    }
+    
+    private void fail(IOException e) {
+        LOGGER.warn("Unable to spill the shadow traffic request body to a temporary file, the request will not be shadowed", e);
+        failed = true;
+        if (!heapFallback || !moveToHeap()) {
+            discard();
+        }
+    }
+    
+    /**
+     * Move what was captured so far back to the heap, the part already in the temporary file first, then the part still in memory.
+     *
+     * @return false if the temporary file could not even be read back
+     */
+    private boolean moveToHeap() {
+        ByteBuf heap = UNPOOLED.heapBuffer((int) Math.min(size, MAX_ARRAY_LENGTH), MAX_ARRAY_LENGTH);
+        try {
+            while (heap.writerIndex() < spilled) {
+                if (heap.writeBytes(spillChannel, heap.writerIndex(), (int) (spilled - heap.writerIndex())) == -1) {
+                    throw new IOException("Temporary file is shorter than the " + spilled + " bytes written to it");
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read the shadow traffic request body back from its temporary file", e);
+            heap.release();
+            return false;
+        }
+        if (buffer != null) {
+            heap.writeBytes(buffer);
+        }
+        if (spillBuffer != null) {
+            spillBuffer.flip();
+            heap.writeBytes(spillBuffer);
+        }
+        discard();
+        buffer = heap;
+        return true;
+    }
+}
@@ -0,0 +1,448 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.util.CollectionUtils;
+
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficAnnotationResolver.AnnotatedRoute;
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.BodyCaptureMode;
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.HeaderPattern;
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.InclusionPattern;
+
+/**
+ * Immutable snapshot of the {@link ShadowTrafficConfig} with every pattern compiled and validated up front.
+ *
+ * The filter only ever reads this snapshot so no regex compilation or string normalisation happens per request.
+ */
+public final class CompiledShadowTrafficConfig {
+
+    static final String ALL_METHODS = "*";
+
+    private final boolean enabled;
+    private final ShadowTrafficPolicy defaultPolicy;
+    private final List<CompiledInclusionPattern> inclusionPatterns;
+    private final RouteMatcher routeMatcher;
+    private final Map<String, ShadowHost> shadowHosts;
+    private final RouteDecisionCache routeDecisionCache;
+    private final StickySampler stickySampler;
+    private final CoverageSampler coverageSampler;
+    private final RequestDeduplicator requestDeduplicator;
+    private final BodyCaptureMode bodyCaptureMode;
+    private final int bodyMaxInMemoryBytes;
+    private final int bodyMaxBytes;
+    private final ByteBufAllocator bodyAllocator;
+    private final int bodyStreamWindowBytes;
+    private final int bodyStreamConnectBytes;
+    private final long bodyMaxInFlightBytes;
+
+    private CompiledShadowTrafficConfig(boolean enabled, ShadowTrafficPolicy defaultPolicy, List<CompiledInclusionPattern> inclusionPatterns,
+            RouteDecisionCache routeDecisionCache, StickySampler stickySampler, CoverageSampler coverageSampler,
+            RequestDeduplicator requestDeduplicator, BodyCaptureMode bodyCaptureMode, int bodyMaxInMemoryBytes, int bodyMaxBytes,
+            boolean bodyPooledBuffers, int bodyStreamWindowBytes, int bodyStreamConnectBytes, long bodyMaxInFlightBytes, boolean ssl) {
+        this.enabled = enabled;
+        this.defaultPolicy = defaultPolicy;
+        this.inclusionPatterns = Collections.unmodifiableList(inclusionPatterns);
+        this.routeMatcher = new RouteMatcher(this.inclusionPatterns);
+        this.shadowHosts = resolveHosts(getHosts(), ssl);
+        this.routeDecisionCache = routeDecisionCache;
+        this.stickySampler = stickySampler;
+        this.coverageSampler = coverageSampler;
+        this.requestDeduplicator = requestDeduplicator;
+        this.bodyCaptureMode = bodyCaptureMode != null ? bodyCaptureMode : BodyCaptureMode.EAGER;
+        this.bodyMaxInMemoryBytes = bodyMaxInMemoryBytes;
+        this.bodyMaxBytes = bodyMaxBytes;
+        this.bodyAllocator = bodyPooledBuffers ? PooledByteBufAllocator.DEFAULT : CaptureBuffer.UNPOOLED;
+        this.bodyStreamWindowBytes = bodyStreamWindowBytes;
+        this.bodyStreamConnectBytes = bodyStreamConnectBytes;
+        this.bodyMaxInFlightBytes = bodyMaxInFlightBytes;
+    }
+
+    /**
+     * Compile the given configuration into an immutable snapshot.
+     *
+     * @param shadowTrafficConfig Shadow Traffic Configuration, may be null
+     * @return compiled snapshot, disabled if the configuration is null
+     * @throws IllegalArgumentException if an inclusion or header pattern is incomplete or not a valid regex, or a host is not a valid URL
+     */
+    public static CompiledShadowTrafficConfig compile(ShadowTrafficConfig shadowTrafficConfig) {
+        return compile(shadowTrafficConfig, Collections.emptyList());
+    }
+
+    /**
+     * Compile the given configuration together with the routes resolved from {@link ShadowTraffic} annotated handler methods. The annotated
+     * routes take precedence over the inclusion patterns.
+     *
+     * @param shadowTrafficConfig Shadow Traffic Configuration, may be null
+     * @param annotatedRoutes routes resolved from annotated handler methods
+     * @return compiled snapshot, disabled if the configuration is null
+     * @throws IllegalArgumentException if an inclusion or header pattern is incomplete or not a valid regex, or a host is not a valid URL
+     */
+    static CompiledShadowTrafficConfig compile(ShadowTrafficConfig shadowTrafficConfig, List<AnnotatedRoute> annotatedRoutes) {
+        if (shadowTrafficConfig == null) {
+            return new CompiledShadowTrafficConfig(false, new ShadowTrafficPolicy(0, null), Collections.emptyList(), null, null, null, null, null,
+                    ShadowTrafficConfiguration.DEFAULT_BODY_MAX_IN_MEMORY_BYTES, ShadowTrafficConfiguration.DEFAULT_BODY_MAX_BYTES, false,
+                    ShadowTrafficConfiguration.DEFAULT_BODY_STREAM_WINDOW_BYTES, ShadowTrafficConfiguration.DEFAULT_BODY_STREAM_CONNECT_BYTES,
+                    ShadowTrafficConfiguration.DEFAULT_BODY_MAX_IN_FLIGHT_BYTES, false);
+        }
+
+        ShadowTrafficPolicy defaultPolicy = ShadowTrafficPolicy.of(shadowTrafficConfig);
+        List<CompiledInclusionPattern> compiledPatterns = new ArrayList<>();
+        for (AnnotatedRoute annotatedRoute : annotatedRoutes) {
+            InclusionPattern inclusionPattern = new InclusionPattern();
+            inclusionPattern.setRequestURI(annotatedRoute.getRequestURI());
+            inclusionPattern.setMethod(annotatedRoute.getMethod());
+            compiledPatterns.add(new CompiledInclusionPattern(inclusionPattern,
+                    defaultPolicy.override(annotatedRoute.getPercentage(), annotatedRoute.getHosts(), null, null), compiledPatterns.size()));
+        }
+        if (!CollectionUtils.isEmpty(shadowTrafficConfig.getInclusionPatterns())) {
+            for (InclusionPattern inclusionPattern : shadowTrafficConfig.getInclusionPatterns()) {
+                if (inclusionPattern != null) {
+                    compiledPatterns.add(new CompiledInclusionPattern(inclusionPattern, defaultPolicy.override(inclusionPattern.getPercentage(),
+                            inclusionPattern.getHosts(), inclusionPattern.getCustomHeaders(), inclusionPattern.getForwardHeaders()), compiledPatterns.size()));
+                }
+            }
+        }
+
+        RouteDecisionCache routeDecisionCache = null;
+        if (shadowTrafficConfig.isRouteCacheEnabled()) {
+            routeDecisionCache = new RouteDecisionCache(shadowTrafficConfig.getRouteCacheMaxSize(), shadowTrafficConfig.getRouteCacheMinHitPercentage());
+        }
+
+        StickySampler stickySampler = null;
+        if (shadowTrafficConfig.getSamplingKeySource() != null) {
+            stickySampler = new StickySampler(shadowTrafficConfig.getSamplingKeySource(), shadowTrafficConfig.getSamplingKeyName());
+        }
+
+        CoverageSampler coverageSampler = null;
+        if (shadowTrafficConfig.isCoverageEnabled()) {
+            coverageSampler = new CoverageSampler(shadowTrafficConfig.getCoverageWindowMs(), shadowTrafficConfig.getCoverageMaxRequestsPerWindow(),
+                    shadowTrafficConfig.getCoverageMinRequestsPerRoute(), compiledPatterns.size());
+        }
+
+        if (shadowTrafficConfig.getBodyMaxInMemoryBytes() < 0 || shadowTrafficConfig.getBodyMaxBytes() < 0
+                || shadowTrafficConfig.getBodyStreamWindowBytes() < 0 || shadowTrafficConfig.getBodyStreamConnectBytes() < 0) {
+            throw new IllegalArgumentException("Body sizes must not be negative but were maxInMemoryBytes="
+                    + shadowTrafficConfig.getBodyMaxInMemoryBytes() + ", maxBytes=" + shadowTrafficConfig.getBodyMaxBytes()
+                    + ", streamWindowBytes=" + shadowTrafficConfig.getBodyStreamWindowBytes()
+                    + ", streamConnectBytes=" + shadowTrafficConfig.getBodyStreamConnectBytes());
+        }
+
+        RequestDeduplicator requestDeduplicator = null;
+        if (shadowTrafficConfig.isDedupEnabled()) {
+            requestDeduplicator = new RequestDeduplicator(shadowTrafficConfig.getDedupWindowMs(), shadowTrafficConfig.getDedupMaxEntries());
+        }
+
+        return new CompiledShadowTrafficConfig(shadowTrafficConfig.isEnabled(), defaultPolicy, compiledPatterns, routeDecisionCache, stickySampler,
+                coverageSampler, requestDeduplicator, shadowTrafficConfig.getBodyCaptureMode(), shadowTrafficConfig.getBodyMaxInMemoryBytes(),
+                shadowTrafficConfig.getBodyMaxBytes(), shadowTrafficConfig.isBodyPooledBuffers(),
+                shadowTrafficConfig.getBodyStreamWindowBytes(), shadowTrafficConfig.getBodyStreamConnectBytes(), shadowTrafficConfig.getBodyMaxInFlightBytes(),
+                shadowTrafficConfig.isSsl());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the policy configured at the top level of the configuration
+     */
+    public ShadowTrafficPolicy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+    List<CompiledInclusionPattern> getInclusionPatterns() {
+        return inclusionPatterns;
+    }
+
+    /**
+     * @return every host shadow traffic may be sent to, the configured ones and the ones of the routes, in configuration order
+     */
+    Set<String> getHosts() {
+        Set<String> hosts = new LinkedHashSet<>(defaultPolicy.getHosts());
+        for (CompiledInclusionPattern inclusionPattern : inclusionPatterns) {
+            hosts.addAll(inclusionPattern.getPolicy().getHosts());
+        }
+        return hosts;
+    }
+
+    /**
+     * @param host configured host
+     * @return the resolved host, null if the host is not part of the configuration or blank
+     */
+    ShadowHost getShadowHost(String host) {
+        return shadowHosts.get(host);
+    }
+
+    /**
+     * @return every resolved host, in configuration order
+     */
+    Collection<ShadowHost> getShadowHosts() {
+        return shadowHosts.values();
+    }
+
+    private static Map<String, ShadowHost> resolveHosts(Set<String> hosts, boolean ssl) {
+        Map<String, ShadowHost> shadowHosts = new LinkedHashMap<>();
+        for (String host : hosts) {
+            if (StringUtils.isNotBlank(host)) {
+                shadowHosts.put(host, ShadowHost.of(host, ssl));
+            }
+        }
+        return Collections.unmodifiableMap(shadowHosts);
+    }
+
+    /**
+     * Find the inclusion patterns matching the request method and URI, see {@link RouteMatcher#match(String, String)}.
+     *
+     * @param method HTTP method of the request
+     * @param path request URI
+     * @return indexes into {@link #getInclusionPatterns()} in configuration order
+     */
+    int[] matchRoutes(String method, String path) {
+        if (routeDecisionCache == null || path == null) {
+            return routeMatcher.match(method, path);
+        }
+        int[] routes = routeDecisionCache.get(method, path);
+        if (routes == null) {
+            routes = routeMatcher.match(method, path);
+            routeDecisionCache.put(method, path, routes);
+        }
+        return routes;
+    }
+
+    /**
+     * @return the route decision cache of this snapshot, null if the cache is not enabled
+     */
+    public RouteDecisionCache getRouteDecisionCache() {
+        return routeDecisionCache;
+    }
+
+    /**
+     * @return the sampler keyed on a request attribute, null if requests are sampled independently
+     */
+    StickySampler getStickySampler() {
+        return stickySampler;
+    }
+
+    /**
+     * @return the per route coverage sampler, null if requests are sampled by percentage
+     */
+    CoverageSampler getCoverageSampler() {
+        return coverageSampler;
+    }
+
+    /**
+     * @return the deduplicator of identical idempotent shadow requests, null if deduplication is not enabled
+     */
+    RequestDeduplicator getRequestDeduplicator() {
+        return requestDeduplicator;
+    }
+
+    /**
+     * @return when the body of a shadowed request is captured, never null
+     */
+    public BodyCaptureMode getBodyCaptureMode() {
+        return bodyCaptureMode;
+    }
+
+    /**
+     * @return size above which a captured body spills to a memory mapped temporary file
+     */
+    public int getBodyMaxInMemoryBytes() {
+        return bodyMaxInMemoryBytes;
+    }
+
+    /**
+     * @return size above which a request is not shadowed
+     */
+    public int getBodyMaxBytes() {
+        return bodyMaxBytes;
+    }
+
+    /**
+     * @return allocator of the captured bodies held in memory, the shared pooled allocator when pooled buffers are enabled
+     */
+    public ByteBufAllocator getBodyAllocator() {
+        return bodyAllocator;
+    }
+
+    /**
+     * @return number of bytes a host can fall behind a streamed body before its shadow request is aborted
+     */
+    public int getBodyStreamWindowBytes() {
+        return bodyStreamWindowBytes;
+    }
+
+    /**
+     * @return number of bytes of a streamed body queued for a host while it connects before its shadow request is aborted
+     */
+    public int getBodyStreamConnectBytes() {
+        return bodyStreamConnectBytes;
+    }
+
+    /**
+     * @return number of body bytes the shadow requests in flight may hold across the application, unlimited if 0 or less
+     */
+    public long getBodyMaxInFlightBytes() {
+        return bodyMaxInFlightBytes;
+    }
+
+    private static Pattern compilePattern(String regex, int flags, String description) {
+        try {
+            return Pattern.compile(regex, flags);
+        } catch (PatternSyntaxException pse) {
+            throw new IllegalArgumentException("Invalid " + description + " pattern syntax configured: " + regex, pse);
+        }
+    }
+
+    /**
+     * Compiled form of {@link InclusionPattern}.
+     */
+    static final class CompiledInclusionPattern {
+
+        private final Pattern requestURI;
+        private final String method;
+        private final List<CompiledHeaderPattern> headerPatterns;
+        private final ShadowTrafficPolicy policy;
+        private final int index;
+
+        CompiledInclusionPattern(InclusionPattern inclusionPattern, ShadowTrafficPolicy policy, int index) {
+            if (inclusionPattern.getRequestURI() == null) {
+                throw new IllegalArgumentException("Inclusion pattern is missing the requestURI");
+            }
+            if (StringUtils.isBlank(inclusionPattern.getMethod())) {
+                throw new IllegalArgumentException("Inclusion pattern " + inclusionPattern.getRequestURI() + " is missing the method");
+            }
+
+            this.requestURI = compilePattern(inclusionPattern.getRequestURI(), 0, "requestURI");
+            this.method = ALL_METHODS.equals(inclusionPattern.getMethod()) ? null : inclusionPattern.getMethod().toUpperCase(Locale.ROOT);
+
+            List<CompiledHeaderPattern> compiledHeaderPatterns = new ArrayList<>();
+            if (!CollectionUtils.isEmpty(inclusionPattern.getHeaderPattern())) {
+                for (HeaderPattern headerPattern : inclusionPattern.getHeaderPattern()) {
+                    if (headerPattern != null) {
+                        compiledHeaderPatterns.add(new CompiledHeaderPattern(headerPattern));
+                    }
+                }
+            }
+            this.headerPatterns = Collections.unmodifiableList(compiledHeaderPatterns);
+            this.policy = policy;
+            this.index = index;
+        }
+
+        Pattern getRequestURI() {
+            return requestURI;
+        }
+
+        /**
+         * @return the upper cased HTTP method, or null if the pattern applies to all methods
+         */
+        String getMethod() {
+            return method;
+        }
+
+        List<CompiledHeaderPattern> getHeaderPatterns() {
+            return headerPatterns;
+        }
+
+        ShadowTrafficPolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * @return position of this pattern in the inclusion patterns of its snapshot
+         */
+        int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return true if the pattern can be rejected based on the request headers
+         */
+        boolean isConditional() {
+            return !headerPatterns.isEmpty();
+        }
+
+        boolean matches(String path, String requestMethod) {
+            return matchesRequestURI(path) && (method == null || method.equalsIgnoreCase(requestMethod));
+        }
+
+        boolean matchesRequestURI(String path) {
+            return path != null && requestURI.matcher(path).matches();
+        }
+
+        /**
+         * Header patterns are OR'ed together, an inclusion pattern without header patterns matches any request. Only the headers referenced by
+         * the patterns are looked up.
+         *
+         * @param request the incoming request
+         * @return true if the headers satisfy this inclusion pattern
+         */
+        boolean matchesHeaders(HttpServletRequest request) {
+            if (headerPatterns.isEmpty()) {
+                return true;
+            }
+            for (CompiledHeaderPattern headerPattern : headerPatterns) {
+                if (headerPattern.matches(request.getHeader(headerPattern.getHeaderKey()))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Compiled form of {@link HeaderPattern}. The key is lower cased and the value is matched case insensitively.
+     */
+    static final class CompiledHeaderPattern {
+
+        private final String headerKey;
+        private final Pattern headerValue;
+
+        CompiledHeaderPattern(HeaderPattern headerPattern) {
+            if (headerPattern.getHeaderKey() == null || headerPattern.getHeaderValue() == null) {
+                throw new IllegalArgumentException("Header pattern requires both a headerKey and a headerValue");
+            }
+            this.headerKey = headerPattern.getHeaderKey().toLowerCase(Locale.ROOT);
+            this.headerValue = compilePattern(headerPattern.getHeaderValue().toLowerCase(Locale.ROOT),
+                    Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE, "headerValue");
+        }
+
+        String getHeaderKey() {
+            return headerKey;
+        }
+
+        boolean matches(String value) {
+            return StringUtils.isNotBlank(value) && headerValue.matcher(value).matches();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Stratified sampler giving every route a share of a fixed shadow traffic budget per time window instead of a fixed percentage.
+ *
+ * Within a window each route first gets its guaranteed minimum, the first matching requests of the route are shadowed. The rest of the
+ * budget is shared by every route: the other requests are shadowed with the probability that would have spread the shared budget evenly over
+ * the arrivals of the previous window, until the shared budget runs out. Rare routes are therefore always covered while the hot routes share
+ * what is left, and the total never exceeds the larger of the budget and the sum of the minimums.
+ *
+ * Every counter is updated with compare-and-set, no request thread ever blocks on another.
+ */
+final class CoverageSampler {
+
+    private final long windowNanos;
+    private final int minPerRoute;
+    private final int sharedBudget;
+    private final LongSupplier nanoClock;
+    private final long origin;
+    private final AtomicReference<Window> window;
+    private final AtomicLongArray routeStates;
+
+    /**
+     *
+     * @param windowMs length of a window
+     * @param maxPerWindow total number of requests to shadow per window
+     * @param minPerRoute number of requests of each route to shadow per window
+     * @param routeCount number of routes sharing the budget
+     * @throws IllegalArgumentException if the window is not positive or a count is negative
+     */
+    CoverageSampler(long windowMs, int maxPerWindow, int minPerRoute, int routeCount) {
+        this(windowMs, maxPerWindow, minPerRoute, routeCount, System::nanoTime);
+    }
+
+    CoverageSampler(long windowMs, int maxPerWindow, int minPerRoute, int routeCount, LongSupplier nanoClock) {
+        if (windowMs <= 0 || maxPerWindow < 0 || minPerRoute < 0) {
+            throw new IllegalArgumentException("Coverage sampling requires a positive window and non negative budgets but was windowMs="
+                    + windowMs + ", maxRequestsPerWindow=" + maxPerWindow + ", minRequestsPerRoute=" + minPerRoute);
+        }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.minPerRoute = minPerRoute;
+        this.sharedBudget = (int) Math.max(0, maxPerWindow - (long) minPerRoute * routeCount);
+        this.nanoClock = nanoClock;
+        this.origin = nanoClock.getAsLong();
+        this.window = new AtomicReference<>(new Window(0, 1.0));
+        this.routeStates = new AtomicLongArray(Math.max(0, routeCount));
+    }
+
+    /**
+     * @param route index of the route the request matched, a route unknown to this sampler only competes for the shared budget
+     * @return true if the request is shadowed
+     */
+    boolean isSampled(int route) {
+        Window current = currentWindow();
+        current.arrivals.increment();
+
+        if (route >= 0 && route < routeStates.length() && takeGuaranteed(route, current.id)) {
+            return true;
+        }
+        if (current.probability < 1.0 && ThreadLocalRandom.current().nextDouble() >= current.probability) {
+            return false;
+        }
+        for (;;) {
+            int taken = current.sharedTaken.get();
+            if (taken >= sharedBudget) {
+                return false;
+            }
+            if (current.sharedTaken.compareAndSet(taken, taken + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The state of a route packs the window id in the high 32 bits and the number of guaranteed requests taken in that window in the low 32
+     * bits, so a new window resets the count in the same compare-and-set that takes the first request.
+     */
+    private boolean takeGuaranteed(int route, long windowId) {
+        for (;;) {
+            long state = routeStates.get(route);
+            int taken = (state >>> 32) == windowId ? (int) state : 0;
+            if (taken >= minPerRoute) {
+                return false;
+            }
+            if (routeStates.compareAndSet(route, state, (windowId << 32) | (taken + 1))) {
+                return true;
+            }
+        }
+    }
+
+    private Window currentWindow() {
+        long id = ((nanoClock.getAsLong() - origin) / windowNanos) & 0xffffffffL;
+        Window current = window.get();
+        if (current.id == id) {
+            return current;
+        }
+        // arrivals of a window that ended long ago say nothing about the current rate
+        long previousArrivals = current.id == id - 1 ? current.arrivals.sum() : 0;
+        double probability = previousArrivals <= sharedBudget ? 1.0 : (double) sharedBudget / previousArrivals;
+        Window next = new Window(id, probability);
+        return window.compareAndSet(current, next) ? next : window.get();
+    }
+
+    private static final class Window {
+
+        private final long id;
+        private final double probability;
+        private final LongAdder arrivals = new LongAdder();
+        private final AtomicInteger sharedTaken = new AtomicInteger();
+
+        Window(long id, double probability) {
+            this.id = id;
+            this.probability = probability;
+        }
+    }
+}
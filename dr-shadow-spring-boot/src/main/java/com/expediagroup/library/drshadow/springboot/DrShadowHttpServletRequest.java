@@ -21,9 +21,104 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
 public abstract class DrShadowHttpServletRequest extends HttpServletRequestWrapper {
+    
+    private final ShadowRequest.Lease lease = new ShadowRequest.Lease(this::freeBody);
+    
     public DrShadowHttpServletRequest(HttpServletRequest request) throws IOException {
         super(request);
     }
     
-    abstract String getBody();
+    /**
+     * The captured body as it is sent to the shadow hosts. The body is shared, not copied, and only valid while a reference on the request
+     * is held.
+     *
+     * @return body, null if the request has no body
+     */
+    abstract ShadowBody getBody();
+    
+    /**
+     * Complete the capture of the body once the application is done with the request. Only needed by wrappers capturing the body while the
+     * application reads it, the others have it all from the start.
+     *
+     * @return true if the whole body was captured and the request can be shadowed
+     * @throws IOException if the remainder of the body could not be read
+     */
+    boolean finishCapture() throws IOException {
+        return true;
+    }
+    
+    /**
+     * @return true if the body is only captured once the application is done with the request, {@link #finishCapture()} and the shadow
+     * traffic then wait for the end of the chain instead of delaying the original request
+     */
+    boolean isCapturedAfterChain() {
+        return false;
+    }
+    
+    /**
+     * @return true once the body no longer depends on the servlet request, copied out of it or streamed on the request thread. Wrappers
+     * capturing the body while the application reads it are only complete after {@link #finishCapture()} succeeded.
+     */
+    boolean isCaptureComplete() {
+        return true;
+    }
+    
+    /**
+     * @return true if the body is larger than the configured maximum, the request is then not shadowed
+     */
+    boolean isOversized() {
+        return false;
+    }
+    
+    /**
+     * @return true if the body could not be captured, its temporary file failing, the request is then not shadowed
+     */
+    boolean isCaptureFailed() {
+        return false;
+    }
+    
+    /**
+     * Drop the reference of the filter on the request, the captured body is freed with the last reference, the snapshot taken for the shadow
+     * traffic holding another one.
+     */
+    void release() {
+        lease.release();
+    }
+    
+    /**
+     * Account for bytes acquired from the in flight budget for this request, they are released with the last reference.
+     *
+     * @param budget budget the bytes were acquired from
+     * @param bytes number of bytes acquired
+     */
+    void charged(InFlightBudget budget, long bytes) {
+        lease.charged(budget, bytes);
+    }
+    
+    /**
+     * @return number of bytes acquired from the in flight budget for this request
+     */
+    long getChargedBytes() {
+        return lease.getChargedBytes();
+    }
+    
+    /**
+     * @return references on the captured body, shared with the snapshot of the request
+     */
+    ShadowRequest.Lease getLease() {
+        return lease;
+    }
+    
+    /**
+     * @return true if the body holds the query string parameters as well, which must then not be sent in the URL again
+     */
+    boolean isQueryStringInBody() {
+        return false;
+    }
+    
+    /**
+     * Free the resources held by the captured body, called once the application and every host are done with it.
+     */
+    void freeBody() {
+    }
 }
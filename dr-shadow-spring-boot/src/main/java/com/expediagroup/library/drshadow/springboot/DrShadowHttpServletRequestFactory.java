@@ -22,6 +22,8 @@ import java.io.IOException;
 
 import javax.servlet.http.HttpServletRequest;
 
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.BodyCaptureMode;
+
 /**
  * Creates the servlet request based on what type of HttpServletRequest is incoming
  * @author surawat
@@ -44,6 +46,36 @@ public class DrShadowHttpServletRequestFactory {
         }
     }
     
+    /**
+     * Returns the DrShadowHttpServletRequest constructed from HttpServletRequest. Form and multipart bodies do not depend on the capture
+     * mode, both are captured once the application is done and are still bounded by the capture sizes.
+     * @param httpServletRequest Original servlet request
+     * @param compiledConfig Configuration deciding when and how the body is captured
+     * @param policy Policy of the route the request matched, a streamed body gets one stream per host
+     * @return Newly wrapped request shadow request
+     * @throws IOException IOException
+     */
+    public DrShadowHttpServletRequest getHttpServletRequest(HttpServletRequest httpServletRequest, CompiledShadowTrafficConfig compiledConfig,
+            ShadowTrafficPolicy policy) throws IOException {
+        if (isFormUrlEncoded(httpServletRequest)) {
+            return new FormUrlEncodedHttpServletRequest(httpServletRequest, compiledConfig.getBodyMaxInMemoryBytes(), compiledConfig.getBodyMaxBytes(),
+                    compiledConfig.getBodyAllocator());
+        } else if (isMultipart(httpServletRequest)) {
+            return new MultiPartHttpServletRequest(httpServletRequest, compiledConfig.getBodyMaxInMemoryBytes(), compiledConfig.getBodyMaxBytes(),
+                    compiledConfig.getBodyAllocator());
+        } else if (compiledConfig.getBodyCaptureMode() == BodyCaptureMode.STREAM) {
+            int streams = policy.getHosts() != null ? policy.getHosts().size() : 0;
+            return new StreamingHttpServletRequest(httpServletRequest, streams, compiledConfig.getBodyStreamWindowBytes(),
+                    compiledConfig.getBodyStreamConnectBytes(), compiledConfig.getBodyMaxBytes());
+        } else if (compiledConfig.getBodyCaptureMode() == BodyCaptureMode.TEE) {
+            return new TeeHttpServletRequest(httpServletRequest, compiledConfig.getBodyMaxInMemoryBytes(), compiledConfig.getBodyMaxBytes(),
+                    compiledConfig.getBodyAllocator());
+        } else {
+            return new BasicHttpServletRequest(httpServletRequest, compiledConfig.getBodyMaxInMemoryBytes(), compiledConfig.getBodyMaxBytes(),
+                    compiledConfig.getBodyAllocator());
+        }
+    }
+    
     private boolean isFormUrlEncoded(HttpServletRequest request) {
         String contentType = request.getContentType();
         return "POST".equalsIgnoreCase(request.getMethod()) && contentType != null && contentType.startsWith(APPLICATION_FORM_URLENCODED_VALUE);
@@ -15,21 +15,40 @@
  */
 package com.expediagroup.library.drshadow.springboot;
 
-import com.expediagroup.library.drshadow.springboot.DrShadowHttpServletRequest;
-import org.apache.commons.collections4.MapUtils;
-
-import static org.springframework.util.StringUtils.hasText;
-
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 
+import io.netty.buffer.ByteBufAllocator;
+import org.apache.commons.collections4.MapUtils;
+import org.apache.commons.lang3.StringUtils;
+
 /**
+ * Form post, forwarded as the raw bytes the client sent. The wrapper never parses the form itself, the container does, so the application
+ * sees the same parameters with or without shadow traffic. The body is captured like {@link TeeHttpServletRequest} does: copied while the
+ * application reads it, or read once the application is done if it did not.
+ *
+ * If the application asks for the parameters before reading the body, or an earlier filter already did, the container consumes the body to
+ * parse them. The body is then re-encoded once from the parameter map, every value of every parameter, which then also holds the query
+ * string parameters.
+ *
  * @author surawat
  */
-public class FormUrlEncodedHttpServletRequest extends DrShadowHttpServletRequest {
+public class FormUrlEncodedHttpServletRequest extends TeeHttpServletRequest {
+
+    private final int maxBytes;
+    private boolean bodyRead;
+    private boolean parametersRead;
+    private boolean encodedOversized;
+    private ShadowBody encodedBody;
 
     /**
      *
@@ -37,29 +56,155 @@ public class FormUrlEncodedHttpServletRequest extends DrShadowHttpServletRequest
      * @throws IOException IOException
      */
     public FormUrlEncodedHttpServletRequest(HttpServletRequest request) throws IOException {
-        super(request);
+        this(request, CaptureBuffer.MAX_ARRAY_LENGTH, CaptureBuffer.MAX_ARRAY_LENGTH, CaptureBuffer.UNPOOLED);
+    }
+    
+    /**
+     *
+     * @param request Original http servlet request
+     * @param maxInMemoryBytes size above which the body spills to a memory mapped temporary file
+     * @param maxBytes size above which the body, raw or re-encoded, is not captured and the request not shadowed
+     * @param allocator allocator of the in memory body
+     * @throws IOException IOException
+     */
+    public FormUrlEncodedHttpServletRequest(HttpServletRequest request, int maxInMemoryBytes, int maxBytes, ByteBufAllocator allocator)
+            throws IOException {
+        super(request, maxInMemoryBytes, maxBytes, allocator);
+        this.maxBytes = maxBytes;
+    }
+    
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (!parametersRead) {
+            bodyRead = true;
+        }
+        return super.getInputStream();
+    }
+    
+    @Override
+    public String getParameter(String name) {
+        parametersRequested();
+        return super.getParameter(name);
+    }
+    
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        parametersRequested();
+        return super.getParameterMap();
+    }
+    
+    @Override
+    public Enumeration<String> getParameterNames() {
+        parametersRequested();
+        return super.getParameterNames();
+    }
+    
+    @Override
+    public String[] getParameterValues(String name) {
+        parametersRequested();
+        return super.getParameterValues(name);
+    }
+    
+    /**
+     * Once the body was read as a stream the container only parses the query string, as it would without the wrapper.
+     */
+    private void parametersRequested() {
+        if (!bodyRead) {
+            parametersRead = true;
+        }
+    }
+    
+    /**
+     * Keep the raw body unless the container consumed it to parse the parameters. Nothing captured for a form that declares a body, or does
+     * not declare its length, means an earlier filter had the container consume it.
+     */
+    @Override
+    boolean finishCapture() throws IOException {
+        if (encodedBody != null) {
+            return true;
+        }
+        if (parametersRead) {
+            return !super.isOversized() && encode();
+        }
+        if (!super.finishCapture()) {
+            return false;
+        }
+        ShadowBody raw = super.getBody();
+        if (raw.length() == 0 && getContentLengthLong() != 0) {
+            parametersRead = true;
+            return encode();
+        }
+        return true;
+    }
+    
+    private boolean encode() {
+        ShadowBody encoded = encode(super.getParameterMap(), getParameterCharset());
+        if (encoded.length() > maxBytes) {
+            encodedOversized = true;
+            return false;
+        }
+        encodedBody = encoded;
+        return true;
+    }
+    
+    /**
+     * @return the raw or re-encoded body, null until {@link #finishCapture()} completed or if it is empty
+     */
+    @Override
+    ShadowBody getBody() {
+        ShadowBody body = encodedBody != null ? encodedBody : super.getBody();
+        return body != null && body.length() > 0 ? body : null;
+    }
+    
+    @Override
+    boolean isCaptureComplete() {
+        return encodedBody != null || (!parametersRead && super.isCaptureComplete());
     }
     
     @Override
-    String getBody() {
-        String sBody = null;
-        final Map<String, String[]> parameters = super.getParameterMap();
+    boolean isOversized() {
+        return encodedOversized || super.isOversized();
+    }
+    
+    /**
+     * The body re-encoded from the parameter map holds the query string parameters as well, the raw body does not.
+     */
+    @Override
+    boolean isQueryStringInBody() {
+        return encodedBody != null;
+    }
+
+    /**
+     * @return charset the container decoded the parameters with, ISO-8859-1 when the request does not declare one as the servlet
+     * specification defaults to
+     */
+    private Charset getParameterCharset() {
+        String characterEncoding = getCharacterEncoding();
+        return characterEncoding != null ? Charset.forName(characterEncoding) : StandardCharsets.ISO_8859_1;
+    }
+    
+    static ShadowBody encode(Map<String, String[]> parameters, Charset charset) {
+        StringBuilder buffer = new StringBuilder();
         if (MapUtils.isNotEmpty(parameters)) {
-            final StringBuilder buffer = new StringBuilder();
-            boolean first = true;
             for (Entry<String, String[]> param : parameters.entrySet()) {
-                if (!first) {
-                    buffer.append('&');
-                }
-                buffer.append(param.getKey()).append('=');
-                if (hasText(param.getValue()[0])) {
-                    buffer.append(param.getValue()[0]);
+                String[] values = param.getValue() != null && param.getValue().length > 0 ? param.getValue() : new String[] { "" };
+                for (String value : values) {
+                    if (buffer.length() > 0) {
+                        buffer.append('&');
+                    }
+                    buffer.append(urlEncode(param.getKey(), charset)).append('=').append(urlEncode(StringUtils.defaultString(value), charset));
                 }
-                first = false;
             }
-            sBody = buffer.toString();
         }
-        return sBody;
+        // the encoded form is plain ASCII
+        return ShadowBody.wrap(buffer.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+    
+    private static String urlEncode(String value, Charset charset) {
+        try {
+            return URLEncoder.encode(value, charset.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
-
 }
@@ -0,0 +1,632 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.net.URI;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexCodec;
+import io.netty.handler.codec.http2.Http2MultiplexCodecBuilder;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2SettingsFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.handler.timeout.WriteTimeoutHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseCookie;
+import org.springframework.http.client.reactive.AbstractClientHttpRequest;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.http.client.reactive.ClientHttpResponse;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.UnicastProcessor;
+
+/**
+ * HTTP/2 transport to one shadow host: a few connections, each carrying many concurrent requests as streams. An https host negotiates h2
+ * with ALPN, an http host is spoken h2c to with prior knowledge. A host refusing HTTP/2 (ALPN picked http/1.1, the connection preface was
+ * answered with something else than HTTP/2 frames, or the JDK does not support ALPN) is switched to the HTTP/1.1 fallback for good. A
+ * connection merely closed or reset before the settings of the host came only fails its requests, the next ones try HTTP/2 again.
+ *
+ * Connections are opened on first use and reopened once closed, requests are spread over them round robin. Streams beyond the limit the
+ * host announced are buffered by the encoder until a stream completes, the caller bounds how many requests are in flight.
+ */
+final class Http2ClientHttpConnector implements ClientHttpConnector, Disposable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2ClientHttpConnector.class);
+    // Response bodies are dropped, heap buffers that are not pooled cannot leak if a cancelled response leaves some unreleased
+    private static final UnpooledByteBufAllocator ALLOCATOR = new UnpooledByteBufAllocator(false);
+    private static final NettyDataBufferFactory DATA_BUFFER_FACTORY = new NettyDataBufferFactory(ALLOCATOR);
+
+    private final URI baseUri;
+    private final boolean secure;
+    private final EventLoopGroup eventLoopGroup;
+    private final int connectionTimeoutMs;
+    private final int readTimeoutMs;
+    private final int writeTimeoutMs;
+    private final ClientHttpConnector http11Connector;
+    private final AtomicReferenceArray<Http2Connection> connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final SslContext sslContext;
+    private volatile boolean http11;
+    private volatile boolean disposed;
+
+    /**
+     *
+     * @param baseUrl scheme, host and port of the shadow host
+     * @param connections number of connections to the host
+     * @param eventLoopGroup event loops running the connections
+     * @param config Shadow Traffic Configuration, for the connection, read and write timeouts
+     * @param http11Connector connector used once the host refused HTTP/2
+     */
+    Http2ClientHttpConnector(String baseUrl, int connections, EventLoopGroup eventLoopGroup, ShadowTrafficConfig config,
+            ClientHttpConnector http11Connector) {
+        this.baseUri = URI.create(baseUrl);
+        this.secure = "https".equalsIgnoreCase(baseUri.getScheme());
+        this.eventLoopGroup = eventLoopGroup;
+        this.connectionTimeoutMs = config.getHttpConnectionTimeoutMs();
+        this.readTimeoutMs = config.getHttpReadTimeoutMs();
+        this.writeTimeoutMs = config.getHttpWriteTimeoutMs();
+        this.http11Connector = http11Connector;
+        this.connections = new AtomicReferenceArray<>(Math.max(1, connections));
+        this.sslContext = secure ? sslContext(baseUrl) : null;
+        this.http11 = secure && sslContext == null;
+    }
+
+    private static SslContext sslContext(String baseUrl) {
+        try {
+            return SslContextBuilder.forClient()
+                    .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                    .applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1))
+                    .build();
+        } catch (Exception | LinkageError ex) {
+            LOGGER.warn("ALPN is not available, shadow traffic to host {} uses HTTP/1.1", baseUrl, ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return true once the host was switched to HTTP/1.1
+     */
+    boolean isHttp11() {
+        return http11;
+    }
+
+    @Override
+    public Mono<ClientHttpResponse> connect(HttpMethod method, URI uri, Function<? super ClientHttpRequest, Mono<Void>> requestCallback) {
+        if (http11) {
+            return http11Connector.connect(method, uri, requestCallback);
+        }
+        Http2StreamHandler handler = new Http2StreamHandler();
+        return connection()
+                .flatMap(parent -> openStream(parent, handler))
+                .flatMap(stream -> requestCallback.apply(new Http2ClientHttpRequest(method, uri, stream)).then(handler.response))
+                .onErrorResume(Http2RefusedException.class, ex -> {
+                    if (!http11) {
+                        http11 = true;
+                        LOGGER.info("Shadow host {} does not speak HTTP/2, falling back to HTTP/1.1: {}", baseUri, ex.getMessage());
+                    }
+                    return http11Connector.connect(method, uri, requestCallback);
+                });
+    }
+
+    private Mono<Channel> connection() {
+        int index = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length();
+        for (;;) {
+            Http2Connection current = connections.get(index);
+            if (current != null && current.isUsable()) {
+                return current.ready;
+            }
+            Http2Connection created = new Http2Connection();
+            if (connections.compareAndSet(index, current, created)) {
+                if (current != null) {
+                    current.close();
+                }
+                return created.ready;
+            }
+        }
+    }
+
+    private Mono<Http2StreamChannel> openStream(Channel parent, Http2StreamHandler handler) {
+        return Mono.create(sink -> new Http2StreamChannelBootstrap(parent)
+                .handler(new ChannelInitializer<Http2StreamChannel>() {
+                    @Override
+                    protected void initChannel(Http2StreamChannel stream) {
+                        if (writeTimeoutMs > 0) {
+                            stream.pipeline().addLast(new WriteTimeoutHandler(writeTimeoutMs, TimeUnit.MILLISECONDS));
+                        }
+                        stream.pipeline().addLast(handler);
+                    }
+                })
+                .open()
+                .addListener((Future<Http2StreamChannel> future) -> {
+                    if (future.isSuccess()) {
+                        sink.success(future.getNow());
+                    } else {
+                        sink.error(future.cause());
+                    }
+                }));
+    }
+
+    /**
+     * Close the connections, the requests in flight fail.
+     */
+    @Override
+    public void dispose() {
+        disposed = true;
+        for (int i = 0; i < connections.length(); i++) {
+            Http2Connection connection = connections.getAndSet(i, null);
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    private static Mono<Void> toMono(ChannelFuture future) {
+        return Mono.create(sink -> future.addListener(done -> {
+            if (done.isSuccess()) {
+                sink.success();
+            } else {
+                sink.error(done.cause());
+            }
+        }));
+    }
+
+    /**
+     * The host does not speak HTTP/2, the request can be sent again over HTTP/1.1.
+     */
+    static final class Http2RefusedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        Http2RefusedException(String message, Throwable cause) {
+            super(message, cause, false, false);
+        }
+    }
+
+    /**
+     * One connection, ready once the host answered the connection preface with its settings.
+     */
+    private final class Http2Connection {
+
+        private final Mono<Channel> ready;
+        private volatile Channel channel;
+        private volatile boolean failed;
+
+        private Http2Connection() {
+            this.ready = Mono.<Channel>create(this::connect)
+                    .doOnError(ex -> failed = true)
+                    .cache();
+        }
+
+        private void connect(MonoSink<Channel> sink) {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(eventLoopGroup)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.ALLOCATOR, ALLOCATOR)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            if (sslContext == null) {
+                                ch.pipeline().addLast(codec(), new Http2SettingsHandler(sink));
+                                return;
+                            }
+                            ch.pipeline().addLast(sslContext.newHandler(ch.alloc(), baseUri.getHost(), port()),
+                                    new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                                        @Override
+                                        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                                            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                                ctx.pipeline().addLast(codec(), new Http2SettingsHandler(sink));
+                                            } else {
+                                                sink.error(new Http2RefusedException("ALPN selected " + protocol, null));
+                                                ctx.close();
+                                            }
+                                        }
+                                    });
+                        }
+                    });
+            if (connectionTimeoutMs > 0) {
+                bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMs);
+            }
+            ChannelFuture connect = bootstrap.connect(baseUri.getHost(), port());
+            channel = connect.channel();
+            connect.addListener(future -> {
+                if (!future.isSuccess()) {
+                    sink.error(future.cause());
+                }
+            });
+        }
+
+        private Http2MultiplexCodec codec() {
+            // the host cannot push, streams past its concurrent streams limit wait in the encoder
+            return Http2MultiplexCodecBuilder.forClient(RefusedStreamHandler.INSTANCE)
+                    .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                    .encoderEnforceMaxConcurrentStreams(true)
+                    .build();
+        }
+
+        private int port() {
+            return baseUri.getPort() > 0 ? baseUri.getPort() : secure ? 443 : 80;
+        }
+
+        private boolean isUsable() {
+            Channel current = channel;
+            return !failed && (current == null || current.isOpen());
+        }
+
+        private void close() {
+            Channel current = channel;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the streams opened by the host, none is expected since push is disabled.
+     */
+    @ChannelHandler.Sharable
+    private static final class RefusedStreamHandler extends ChannelInboundHandlerAdapter {
+
+        private static final RefusedStreamHandler INSTANCE = new RefusedStreamHandler();
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Completes the connection once the settings of the host came. Only a connection failing to decode HTTP/2 frames before that did not
+     * speak HTTP/2, one closed or reset may have been dropped for other reasons and is simply failed.
+     */
+    private static final class Http2SettingsHandler extends ChannelInboundHandlerAdapter {
+
+        private final MonoSink<Channel> sink;
+        private boolean ready;
+
+        private Http2SettingsHandler(MonoSink<Channel> sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * The codec writes its connection preface as soon as the connection is active but leaves it to the next read to flush it.
+         */
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            if (ctx.channel().isActive()) {
+                ctx.flush();
+            }
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            ctx.fireChannelActive();
+            ctx.flush();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof Http2SettingsFrame && !ready) {
+                ready = true;
+                sink.success(ctx.channel());
+            }
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (!ready) {
+                sink.error(cause instanceof Http2Exception ? new Http2RefusedException("No HTTP/2 connection preface", cause) : cause);
+            }
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (!ready) {
+                sink.error(new ClosedChannelException());
+            }
+            ctx.fireChannelInactive();
+        }
+    }
+
+    /**
+     * Turns the frames of one stream into the response, its body is handed over as it arrives.
+     */
+    private static final class Http2StreamHandler extends ChannelInboundHandlerAdapter {
+
+        private final MonoProcessor<ClientHttpResponse> response = MonoProcessor.create();
+        private final UnicastProcessor<DataBuffer> body = UnicastProcessor.create();
+        private volatile boolean cancelled;
+        private boolean headersReceived;
+        private boolean done;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof Http2HeadersFrame) {
+                Http2HeadersFrame frame = (Http2HeadersFrame) msg;
+                if (!headersReceived && isInformational(frame.headers())) {
+                    // interim responses such as 100 Continue precede the final headers, a stream cannot end with one
+                    if (frame.isEndStream()) {
+                        fail(ctx, new IllegalStateException("Stream ended by the shadow host with an informational status"));
+                    }
+                    return;
+                }
+                if (!headersReceived) {
+                    headersReceived = true;
+                    Channel stream = ctx.channel();
+                    response.onNext(new Http2ClientHttpResponse(frame.headers(), body.doOnCancel(() -> {
+                        cancelled = true;
+                        // resets the stream if the host is still sending, the connection is kept
+                        stream.close();
+                    })));
+                }
+                if (frame.isEndStream()) {
+                    complete(ctx);
+                }
+            } else if (msg instanceof Http2DataFrame) {
+                Http2DataFrame frame = (Http2DataFrame) msg;
+                boolean endStream = frame.isEndStream();
+                if (cancelled || done || !frame.content().isReadable()) {
+                    frame.release();
+                } else {
+                    body.onNext(DATA_BUFFER_FACTORY.wrap(frame.content()));
+                }
+                if (endStream) {
+                    complete(ctx);
+                }
+            } else if (msg instanceof Http2ResetFrame) {
+                fail(ctx, new IllegalStateException("Stream reset by the shadow host, error code " + ((Http2ResetFrame) msg).errorCode()));
+            } else {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        private static boolean isInformational(Http2Headers headers) {
+            CharSequence status = headers.status();
+            return status != null && status.length() == 3 && status.charAt(0) == '1';
+        }
+
+        private void complete(ChannelHandlerContext ctx) {
+            if (!done) {
+                done = true;
+                body.onComplete();
+            }
+            ctx.close();
+        }
+
+        private void fail(ChannelHandlerContext ctx, Throwable cause) {
+            if (!done) {
+                done = true;
+                if (headersReceived) {
+                    body.onError(cause);
+                } else {
+                    response.onError(cause);
+                }
+            }
+            ctx.close();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(ctx, cause);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            fail(ctx, new ClosedChannelException());
+        }
+    }
+
+    /**
+     * Request written as the frames of a stream, the headers are held back until the body, if any, starts.
+     */
+    private final class Http2ClientHttpRequest extends AbstractClientHttpRequest {
+
+        private final HttpMethod method;
+        private final URI uri;
+        private final Http2StreamChannel stream;
+        private final Http2Headers headers = new DefaultHttp2Headers();
+
+        private Http2ClientHttpRequest(HttpMethod method, URI uri, Http2StreamChannel stream) {
+            this.method = method;
+            this.uri = uri;
+            this.stream = stream;
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        @Override
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        public DataBufferFactory bufferFactory() {
+            return DATA_BUFFER_FACTORY;
+        }
+
+        @Override
+        public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+            return doCommit(() -> write(new DefaultHttp2HeadersFrame(headers, false))
+                    .thenMany(Flux.from(body).concatMap(buffer -> write(new DefaultHttp2DataFrame(NettyDataBufferFactory.toByteBuf(buffer), false))))
+                    .then(Mono.defer(() -> write(new DefaultHttp2DataFrame(Unpooled.EMPTY_BUFFER, true))))
+                    .doOnSuccess(sent -> awaitResponse()));
+        }
+
+        @Override
+        public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+            return writeWith(Flux.from(body).concatMap(Flux::from));
+        }
+
+        @Override
+        public Mono<Void> setComplete() {
+            return doCommit(() -> write(new DefaultHttp2HeadersFrame(headers, true)).doOnSuccess(sent -> awaitResponse()));
+        }
+
+        private Mono<Void> write(Object frame) {
+            return Mono.defer(() -> toMono(stream.writeAndFlush(frame)));
+        }
+
+        /**
+         * The read timeout only starts once the request was sent, a streamed body may take longer than that to be written.
+         */
+        private void awaitResponse() {
+            if (readTimeoutMs > 0) {
+                stream.pipeline().addFirst(new ReadTimeoutHandler(readTimeoutMs, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        @Override
+        protected void applyHeaders() {
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            headers.method(method.name())
+                    .scheme(uri.getScheme())
+                    .authority(uri.getRawAuthority())
+                    .path(uri.getRawQuery() != null ? path + "?" + uri.getRawQuery() : path);
+            for (Map.Entry<String, List<String>> header : getHeaders().entrySet()) {
+                String name = header.getKey().toLowerCase();
+                // connection specific headers are not allowed in HTTP/2, the authority replaces the host
+                if (!HttpHeaders.HOST.equalsIgnoreCase(name) && !HttpHeaders.CONNECTION.equalsIgnoreCase(name)
+                        && !HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(name) && !HttpHeaders.UPGRADE.equalsIgnoreCase(name)
+                        && !"keep-alive".equals(name) && !"proxy-connection".equals(name)) {
+                    headers.add(name, header.getValue());
+                }
+            }
+        }
+
+        @Override
+        protected void applyCookies() {
+            StringBuilder cookies = new StringBuilder();
+            for (List<HttpCookie> values : getCookies().values()) {
+                for (HttpCookie cookie : values) {
+                    cookies.append(cookies.length() > 0 ? "; " : "").append(cookie.getName()).append('=').append(cookie.getValue());
+                }
+            }
+            if (cookies.length() > 0) {
+                headers.add(HttpHeaders.COOKIE.toLowerCase(), cookies.toString());
+            }
+        }
+    }
+
+    /**
+     * Response of a stream, the cookies are not parsed since shadow responses are dropped.
+     */
+    private static final class Http2ClientHttpResponse implements ClientHttpResponse {
+
+        private final int status;
+        private final HttpHeaders headers = new HttpHeaders();
+        private final Flux<DataBuffer> body;
+
+        private Http2ClientHttpResponse(Http2Headers http2Headers, Flux<DataBuffer> body) {
+            this.status = http2Headers.status() != null ? Integer.parseInt(http2Headers.status().toString()) : 0;
+            for (Map.Entry<CharSequence, CharSequence> header : http2Headers) {
+                if (header.getKey().length() > 0 && header.getKey().charAt(0) != ':') {
+                    headers.add(header.getKey().toString(), header.getValue().toString());
+                }
+            }
+            this.body = body;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() {
+            return HttpStatus.valueOf(status);
+        }
+
+        @Override
+        public int getRawStatusCode() {
+            return status;
+        }
+
+        @Override
+        public MultiValueMap<String, ResponseCookie> getCookies() {
+            return CollectionUtils.unmodifiableMultiValueMap(new LinkedMultiValueMap<>());
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public Flux<DataBuffer> getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide budget of the bytes held by shadow requests in flight, from the capture of their body until every host was sent to. It is a
+ * byte semaphore updated with compare-and-set, acquiring never blocks: once the budget is used up, requests are simply not shadowed.
+ *
+ * A single instance is shared by the filter charging it and the metrics reading it, the auto-configuration declares it as a bean.
+ */
+public final class InFlightBudget {
+    
+    /**
+     * Budget used by the filters and metrics built without one, so they still share a single budget across the application.
+     */
+    static final InFlightBudget DEFAULT = new InFlightBudget();
+    
+    private final AtomicLong usedBytes = new AtomicLong();
+    
+    /**
+     * @param bytes number of bytes to acquire
+     * @param maxBytes size of the budget, the bytes are only accounted for if it is 0 or less
+     * @return true if the bytes were acquired and must be released, false if they would exceed the budget
+     */
+    boolean tryAcquire(long bytes, long maxBytes) {
+        if (bytes <= 0) {
+            return true;
+        }
+        for (;;) {
+            long used = usedBytes.get();
+            long next = used + bytes;
+            if (maxBytes > 0 && next > maxBytes) {
+                return false;
+            }
+            if (usedBytes.compareAndSet(used, next)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * @param bytes number of bytes acquired before
+     */
+    void release(long bytes) {
+        if (bytes > 0) {
+            usedBytes.addAndGet(-bytes);
+        }
+    }
+    
+    /**
+     * @return number of bytes currently acquired
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+}
@@ -16,6 +16,8 @@
 package com.expediagroup.library.drshadow.springboot;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -23,18 +25,33 @@ import java.util.regex.Pattern;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.Part;
 
+import io.netty.buffer.ByteBufAllocator;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Multipart request, forwarded as the parts the container parsed. The payload is not streamed: once the application is done with the
+ * request, the parts are copied with CRLF line endings into the capture buffer, in memory or spilled to a temporary file, so the body owns
+ * its bytes and the container is free to delete the parts once the request completes. The copy only delays the end of the request, never
+ * its handling by the application. Part headers are written as UTF-8 text, part contents are copied as they are so binary uploads stay
+ * intact.
+ *
  * @author surawat
  */
 public class MultiPartHttpServletRequest extends DrShadowHttpServletRequest {
     
     private static final Logger LOGGER = LoggerFactory.getLogger(MultiPartHttpServletRequest.class);
-    private final Pattern pattern = Pattern.compile("boundary=(.*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BOUNDARY_PATTERN = Pattern.compile("boundary=(?:\"([^\"]+)\"|([^;\\s]+))", Pattern.CASE_INSENSITIVE);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.UTF_8);
+    
+    private final int maxInMemoryBytes;
+    private final int maxBytes;
+    private final ByteBufAllocator allocator;
+    private boolean captured;
+    private ShadowBody body;
+    private boolean oversized;
+    private boolean captureFailed;
 
     /**
      *
@@ -42,46 +59,119 @@ public class MultiPartHttpServletRequest extends DrShadowHttpServletRequest {
      * @throws IOException IOException
      */
     public MultiPartHttpServletRequest(HttpServletRequest request) throws IOException {
+        this(request, CaptureBuffer.MAX_ARRAY_LENGTH, CaptureBuffer.MAX_ARRAY_LENGTH, CaptureBuffer.UNPOOLED);
+    }
+    
+    /**
+     *
+     * @param request Original http servlet request
+     * @param maxInMemoryBytes size above which the payload spills to a memory mapped temporary file
+     * @param maxBytes size above which the payload is not captured and the request not shadowed
+     * @param allocator allocator of the in memory payload
+     * @throws IOException IOException
+     */
+    public MultiPartHttpServletRequest(HttpServletRequest request, int maxInMemoryBytes, int maxBytes, ByteBufAllocator allocator)
+            throws IOException {
         super(request);
+        this.maxInMemoryBytes = maxInMemoryBytes;
+        this.maxBytes = maxBytes;
+        this.allocator = allocator;
+    }
+    
+    /**
+     * Copy the parts into the capture buffer, once. Their content is read on the calling thread, which must complete the request after the
+     * application is done with it and before the container deletes the parts.
+     */
+    @Override
+    boolean finishCapture() throws IOException {
+        if (!captured) {
+            captured = true;
+            capture();
+        }
+        return !oversized && !captureFailed;
+    }
+    
+    /**
+     * @return the rebuilt payload, null until {@link #finishCapture()} completed or if the request has no parts
+     */
+    @Override
+    ShadowBody getBody() {
+        return body;
+    }
+    
+    @Override
+    boolean isCapturedAfterChain() {
+        return true;
+    }
+    
+    @Override
+    boolean isCaptureComplete() {
+        return captured && !oversized && !captureFailed;
+    }
+    
+    @Override
+    boolean isOversized() {
+        return oversized;
+    }
+    
+    @Override
+    boolean isCaptureFailed() {
+        return captureFailed;
     }
     
     @Override
-    String getBody() {
-        String sBody = null;
+    void freeBody() {
+        if (body != null) {
+            body.free();
+        }
+    }
+    
+    private void capture() throws IOException {
         Collection<Part> parts = null;
         try {
             parts = super.getParts();
         } catch (Exception e) {
             LOGGER.warn("Unable to get parts of multipart request for logging", e);
         }
-        if (CollectionUtils.isNotEmpty(parts)) {
-            StringBuilder sb = new StringBuilder();
-            String boundary = extractBoundary(this);
+        String boundary = extractBoundary(this);
+        if (CollectionUtils.isEmpty(parts) || boundary == null) {
+            return;
+        }
+        CaptureBuffer capture = new CaptureBuffer(getContentLengthLong(), maxInMemoryBytes, maxBytes, allocator);
+        try {
             for (Part part : parts) {
-                sb.append("--").append(boundary).append("\n");
-                for (String headerName : part.getHeaderNames()) {
-                    for (String headerValue : part.getHeaders(headerName)) {
-                        sb.append(headerName).append(": ").append(headerValue).append("\n");
-                    }
-                }
-                try {
-                    sb.append(IOUtils.toString(part.getInputStream())).append("\n");
-                } catch (IOException e) {
-                	LOGGER.warn("Exception while getting input stream data", e);
+                capture.write(partHeaders(boundary, part));
+                try (InputStream content = part.getInputStream()) {
+                    capture.readFrom(content);
                 }
+                capture.write(CRLF);
+            }
+            capture.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            capture.discard();
+            throw e;
+        }
+        body = capture.toShadowBody();
+        oversized = capture.isOverflowed();
+        captureFailed = capture.isFailed();
+    }
+    
+    private static byte[] partHeaders(String boundary, Part part) {
+        StringBuilder headers = new StringBuilder("--").append(boundary).append("\r\n");
+        for (String headerName : part.getHeaderNames()) {
+            for (String headerValue : part.getHeaders(headerName)) {
+                headers.append(headerName).append(": ").append(headerValue).append("\r\n");
             }
-            sb.append("--").append(boundary).append("--");
-            sBody = sb.toString();
         }
-        return sBody;
+        return headers.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
     }
     
-    private String extractBoundary(DrShadowHttpServletRequest request) {
+    static String extractBoundary(HttpServletRequest request) {
         String header = request.getHeader("content-type");
         if (header != null) {
-            Matcher matcher = pattern.matcher(header);
+            Matcher matcher = BOUNDARY_PATTERN.matcher(header);
             if (matcher.find()) {
-                return matcher.group(1);
+                return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
             }
         }
         return null;
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+/**
+ * Input stream replaying a body that is already captured, so it can always be read without blocking. A {@link ReadListener} is told about
+ * the data right away from {@link #setReadListener(ReadListener)}: it reads as long as {@link #isReady()} returns true, which is until the
+ * end of the body, and is then told that all the data was read.
+ */
+abstract class ReplayServletInputStream extends ServletInputStream {
+    
+    private ReadListener readListener;
+    private boolean allDataRead;
+    private boolean dispatching;
+    
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+    
+    @Override
+    public void setReadListener(ReadListener readListener) {
+        Objects.requireNonNull(readListener, "readListener");
+        if (this.readListener != null) {
+            throw new IllegalStateException("A ReadListener is already set");
+        }
+        this.readListener = readListener;
+        try {
+            if (!isFinished()) {
+                dispatching = true;
+                try {
+                    readListener.onDataAvailable();
+                } finally {
+                    dispatching = false;
+                }
+            }
+            notifyAllDataRead();
+        } catch (IOException | RuntimeException e) {
+            readListener.onError(e);
+        }
+    }
+    
+    /**
+     * Called by the subclasses after every read, tells the listener, if any, that all the data was read once the end of the body is reached.
+     * Like a container would, it waits for {@link ReadListener#onDataAvailable()} to return first.
+     *
+     * @throws IOException thrown by the listener
+     */
+    void notifyAllDataRead() throws IOException {
+        if (readListener != null && !dispatching && !allDataRead && isFinished()) {
+            allDataRead = true;
+            readListener.onAllDataRead();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import org.springframework.http.HttpMethod;
+
+/**
+ * Suppresses repeats of an identical idempotent shadow request within a time window.
+ *
+ * Fingerprints live in a fixed size direct mapped table: the low bits of the fingerprint select the slot, which packs the high 32 bits of the
+ * fingerprint with the time the request was last let through. A colliding request simply takes the slot over, so the table never grows and
+ * never needs sweeping, at the cost of occasionally letting a repeat through. Slots are updated with compare-and-set.
+ */
+final class RequestDeduplicator {
+
+    private static final Set<HttpMethod> IDEMPOTENT_METHODS = EnumSet.of(HttpMethod.GET, HttpMethod.HEAD, HttpMethod.OPTIONS, HttpMethod.PUT,
+            HttpMethod.DELETE, HttpMethod.TRACE);
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long EMPTY = 0L;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long windowMs;
+    private final LongSupplier nanoClock;
+    private final long origin;
+
+    /**
+     *
+     * @param windowMs window within which repeats are suppressed
+     * @param maxEntries number of slots of the table, rounded up to a power of two
+     * @throws IllegalArgumentException if the window or the number of entries is not positive
+     */
+    RequestDeduplicator(long windowMs, int maxEntries) {
+        this(windowMs, maxEntries, System::nanoTime);
+    }
+
+    RequestDeduplicator(long windowMs, int maxEntries, LongSupplier nanoClock) {
+        if (windowMs <= 0 || maxEntries <= 0 || maxEntries > (1 << 30)) {
+            throw new IllegalArgumentException("Deduplication requires a positive window and between 1 and 2^30 entries but was windowMs="
+                    + windowMs + ", maxEntries=" + maxEntries);
+        }
+        int size = Integer.highestOneBit(maxEntries) == maxEntries ? maxEntries : Integer.highestOneBit(maxEntries) << 1;
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.windowMs = windowMs;
+        this.nanoClock = nanoClock;
+        // slots store the time relative to the origin plus one so that zero always means empty
+        this.origin = nanoClock.getAsLong() - TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @param method HTTP method of the shadow request
+     * @return true if requests with the method can be deduplicated
+     */
+    static boolean isIdempotent(HttpMethod method) {
+        return IDEMPOTENT_METHODS.contains(method);
+    }
+
+    /**
+     * Record the fingerprint and tell whether an identical request was already let through within the window. The window starts at the
+     * request that was let through, so a client polling faster than the window is shadowed once per window.
+     *
+     * @param fingerprint fingerprint of the shadow request
+     * @return true if the request is a repeat and must be suppressed
+     */
+    boolean isDuplicate(long fingerprint) {
+        int index = (int) fingerprint & mask;
+        long tag = fingerprint >>> 32;
+        long now = TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - origin) & 0xffffffffL;
+        for (;;) {
+            long slot = slots.get(index);
+            if (slot != EMPTY && (slot >>> 32) == tag && ((now - slot) & 0xffffffffL) < windowMs) {
+                return true;
+            }
+            if (slots.compareAndSet(index, slot, (tag << 32) | now)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param method HTTP method
+     * @param requestURI request URI
+     * @param queryString query string, may be null
+     * @param headerNames names of the headers taking part in the fingerprint, in a stable order
+     * @param headerValues values of these headers, null when absent
+     * @param body request body, may be null
+     * @return 64 bit fingerprint of the request
+     */
+    static long fingerprint(String method, String requestURI, String queryString, List<String> headerNames, List<String> headerValues, ByteBuffer body) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, method);
+        hash = hash(hash, requestURI);
+        hash = hash(hash, queryString);
+        for (int i = 0; i < headerNames.size(); i++) {
+            hash = hash(hash, headerNames.get(i));
+            hash = hash(hash, headerValues.get(i));
+        }
+        hash = hash(hash, body);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        long h = hash;
+        if (value == null) {
+            // distinguishes a missing value from an empty one
+            return (h ^ 0xff) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // field separator so that "ab" + "c" differs from "a" + "bc"
+        return (h ^ 0xfe) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, ByteBuffer value) {
+        long h = hash;
+        if (value == null) {
+            return (h ^ 0xff) * FNV_PRIME;
+        }
+        for (int i = value.position(); i < value.limit(); i++) {
+            h = (h ^ (value.get(i) & 0xff)) * FNV_PRIME;
+        }
+        return (h ^ 0xfe) * FNV_PRIME;
+    }
+}
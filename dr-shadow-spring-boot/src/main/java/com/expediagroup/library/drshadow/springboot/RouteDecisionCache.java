@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded LRU cache of the URI level route matching decision keyed by HTTP method and request URI. Header patterns are not part of the
+ * cached decision and still have to be evaluated for every request.
+ *
+ * The cache is split in segments, each one a small access ordered map guarded by its own lock. It belongs to a single
+ * {@link CompiledShadowTrafficConfig} so a new configuration snapshot always starts with an empty cache.
+ *
+ * When the cache is full and the hit percentage over the last window of lookups stays under the configured minimum, the request URIs have too
+ * many distinct values (ids in the path for example) for caching to help and the cache turns itself off.
+ */
+public final class RouteDecisionCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RouteDecisionCache.class);
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxSize;
+    private final int minHitPercentage;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder windowHits = new LongAdder();
+    private final LongAdder windowEvictions = new LongAdder();
+    private final AtomicLong windowMisses = new AtomicLong();
+    private volatile boolean disabled;
+
+    /**
+     *
+     * @param maxSize maximum number of cached decisions
+     * @param minHitPercentage hit percentage under which a full cache turns itself off
+     */
+    RouteDecisionCache(int maxSize, int minHitPercentage) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Route cache max size must be positive but was " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.minHitPercentage = minHitPercentage;
+        int segmentSize = Math.max(1, maxSize / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize, windowEvictions);
+        }
+    }
+
+    /**
+     * @param method HTTP method of the request
+     * @param path request URI
+     * @return the cached decision or null if it must be computed
+     */
+    int[] get(String method, String path) {
+        if (disabled) {
+            return null;
+        }
+        Key key = new Key(method, path);
+        int[] routes = segmentFor(key).get(key);
+        if (routes != null) {
+            hits.increment();
+            windowHits.increment();
+        } else {
+            misses.increment();
+            if (windowMisses.incrementAndGet() % maxSize == 0) {
+                checkCardinality();
+            }
+        }
+        return routes;
+    }
+
+    void put(String method, String path, int[] routes) {
+        if (!disabled) {
+            Key key = new Key(method, path);
+            segmentFor(key).put(key, routes);
+        }
+    }
+
+    private void checkCardinality() {
+        long windowHitCount = windowHits.sumThenReset();
+        long evictions = windowEvictions.sumThenReset();
+        long lookups = windowHitCount + maxSize;
+        // only a cache that is full and still evicting is a sign of cardinality, a cold cache misses too
+        if (evictions > 0 && windowHitCount * 100 < lookups * minHitPercentage) {
+            disabled = true;
+            for (Segment segment : segments) {
+                segment.clear();
+            }
+            LOGGER.warn("Shadow traffic route cache hit rate fell to {}% with {} entries, request URIs have too many distinct values. "
+                    + "Disabling the route cache.", windowHitCount * 100 / lookups, maxSize);
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[key.hashCode() & (SEGMENTS - 1)];
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return true if the cache turned itself off because of a too high request URI cardinality
+     */
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private static final class Segment {
+
+        private final LinkedHashMap<Key, int[]> entries;
+
+        Segment(int maxSize, LongAdder evictions) {
+            this.entries = new LruMap(maxSize, evictions);
+        }
+
+        synchronized int[] get(Key key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(Key key, int[] routes) {
+            entries.put(key, routes);
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Access ordered map evicting its least recently used entry past the maximum size.
+     */
+    private static final class LruMap extends LinkedHashMap<Key, int[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+        private final transient LongAdder evictions;
+
+        LruMap(int maxSize, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+            if (size() > maxSize) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Key {
+
+        private final String method;
+        private final String path;
+        private final int hash;
+
+        Key(String method, String path) {
+            this.method = method;
+            this.path = path;
+            int h = 31 * (method != null ? method.hashCode() : 0) + path.hashCode();
+            this.hash = h ^ (h >>> 16);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && path.equals(other.path) && (method != null ? method.equals(other.method) : other.method == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.expediagroup.library.drshadow.springboot.CompiledShadowTrafficConfig.CompiledInclusionPattern;
+
+/**
+ * Indexes the compiled inclusion patterns so matching a request URI does not evaluate every pattern one after another.
+ *
+ * Patterns are bucketed by HTTP method. Within a bucket, fully literal patterns are looked up in a hash map, patterns starting with a literal
+ * prefix are indexed in a character trie and only evaluated when the request URI walks through their prefix, and the remaining regexes are
+ * merged into a single alternation so they are evaluated by one matcher. The hash map and the trie cost the same whatever the number of
+ * patterns, the alternation does not: java.util.regex backtracks through it alternative by alternative, so patterns without a literal prefix
+ * still cost in proportion to their number, only with less overhead than matching them one by one.
+ *
+ * The result is identical to evaluating every inclusion pattern in configuration order.
+ */
+final class RouteMatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RouteMatcher.class);
+    private static final String REGEX_META_CHARACTERS = "\\[](){}.*+?^$|";
+
+    static final int[] NO_ROUTES = new int[0];
+
+    private final List<CompiledInclusionPattern> routes;
+    private final Map<String, MethodIndex> indexByMethod = new HashMap<>();
+    private final MethodIndex allMethodsIndex;
+
+    RouteMatcher(List<CompiledInclusionPattern> routes) {
+        this.routes = routes;
+
+        Set<String> methods = new LinkedHashSet<>();
+        for (CompiledInclusionPattern route : routes) {
+            if (route.getMethod() != null) {
+                methods.add(route.getMethod());
+            }
+        }
+        for (String method : methods) {
+            indexByMethod.put(method, new MethodIndex(method));
+        }
+        this.allMethodsIndex = new MethodIndex(null);
+    }
+
+    /**
+     * Find the inclusion patterns matching the request method and URI, in configuration order. Matching stops at the first pattern without
+     * header patterns since no later pattern can change the outcome.
+     *
+     * @param method HTTP method of the request
+     * @param path request URI
+     * @return indexes of the matching inclusion patterns, never null
+     */
+    int[] match(String method, String path) {
+        if (path == null || routes.isEmpty()) {
+            return NO_ROUTES;
+        }
+        return indexFor(method).match(path);
+    }
+
+    private MethodIndex indexFor(String method) {
+        if (method == null) {
+            return allMethodsIndex;
+        }
+        MethodIndex index = indexByMethod.get(method);
+        if (index == null) {
+            String upperCaseMethod = method.toUpperCase(Locale.ROOT);
+            if (!upperCaseMethod.equals(method)) {
+                index = indexByMethod.get(upperCaseMethod);
+            }
+        }
+        return index != null ? index : allMethodsIndex;
+    }
+
+    /**
+     * All the patterns applying to a single HTTP method, including the ones configured for all methods.
+     */
+    private final class MethodIndex {
+
+        private final Map<String, int[]> exactRoutes = new HashMap<>();
+        private final TrieNode prefixRoutes = new TrieNode();
+        private final int[] individualRoutes;
+        private final int[] combinedRoutes;
+        private final int[] combinedGroups;
+        private final Pattern combinedPattern;
+
+        MethodIndex(String method) {
+            Map<String, List<Integer>> exact = new HashMap<>();
+            TrieBuilder trie = new TrieBuilder();
+            List<Integer> individual = new ArrayList<>();
+            List<Integer> combined = new ArrayList<>();
+            List<Integer> groups = new ArrayList<>();
+            StringBuilder alternation = new StringBuilder();
+            int nextGroup = 1;
+
+            for (int id = 0; id < routes.size(); id++) {
+                CompiledInclusionPattern route = routes.get(id);
+                if (route.getMethod() != null && !route.getMethod().equals(method)) {
+                    continue;
+                }
+
+                String regex = route.getRequestURI().pattern();
+                LiteralPrefix literalPrefix = LiteralPrefix.of(regex);
+                if (literalPrefix.isExact()) {
+                    exact.computeIfAbsent(literalPrefix.getPrefix(), key -> new ArrayList<>()).add(id);
+                } else if (!literalPrefix.getPrefix().isEmpty()) {
+                    trie.add(literalPrefix.getPrefix(), id);
+                } else if (isCombinable(regex)) {
+                    if (alternation.length() > 0) {
+                        alternation.append('|');
+                    }
+                    alternation.append('(').append(regex).append(')');
+                    combined.add(id);
+                    groups.add(nextGroup);
+                    nextGroup += 1 + route.getRequestURI().matcher("").groupCount();
+                } else {
+                    individual.add(id);
+                }
+            }
+
+            for (Map.Entry<String, List<Integer>> entry : exact.entrySet()) {
+                exactRoutes.put(entry.getKey(), toArray(entry.getValue()));
+            }
+            trie.freeze(prefixRoutes);
+
+            Pattern pattern = null;
+            if (!combined.isEmpty()) {
+                try {
+                    pattern = Pattern.compile(alternation.toString());
+                } catch (PatternSyntaxException pse) {
+                    LOGGER.warn("Unable to combine inclusion patterns, falling back to evaluating them one by one", pse);
+                    individual.addAll(combined);
+                    individual.sort(null);
+                    combined.clear();
+                    groups.clear();
+                }
+            }
+            this.combinedPattern = pattern;
+            this.combinedRoutes = toArray(combined);
+            this.combinedGroups = toArray(groups);
+            this.individualRoutes = toArray(individual);
+        }
+
+        int[] match(String path) {
+            int[] exact = exactRoutes.get(path);
+            int[] candidates = exact != null ? merge(individualRoutes, exact) : individualRoutes;
+
+            TrieNode node = prefixRoutes;
+            for (int i = 0; i < path.length() && node != null; i++) {
+                node = node.child(path.charAt(i));
+                if (node != null) {
+                    candidates = merge(candidates, node.routes);
+                }
+            }
+
+            int combinedFirst = combinedFirstMatch(path);
+            if (combinedFirst >= 0) {
+                candidates = merge(candidates, new int[]{combinedFirst});
+                if (routes.get(combinedFirst).isConditional()) {
+                    // The first combined match may still be rejected on headers so the later combined patterns are needed too
+                    candidates = merge(candidates, tail(combinedRoutes, combinedFirst));
+                }
+            }
+
+            if (candidates.length == 0) {
+                return NO_ROUTES;
+            }
+
+            int[] matched = new int[candidates.length];
+            int count = 0;
+            for (int id : candidates) {
+                CompiledInclusionPattern route = routes.get(id);
+                boolean known = id == combinedFirst || (exact != null && Arrays.binarySearch(exact, id) >= 0);
+                if (known || route.matchesRequestURI(path)) {
+                    matched[count++] = id;
+                    if (!route.isConditional()) {
+                        break;
+                    }
+                }
+            }
+            return count == 0 ? NO_ROUTES : Arrays.copyOf(matched, count);
+        }
+
+        private int combinedFirstMatch(String path) {
+            if (combinedPattern == null) {
+                return -1;
+            }
+            Matcher matcher = combinedPattern.matcher(path);
+            if (!matcher.matches()) {
+                return -1;
+            }
+            for (int i = 0; i < combinedGroups.length; i++) {
+                if (matcher.start(combinedGroups[i]) >= 0) {
+                    return combinedRoutes[i];
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static int[] tail(int[] sorted, int after) {
+        int index = Arrays.binarySearch(sorted, after);
+        int from = index >= 0 ? index + 1 : -index - 1;
+        return Arrays.copyOfRange(sorted, from, sorted.length);
+    }
+
+    /**
+     * Merge two sorted arrays of route ids, dropping duplicates.
+     */
+    private static int[] merge(int[] left, int[] right) {
+        if (right.length == 0) {
+            return left;
+        }
+        if (left.length == 0) {
+            return right;
+        }
+        int[] merged = new int[left.length + right.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < left.length || j < right.length) {
+            int next;
+            if (j >= right.length || (i < left.length && left[i] <= right[j])) {
+                next = left[i++];
+            } else {
+                next = right[j++];
+            }
+            if (count == 0 || merged[count - 1] != next) {
+                merged[count++] = next;
+            }
+        }
+        return count == merged.length ? merged : Arrays.copyOf(merged, count);
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Back references and named groups would be renumbered or clash once merged, and inline flags could leak into the other alternatives.
+     */
+    static boolean isCombinable(String regex) {
+        for (int i = 0; i < regex.length() - 1; i++) {
+            char c = regex.charAt(i);
+            char next = regex.charAt(i + 1);
+            if (c == '\\' && (Character.isDigit(next) || next == 'k')) {
+                return false;
+            }
+            if (c == '(' && next == '?' && i + 2 < regex.length() && Character.isLetter(regex.charAt(i + 2))) {
+                return false;
+            }
+            if (c == '(' && next == '?' && regex.startsWith("(?<", i) && i + 3 < regex.length() && Character.isLetter(regex.charAt(i + 3))) {
+                return false;
+            }
+            if (c == '\\') {
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The literal text every URI matching a regex must start with. Anything the analysis does not understand ends the prefix, so the prefix
+     * is always safe to use as a pre-filter.
+     */
+    static final class LiteralPrefix {
+
+        private final String prefix;
+        private final boolean exact;
+
+        private LiteralPrefix(String prefix, boolean exact) {
+            this.prefix = prefix;
+            this.exact = exact;
+        }
+
+        static LiteralPrefix of(String regex) {
+            if (hasTopLevelAlternation(regex)) {
+                return new LiteralPrefix("", false);
+            }
+
+            StringBuilder prefix = new StringBuilder();
+            int i = regex.startsWith("^") ? 1 : 0;
+            while (i < regex.length()) {
+                char c = regex.charAt(i);
+                char literal;
+                int length;
+                if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    literal = regex.charAt(i + 1);
+                    length = 2;
+                } else if (c == '$' && i == regex.length() - 1) {
+                    return new LiteralPrefix(prefix.toString(), true);
+                } else if (REGEX_META_CHARACTERS.indexOf(c) >= 0) {
+                    return new LiteralPrefix(prefix.toString(), false);
+                } else {
+                    literal = c;
+                    length = 1;
+                }
+
+                int next = i + length;
+                if (next < regex.length() && "?*{".indexOf(regex.charAt(next)) >= 0) {
+                    // the literal is optional or repeated, it can't be part of the prefix
+                    return new LiteralPrefix(prefix.toString(), false);
+                }
+                prefix.append(literal);
+                if (next < regex.length() && regex.charAt(next) == '+') {
+                    return new LiteralPrefix(prefix.toString(), false);
+                }
+                i = next;
+            }
+            return new LiteralPrefix(prefix.toString(), true);
+        }
+
+        private static boolean hasTopLevelAlternation(String regex) {
+            int groupDepth = 0;
+            int classDepth = 0;
+            for (int i = 0; i < regex.length(); i++) {
+                char c = regex.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                        // quoted sections are not worth parsing, be conservative
+                        return true;
+                    }
+                    i++;
+                } else if (c == '[') {
+                    classDepth++;
+                } else if (c == ']' && classDepth > 0) {
+                    classDepth--;
+                } else if (classDepth == 0 && c == '(') {
+                    groupDepth++;
+                } else if (classDepth == 0 && c == ')') {
+                    groupDepth--;
+                } else if (classDepth == 0 && groupDepth == 0 && c == '|') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String getPrefix() {
+            return prefix;
+        }
+
+        /**
+         * @return true if the regex only matches its prefix
+         */
+        boolean isExact() {
+            return exact;
+        }
+    }
+
+    /**
+     * Immutable trie node, children are kept sorted by character for a binary search lookup.
+     */
+    private static final class TrieNode {
+
+        private char[] keys = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        private int[] routes = NO_ROUTES;
+
+        TrieNode child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+    }
+
+    private static final class TrieBuilder {
+
+        private final TreeMap<Character, TrieBuilder> children = new TreeMap<>();
+        private final List<Integer> routes = new ArrayList<>();
+
+        void add(String prefix, int id) {
+            TrieBuilder node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), key -> new TrieBuilder());
+            }
+            node.routes.add(id);
+        }
+
+        void freeze(TrieNode node) {
+            node.routes = toArray(routes);
+            node.keys = new char[children.size()];
+            node.children = new TrieNode[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, TrieBuilder> entry : children.entrySet()) {
+                node.keys[i] = entry.getKey();
+                node.children[i] = new TrieNode();
+                entry.getValue().freeze(node.children[i]);
+                i++;
+            }
+        }
+    }
+}
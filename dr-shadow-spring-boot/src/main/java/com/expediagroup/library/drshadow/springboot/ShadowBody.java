@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import io.netty.buffer.ByteBuf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Body of a shadowed request, captured once and sent as is to every host. It is held on the heap, in a possibly pooled buffer, or, above the
+ * in memory threshold, in a memory mapped temporary file so that large bodies do not sit on the heap while they wait to be sent.
+ *
+ * The content is shared and read only. The request owning the body frees it once the application and every host are done with it. Only a
+ * {@link BufferedShadowBody} can be viewed as a whole, a streamed body is only ever written to the hosts.
+ */
+abstract class ShadowBody {
+    
+    /**
+     * @return length of the body in bytes, -1 if unknown
+     */
+    abstract long length();
+    
+    /**
+     * @return the body as it is written to one host, the data buffers are only created once subscribed to
+     */
+    abstract Flux<DataBuffer> content();
+    
+    /**
+     * @return completes once the whole body is available to be written, right away unless the body is streamed
+     */
+    Mono<Void> whenComplete() {
+        return Mono.empty();
+    }
+    
+    /**
+     * @return true if the body is written to the hosts while it is read, it can then neither be viewed as a whole nor written twice
+     */
+    boolean isStreamed() {
+        return false;
+    }
+    
+    /**
+     * Give up on the content of one host claimed by {@link #content()} but never subscribed to, its request not being sent. Only a streamed
+     * body queues chunks for a host before it subscribes, it stops queueing them for that host.
+     *
+     * @param content content returned by {@link #content()}
+     */
+    void discard(Flux<DataBuffer> content) {
+    }
+    
+    /**
+     * Give up on writing the body to any host, the snapshot holding it not being sent. Only a streamed body has anything to stop, it no
+     * longer queues the chunks the application reads. The body is still freed once the application and every host are done with it.
+     */
+    void abort() {
+    }
+    
+    /**
+     * Release the resources held by the body. The body must not be read anymore.
+     */
+    void free() {
+    }
+    
+    /**
+     * @param bytes body bytes, not copied
+     * @return heap body over the given bytes
+     */
+    static BufferedShadowBody wrap(byte[] bytes) {
+        return new HeapShadowBody(bytes);
+    }
+    
+    /**
+     * Body held as a whole, on the heap or in a memory mapped file, before it is written to the hosts.
+     */
+    abstract static class BufferedShadowBody extends ShadowBody {
+        
+        private static final DefaultDataBufferFactory DATA_BUFFER_FACTORY = new DefaultDataBufferFactory();
+        
+        /**
+         * @return a new read only view of the whole body
+         */
+        abstract ByteBuffer asByteBuffer();
+        
+        /**
+         * @return a new data buffer over the body to write it to one host, the content is not copied
+         */
+        DataBuffer newDataBuffer() {
+            return DATA_BUFFER_FACTORY.wrap(asByteBuffer());
+        }
+        
+        @Override
+        Flux<DataBuffer> content() {
+            return Flux.defer(() -> Flux.just(newDataBuffer()));
+        }
+    }
+    
+    static final class HeapShadowBody extends BufferedShadowBody {
+        
+        private final byte[] bytes;
+        
+        HeapShadowBody(byte[] bytes) {
+            this.bytes = bytes;
+        }
+        
+        @Override
+        long length() {
+            return bytes.length;
+        }
+        
+        @Override
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+    }
+    
+    /**
+     * Body held in a reference counted buffer, pooled or not. Every host is written a retained duplicate released by Netty once written, the
+     * buffer goes back to its pool when the last of them and the request owning the body are done with it.
+     */
+    static final class ByteBufShadowBody extends BufferedShadowBody {
+        
+        private final ByteBuf buffer;
+        
+        ByteBufShadowBody(ByteBuf buffer) {
+            this.buffer = buffer;
+        }
+        
+        @Override
+        long length() {
+            return buffer.readableBytes();
+        }
+        
+        @Override
+        ByteBuffer asByteBuffer() {
+            return buffer.nioBuffer(buffer.readerIndex(), buffer.readableBytes()).asReadOnlyBuffer();
+        }
+        
+        @Override
+        DataBuffer newDataBuffer() {
+            return new NettyDataBufferFactory(buffer.alloc()).wrap(buffer.retainedDuplicate());
+        }
+        
+        ByteBuf getBuffer() {
+            return buffer;
+        }
+        
+        @Override
+        void free() {
+            buffer.release();
+        }
+    }
+    
+    /**
+     * Body spilled to a temporary file mapped in memory. The pages are read by the kernel when the body is sent, not copied on the heap.
+     */
+    static final class MappedShadowBody extends BufferedShadowBody {
+        
+        private static final Logger LOGGER = LoggerFactory.getLogger(MappedShadowBody.class);
+        
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        
+        MappedShadowBody(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+        
+        @Override
+        long length() {
+            return buffer.capacity();
+        }
+        
+        @Override
+        ByteBuffer asByteBuffer() {
+            return buffer.asReadOnlyBuffer();
+        }
+        
+        Path getFile() {
+            return file;
+        }
+        
+        /**
+         * The mapping itself is released when the buffer is garbage collected, the file can already be deleted on every platform but Windows.
+         */
+        @Override
+        void free() {
+            delete(file);
+        }
+        
+        static void delete(Path file) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to delete shadow traffic body file {}, it will be deleted on exit", file, e);
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.net.URI;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A shadow host as configured, with the base URL its requests are sent to. Hosts are resolved once when the configuration is compiled, a
+ * shadow request only appends its encoded path and query string to the base URL of every host.
+ */
+final class ShadowHost {
+
+    private final String host;
+    private final String baseUrl;
+
+    private ShadowHost(String host, String baseUrl) {
+        this.host = host;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @param host configured host, with or without a scheme
+     * @param ssl true if a host without a scheme uses https
+     * @return the resolved host
+     * @throws IllegalArgumentException if the host is blank or not a valid URL
+     */
+    static ShadowHost of(String host, boolean ssl) {
+        if (StringUtils.isBlank(host)) {
+            throw new IllegalArgumentException("Shadow host must not be blank");
+        }
+        String baseUrl = host.startsWith(ShadowTrafficAdapter.HTTP_PREFIX) || host.startsWith(ShadowTrafficAdapter.HTTPS_PREFIX)
+                ? host : (ssl ? ShadowTrafficAdapter.HTTPS_PREFIX : ShadowTrafficAdapter.HTTP_PREFIX) + host;
+        URI uri;
+        try {
+            uri = URI.create(baseUrl);
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Invalid shadow host configured: " + host, iae);
+        }
+        if (uri.getRawAuthority() == null || uri.getRawQuery() != null || uri.getRawFragment() != null) {
+            throw new IllegalArgumentException("Invalid shadow host configured: " + host);
+        }
+        return new ShadowHost(host, baseUrl);
+    }
+
+    /**
+     * @return the host as configured
+     */
+    String getHost() {
+        return host;
+    }
+
+    /**
+     * @return URL of the host, a host without a scheme uses https unless ssl is disabled
+     */
+    String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * @param encodedPathAndQuery encoded path, query string and fragment of a shadow request
+     * @return URL of the shadow request on this host
+     */
+    URI uri(String encodedPathAndQuery) {
+        return URI.create(baseUrl + encodedPathAndQuery);
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.collections4.CollectionUtils;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Immutable snapshot of a request as it is shadowed: its method, URI, query string, forwarded headers and captured body.
+ *
+ * The snapshot is taken on the request thread once the body is complete and is all the asynchronous shadow traffic sees, so the container
+ * is free to recycle the original request, and delete the parts of a multipart request, as soon as the application is done with it. Only
+ * bodies copied out of the request or streamed from the request thread are accepted. The snapshot holds a reference on the captured body,
+ * which is freed once the application and every host are done with it.
+ */
+public final class ShadowRequest {
+
+    private final String method;
+    private final String requestURI;
+    private final String queryString;
+    private final HttpHeaders headers;
+    private final ShadowBody body;
+    private final Lease lease;
+
+    private ShadowRequest(String method, String requestURI, String queryString, HttpHeaders headers, ShadowBody body, Lease lease) {
+        this.method = method;
+        this.requestURI = requestURI;
+        this.queryString = queryString;
+        this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+        this.body = body;
+        this.lease = lease;
+    }
+
+    /**
+     * Copy what is sent to the hosts out of the request and take a reference on its body. Only the first value of the forwarded headers is
+     * kept. The query string is left out when the body already holds it.
+     *
+     * @param request request wrapper, its body capture must be complete
+     * @param forwardHeaders names of the headers copied, matched case insensitively
+     * @return snapshot of the request, to be released once shadowed
+     * @throws IllegalStateException if the body capture is not complete or the body still reads from the servlet request
+     */
+    static ShadowRequest of(DrShadowHttpServletRequest request, List<String> forwardHeaders) {
+        if (!request.isCaptureComplete()) {
+            throw new IllegalStateException("Body capture of " + request.getRequestURI() + " is not complete, it cannot be shadowed");
+        }
+        ShadowBody body = request.getBody();
+        if (body != null && !body.isStreamed() && !(body instanceof ShadowBody.BufferedShadowBody)) {
+            throw new IllegalStateException("Body of " + request.getRequestURI()
+                    + " still reads from the servlet request, it cannot be shadowed");
+        }
+        HttpHeaders headers = new HttpHeaders();
+        if (CollectionUtils.isNotEmpty(forwardHeaders)) {
+            for (String headerName : forwardHeaders) {
+                String value = request.getHeader(headerName);
+                if (value != null && !headers.containsKey(headerName)) {
+                    headers.add(headerName, value);
+                }
+            }
+        }
+        Lease lease = request.getLease();
+        // From now on the body is freed on its own, the lease must not keep the request reachable
+        lease.freeWith(body != null ? body::free : Lease.NOTHING);
+        lease.retain();
+        return new ShadowRequest(request.getMethod(), request.getRequestURI(), request.isQueryStringInBody() ? null : request.getQueryString(),
+                headers, body, lease);
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getRequestURI() {
+        return requestURI;
+    }
+
+    /**
+     * @return query string sent in the URL, null if none or if the body holds it
+     */
+    public String getQueryString() {
+        return queryString;
+    }
+
+    /**
+     * @return read only forwarded headers
+     */
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return captured body, only valid until the snapshot is released, null if the request has no body
+     */
+    ShadowBody getBody() {
+        return body;
+    }
+
+    /**
+     * Drop the reference of the snapshot on the body, called once every host was sent to.
+     */
+    void release() {
+        lease.release();
+    }
+
+    /**
+     * Drop the reference of a snapshot that is not sent, aborting a streamed body so it stops queueing the chunks the
+     * application still reads.
+     */
+    void discard() {
+        if (body != null) {
+            body.abort();
+        }
+        lease.release();
+    }
+
+    /**
+     * References on the captured body of a request shared by the request wrapper and its snapshot, and the bytes acquired for it from the in
+     * flight budget. The body and the bytes are freed with the last reference.
+     */
+    static final class Lease {
+
+        static final Runnable NOTHING = () -> { };
+
+        private final AtomicInteger references = new AtomicInteger(1);
+        private volatile Runnable free;
+        private volatile InFlightBudget budget;
+        private volatile long budgetBytes;
+
+        /**
+         * @param free frees the body, called with the last reference
+         */
+        Lease(Runnable free) {
+            this.free = free;
+        }
+
+        void freeWith(Runnable free) {
+            this.free = free;
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                free.run();
+                if (budget != null) {
+                    budget.release(budgetBytes);
+                }
+            }
+        }
+
+        /**
+         * Only called from the request thread, before the body is shared.
+         */
+        void charged(InFlightBudget budget, long bytes) {
+            this.budget = budget;
+            this.budgetBytes += bytes;
+        }
+
+        long getChargedBytes() {
+            return budgetBytes;
+        }
+    }
+}
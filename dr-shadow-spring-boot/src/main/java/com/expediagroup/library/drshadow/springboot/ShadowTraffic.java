@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Opt a Spring MVC handler method in to shadow traffic without writing an inclusion pattern.
+ *
+ * Annotated handlers are resolved once at startup from their request mappings, see {@link ShadowTrafficAnnotationResolver}. They take
+ * precedence over the configured inclusion patterns, which still apply to every handler without the annotation.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ShadowTraffic {
+
+    /**
+     * @return percentage of the requests to shadow, the configured drshadow.percentage if negative
+     */
+    int percentage() default -1;
+
+    /**
+     * @return hosts to send the shadow traffic to, the configured drshadow.hosts if empty
+     */
+    String[] hosts() default {};
+}
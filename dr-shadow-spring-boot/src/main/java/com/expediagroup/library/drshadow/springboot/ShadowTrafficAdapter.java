@@ -21,23 +21,27 @@ import org.apache.commons.collections4.MapUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-import javax.servlet.http.HttpServletRequest;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.expediagroup.library.drshadow.springboot.ShadowBody.BufferedShadowBody;
 
 /**
  * ShadowTrafficAdapter invokes the shadow traffic to the configured destination host(s) w/ the exact same incoming request.
@@ -53,12 +57,13 @@ public class ShadowTrafficAdapter {
     protected static final String SHADOW_TRAFFIC_PREFIX_CUSTOM_KEY = "shadow-traffic-";
     protected static final String HTTP_PREFIX = "http://";
     protected static final String HTTPS_PREFIX = "https://";
+    private static final String PLACEHOLDER_URL = "http://shadow";
     private static Logger LOGGER = LoggerFactory.getLogger(ShadowTrafficAdapter.class);
 
-    private WebClient webClient;
+    private ShadowTrafficConnectionPools connectionPools;
     private final String machineName;
     private final ShadowTrafficConfigHelper shadowTrafficConfigHelper;
-    private Random random;
+    private final ShadowTrafficMetrics shadowTrafficMetrics;
 
     /**
      *
@@ -66,38 +71,52 @@ public class ShadowTrafficAdapter {
      * @param machineName Machine name used for adding a header on where the shadow traffic came from
      */
     public ShadowTrafficAdapter(ShadowTrafficConfigHelper shadowTrafficConfigHelper, String machineName) {
-        this.shadowTrafficConfigHelper = shadowTrafficConfigHelper;
-        this.machineName = machineName;
-        this.random = new Random();
-        this.webClient = WebClient.builder().build();
+        this(shadowTrafficConfigHelper, machineName, new ShadowTrafficMetrics());
     }
 
     /**
-     * Only used for unit testing to manipulate the randomization
-     * @param random Random instance for generating random number for tests
+     *
+     * @param shadowTrafficConfigHelper Configuration helper
+     * @param machineName Machine name used for adding a header on where the shadow traffic came from
+     * @param shadowTrafficMetrics Metrics updated for every shadow request
      */
-    protected void setRandom(Random random) {
-        this.random = random;
+    public ShadowTrafficAdapter(ShadowTrafficConfigHelper shadowTrafficConfigHelper, String machineName, ShadowTrafficMetrics shadowTrafficMetrics) {
+        this(shadowTrafficConfigHelper, machineName, shadowTrafficMetrics, new ShadowTrafficConnectionPools(shadowTrafficConfigHelper.getConfig()));
     }
 
     /**
-     * Only used for unit testing
+     *
+     * @param shadowTrafficConfigHelper Configuration helper
+     * @param machineName Machine name used for adding a header on where the shadow traffic came from
+     * @param shadowTrafficMetrics Metrics updated for every shadow request
+     * @param connectionPools Connection pools of the shadow hosts
+     */
+    public ShadowTrafficAdapter(ShadowTrafficConfigHelper shadowTrafficConfigHelper, String machineName, ShadowTrafficMetrics shadowTrafficMetrics,
+            ShadowTrafficConnectionPools connectionPools) {
+        this.shadowTrafficConfigHelper = shadowTrafficConfigHelper;
+        this.machineName = machineName;
+        this.shadowTrafficMetrics = shadowTrafficMetrics;
+        this.connectionPools = connectionPools;
+    }
+
+    /**
+     * Only used for unit testing, every host is sent to with the given client
      * @param webClient
      */
     protected void setWebClient(WebClient webClient) {
-        this.webClient = webClient;
+        this.connectionPools = new ShadowTrafficConnectionPools(1, -1, baseUrl -> webClient);
     }
     
     /**
      * Add custom headers to the shadow traffic
      * 
-     * @param request - original request
+     * @param request - snapshot of the original request, holding the headers to be forwarded
      * @param customHeaders - configured custom headers to send off to shadow traffic
-     * @param forwardOnlyHeaders - headers that need to be forwarded in shadow request
      * @return
      */
-    public HttpHeaders createHeaders(DrShadowHttpServletRequest request, Map<String, String> customHeaders, List<String> forwardOnlyHeaders) {
-        HttpHeaders headers = getHeaders(request, forwardOnlyHeaders);
+    public HttpHeaders createHeaders(ShadowRequest request, Map<String, String> customHeaders) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.addAll(request.getHeaders());
         headers.add(IS_SHADOW_TRAFFIC_KEY, IS_SHADOW_TRAFFIC_VALUE);
         headers.add(SHADOW_TRAFFIC_FROM_KEY, machineName);
 
@@ -112,28 +131,6 @@ public class ShadowTrafficAdapter {
         return headers;
     }
     
-    private HttpHeaders getHeaders(DrShadowHttpServletRequest request, List<String> forwardOnlyHeaders) {
-        HttpHeaders headers = new HttpHeaders();
-
-        if (CollectionUtils.isEmpty(forwardOnlyHeaders)) {
-            // if no specific headers to be forwarded, we can skip processing further
-            return headers;
-        }
-
-        // match the request headers with configured headers that need to be forwarded
-        Enumeration<?> headerNames = request.getHeaderNames();
-        while (headerNames != null && headerNames.hasMoreElements()) {
-            String key = (String) headerNames.nextElement();
-            String value = request.getHeader(key);
-            if (CollectionUtils.isNotEmpty(forwardOnlyHeaders) &&
-                    forwardOnlyHeaders.stream().anyMatch(key::equalsIgnoreCase)) {
-                headers.add(key, value);
-            }
-        }
-
-        return headers;
-    }
-
     private void addContentTypeUtf8CharsetIfNotSet(HttpHeaders headers) {
         if (MediaType.APPLICATION_JSON.equals(headers.getContentType())) {
             headers.remove(HttpHeaders.CONTENT_TYPE);
@@ -142,98 +139,265 @@ public class ShadowTrafficAdapter {
     }
     
     /**
-     * Asynchronously execute the shadow traffic of the exact same incoming HTTP request. For now, we don't know how to deal w/ body POSTs. This should only be
-     * used for GETs w/ query parameters.
+     * Execute the shadow traffic of the exact same incoming HTTP request, called from the {@link ShadowTrafficDispatcher} threads. The requests
+     * to the hosts are sent asynchronously, this returns once they are all started.
      *
      * Note that this library will not throw ANY exceptions. So it is safe to assume it is resilient.
      *
-     * Note that every call to ShadowTrafficRequestWrapper must be a copy of the original request or there is a race condition that causes the values to
-     * disappear when the original request is completed.
+     * Only the snapshot of the request is used, the original request may already be recycled by the container when this runs. The adapter
+     * owns the reference of the snapshot on the body and releases it once every host was sent to, freeing the captured body.
      *
-     * @param drShadowHttpServletRequest - Initial incoming request configured to invoke shadow traffic
-     * @param originalHttpServletRequest  - Original http servlet request
+     * @param shadowRequest - Snapshot of the incoming request taken once its body was captured
+     * @param shadowTrafficPolicy - Hosts and headers of the route the request matched, the percentage is already applied by the filter
      */
-    @Async("shadowTrafficTaskExecutor")
-    public void invokeShadowTraffic(DrShadowHttpServletRequest drShadowHttpServletRequest, HttpServletRequest originalHttpServletRequest) {
+    public void invokeShadowTraffic(ShadowRequest shadowRequest, ShadowTrafficPolicy shadowTrafficPolicy) {
         
-    	boolean isFormEncodedRequest = false;
+    	// The reference on the body handed over by the filter, released once every host was sent to
+    	boolean released = false;
         
         try {
 
             ShadowTrafficConfig shadowTrafficConfig = shadowTrafficConfigHelper.getConfig();
-            List<ListenableFuture<ResponseEntity<String>>> futures = new ArrayList<>();
 
-            // Check whether shadow traffic is enabled and also generate a random number to see if it falls within percentage
-            if (shadowTrafficConfig != null && (random.nextInt(100) + 1) <= shadowTrafficConfig.getPercentage()) {
+            // The filter only hands over the requests sampled within the percentage
+            if (shadowTrafficConfig != null && shadowTrafficPolicy != null) {
 
-                if (drShadowHttpServletRequest == null) {
-                    LOGGER.error("DrShadowHttpServletRequest is null. Shadow traffic will not be invoked.");
-                    return;
-                }
-                if (originalHttpServletRequest == null) {
-                    LOGGER.error("Original HttpServletRequest is null. Shadow traffic will not be invoked.");
+                if (shadowRequest == null) {
+                    LOGGER.error("ShadowRequest is null. Shadow traffic will not be invoked.");
                     return;
                 }
 
-                HttpMethod drShadowRequestHttpMethod = HttpMethod.resolve(drShadowHttpServletRequest.getMethod());
-                if (drShadowRequestHttpMethod == null) {
-                    LOGGER.error("Shadow traffic was configured to be ON skipping shadow since the httpMethod for drShadowRequest is invalid. The original request HttpMethod is: {} and URI is: {}",
-                            originalHttpServletRequest.getMethod(),
-                            originalHttpServletRequest.getRequestURI());
+                HttpMethod shadowRequestHttpMethod = HttpMethod.resolve(shadowRequest.getMethod());
+                if (shadowRequestHttpMethod == null) {
+                    LOGGER.error("Shadow traffic was configured to be ON skipping shadow since the httpMethod for shadowRequest is invalid. The original request HttpMethod is: {} and URI is: {}",
+                            shadowRequest.getMethod(),
+                            shadowRequest.getRequestURI());
                     return;
                 }
 
-                List<String> hosts = shadowTrafficConfig.getHosts();
+                List<String> hosts = shadowTrafficPolicy.getHosts();
 
                 if (CollectionUtils.isEmpty(hosts)) {
                     LOGGER.error("Shadow traffic was configured to be ON but no hosts specified, so no shadow requests are sent.");
                     return;
                 }
 
+                // The body is captured once and shared by every host, it is sent as is without any charset conversion
+                ShadowBody body = shadowRequest.getBody();
+
+                if (isDuplicate(shadowRequest, shadowRequestHttpMethod, shadowTrafficPolicy, body)) {
+                    shadowTrafficMetrics.recordSuppressed();
+                    LOGGER.debug("Suppressing duplicate shadow traffic for {} {}", shadowRequestHttpMethod, shadowRequest.getRequestURI());
+                    return;
+                }
+
+                // The path, query string and headers are the same for every host, only the base URL of the host changes
+                String pathAndQuery = encodedPathAndQuery(shadowRequest);
+                HttpHeaders headers = createHeaders(shadowRequest, shadowTrafficPolicy.getCustomHeaders());
+                if (body != null && body.length() >= 0) {
+                    headers.setContentLength(body.length());
+                }
+
+                CompiledShadowTrafficConfig compiledConfig = shadowTrafficConfigHelper.getCompiledConfig();
+                List<Mono<Void>> sends = new ArrayList<>(hosts.size());
                 for (String host : hosts) {
 
                     if (StringUtils.isBlank(host)) {
                         LOGGER.warn("Shadow traffic is enabled but no host specified!!!");
+                        if (body != null) {
+                            // the stream of a streamed body is claimed host by host, the blank host must not keep queueing its share
+                            body.discard(body.content());
+                        }
                         continue;
                     }
 
-                    StringBuilder sb = new StringBuilder();
-
-                    if (host.contains(HTTP_PREFIX)) {
-                        sb.append(host).append(drShadowHttpServletRequest.getRequestURI());
-                    } else {
-                        sb.append(HTTPS_PREFIX).append(host).append(drShadowHttpServletRequest.getRequestURI());
+                    ShadowHost shadowHost = compiledConfig != null ? compiledConfig.getShadowHost(host) : null;
+                    if (shadowHost == null) {
+                        shadowHost = ShadowHost.of(host, shadowTrafficConfig.isSsl());
                     }
+                    URI shadowUrl = shadowHost.uri(pathAndQuery);
 
-                    if (drShadowHttpServletRequest instanceof FormUrlEncodedHttpServletRequest) {
-                        isFormEncodedRequest = true;
-                    }
+                    LOGGER.debug("Forwarding shadow traffic url: {} to host: {}", shadowUrl, host);
 
-                    if (StringUtils.isNotBlank(drShadowHttpServletRequest.getQueryString()) && !isFormEncodedRequest) { // we don't need to send the query param in URL for form
-                        // encodes as it is posted as body
-                        sb.append("?").append(drShadowHttpServletRequest.getQueryString());
+                    ShadowTrafficConnectionPools.HostPool pool = connectionPools.get(shadowHost.getBaseUrl());
+                    WebClient.RequestBodySpec request = pool.getWebClient()
+                            .method(shadowRequestHttpMethod)
+                            .uri(shadowUrl)
+                            .headers(httpHeaders -> httpHeaders.addAll(headers));
+                    WebClient.RequestHeadersSpec<?> spec = request;
+                    Flux<DataBuffer> content = null;
+                    if (body != null) {
+                        // Every host gets its own view of the shared body, created only once the connection is there to write it
+                        content = body.content();
+                        spec = request.body(BodyInserters.fromDataBuffers(content));
                     }
+                    sends.add(send(spec, host, pool, shadowTrafficConfig, body, content));
+                }
 
-                    // Decode the URL since we encode it again when constructing the URI again
-                    String urlDecodedStr = URLDecoder.decode(sb.toString(), CharEncoding.UTF_8);
+                if (!sends.isEmpty()) {
+                    Mono.when(sends)
+                            .doFinally(signal -> shadowRequest.release())
+                            .subscribe();
+                    released = true;
+                }
+            }
+        } catch (Exception ex) {
+            LOGGER.warn("Invoking shadow traffic failed", ex);
+        } finally {
+            if (!released && shadowRequest != null) {
+                shadowRequest.discard();
+            }
+        }
 
-                    // Building the URL here will URL encode the query parameters
-                    UriComponentsBuilder uriCompBuilder = UriComponentsBuilder.fromHttpUrl(urlDecodedStr);
-                    URI shadowUrl = uriCompBuilder.build().toUri();
+    }
 
-                    LOGGER.info("Forwarding shadow traffic url: {} to host: {}", shadowUrl, host);
+    /**
+     * Encode the path and query string of the request once for every host. The request URI and query string are decoded first since they
+     * are encoded again when building the URI, they are parsed the same way as a full URL against a placeholder host.
+     *
+     * @return encoded path, query string and fragment to append to the base URL of a host
+     */
+    static String encodedPathAndQuery(ShadowRequest shadowRequest) throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder(PLACEHOLDER_URL).append(shadowRequest.getRequestURI());
 
-                    webClient
-                            .method(drShadowRequestHttpMethod)
-                            .uri(shadowUrl)
-                            .headers(createHeaders(drShadowHttpServletRequest, shadowTrafficConfig.getCustomHeaders(), shadowTrafficConfig.getForwardHeaders())::addAll)
-                            .syncBody(drShadowHttpServletRequest.getBody())
-                            .retrieve();
+        // the snapshot leaves the query string out when a re-encoded form body already holds it
+        if (StringUtils.isNotBlank(shadowRequest.getQueryString())) {
+            sb.append("?").append(shadowRequest.getQueryString());
+        }
+
+        String urlDecodedStr = URLDecoder.decode(sb.toString(), CharEncoding.UTF_8);
+
+        // Building the URL here will URL encode the query parameters
+        URI uri = UriComponentsBuilder.fromHttpUrl(urlDecodedStr).build().toUri();
+        StringBuilder pathAndQuery = new StringBuilder(StringUtils.defaultString(uri.getRawPath()));
+        if (uri.getRawQuery() != null) {
+            pathAndQuery.append('?').append(uri.getRawQuery());
+        }
+        if (uri.getRawFragment() != null) {
+            pathAndQuery.append('#').append(uri.getRawFragment());
+        }
+        return pathAndQuery.toString();
+    }
+
+    /**
+     * Read the response body to its end, releasing the buffers. Unlike {@code bodyToMono(Void.class)}, which cancels the read, a fully
+     * read response lets the connection go back to the pool instead of being closed.
+     */
+    private static Mono<Void> drain(Flux<DataBuffer> body) {
+        return body.doOnNext(DataBufferUtils::release).then();
+    }
+
+    /**
+     * The response is dropped without being decoded, whatever its status: its body is drained, or not read at all with the
+     * {@code STATUS_ONLY} response mode. A failure is only logged so it does not cancel the other hosts. A streamed body is written as
+     * fast as the application reads it, the timeout only starts once it was read entirely. The request is dropped if too many requests to
+     * the host already wait for a connection, its content is then discarded.
+     */
+    private Mono<Void> send(WebClient.RequestHeadersSpec<?> spec, String host, ShadowTrafficConnectionPools.HostPool pool,
+            ShadowTrafficConfig shadowTrafficConfig, ShadowBody body, Flux<DataBuffer> content) {
+        boolean statusOnly = shadowTrafficConfig.getHttpResponseMode() == ShadowTrafficConfig.HttpResponseMode.STATUS_ONLY;
+        Mono<Void> send = spec.exchange().flatMap(response -> {
+            if (response.rawStatusCode() >= 400) {
+                LOGGER.debug("Shadow traffic to host {} answered with status {}", host, response.rawStatusCode());
+            }
+            // bodyToMono(Void.class) cancels the read of the body right away, releasing whatever was already received
+            return statusOnly ? response.bodyToMono(Void.class) : drain(response.bodyToFlux(DataBuffer.class));
+        });
+        int timeoutMs = shadowTrafficConfig.getHttpConnectionTimeoutMs() + shadowTrafficConfig.getHttpReadTimeoutMs();
+        if (timeoutMs > 0) {
+            Duration timeout = Duration.ofMillis(timeoutMs);
+            send = body != null && body.isStreamed() ? send.timeout(body.whenComplete().then(Mono.delay(timeout))) : send.timeout(timeout);
+        }
+        Mono<Void> pooledSend = send.onErrorResume(ex -> {
+            LOGGER.debug("Shadow traffic to host {} failed", host, ex);
+            if (content != null) {
+                // a request failing before its body was written, to connect for one, never subscribes to it
+                body.discard(content);
+            }
+            return Mono.empty();
+        });
+        return Mono.defer(() -> {
+            if (!pool.tryAcquire()) {
+                shadowTrafficMetrics.recordPoolRejected();
+                if (content != null) {
+                    body.discard(content);
                 }
+                LOGGER.debug("Too many shadow requests waiting for a connection to host {}, dropping the shadow request", host);
+                return Mono.empty();
             }
-        } catch (Exception ex) {
-            LOGGER.warn("Invoking shadow traffic failed", ex);
+            return pooledSend.doFinally(signal -> pool.release());
+        });
+    }
+
+    /**
+     * Open the connections to every configured host ahead of the first shadow requests so they don't pay for the TCP and TLS handshakes.
+     * Every host gets as many concurrent {@code OPTIONS} requests as it keeps connections, their responses are dropped. Returns right away,
+     * the connections are opened in the background.
+     */
+    public void warmUp() {
+        ShadowTrafficConfig shadowTrafficConfig = shadowTrafficConfigHelper.getConfig();
+        CompiledShadowTrafficConfig compiledConfig = shadowTrafficConfigHelper.getCompiledConfig();
+        if (shadowTrafficConfig == null || compiledConfig == null) {
+            return;
+        }
+        int timeoutMs = shadowTrafficConfig.getHttpConnectionTimeoutMs() + shadowTrafficConfig.getHttpReadTimeoutMs();
+        for (ShadowHost shadowHost : compiledConfig.getShadowHosts()) {
+            String host = shadowHost.getHost();
+            try {
+                URI uri = UriComponentsBuilder.fromHttpUrl(shadowHost.getBaseUrl()).replacePath("/").replaceQuery(null).build().toUri();
+                ShadowTrafficConnectionPools.HostPool pool = connectionPools.get(shadowHost.getBaseUrl());
+                AtomicInteger opened = new AtomicInteger();
+                List<Mono<Void>> opens = new ArrayList<>(pool.getConnections());
+                for (int i = 0; i < pool.getConnections() && pool.tryAcquire(); i++) {
+                    Mono<Void> open = pool.getWebClient()
+                            .options()
+                            .uri(uri)
+                            .header(IS_SHADOW_TRAFFIC_KEY, IS_SHADOW_TRAFFIC_VALUE)
+                            .header(SHADOW_TRAFFIC_FROM_KEY, machineName)
+                            .exchange()
+                            .flatMap(response -> drain(response.bodyToFlux(DataBuffer.class)))
+                            .doOnSuccess(empty -> opened.incrementAndGet());
+                    if (timeoutMs > 0) {
+                        open = open.timeout(Duration.ofMillis(timeoutMs));
+                    }
+                    opens.add(open
+                            .onErrorResume(ex -> {
+                                LOGGER.debug("Warming up a connection to host {} failed", host, ex);
+                                return Mono.empty();
+                            })
+                            .doFinally(signal -> pool.release()));
+                }
+                Mono.when(opens)
+                        .doFinally(signal -> LOGGER.info("Warmed up {} connections to shadow host {}", opened.get(), host))
+                        .subscribe();
+            } catch (Exception ex) {
+                LOGGER.warn("Unable to warm up the connections to shadow host {}", host, ex);
+            }
+        }
+    }
+
+    /**
+     * Fingerprint the request as it will be sent, its method, URI, query string, forwarded headers and body, and check it against the requests
+     * sent within the deduplication window. Only idempotent requests are ever suppressed.
+     */
+    private boolean isDuplicate(ShadowRequest request, HttpMethod method, ShadowTrafficPolicy shadowTrafficPolicy, ShadowBody body) {
+        CompiledShadowTrafficConfig compiledConfig = shadowTrafficConfigHelper.getCompiledConfig();
+        RequestDeduplicator requestDeduplicator = compiledConfig != null ? compiledConfig.getRequestDeduplicator() : null;
+        // a streamed body is not known before it is sent
+        if (requestDeduplicator == null || !RequestDeduplicator.isIdempotent(method) || (body != null && !(body instanceof BufferedShadowBody))) {
+            return false;
         }
 
+        List<String> headerNames = shadowTrafficPolicy.getForwardHeaders();
+        List<String> headerValues = new ArrayList<>(headerNames.size());
+        for (String headerName : headerNames) {
+            headerValues.add(request.getHeaders().getFirst(headerName));
+        }
+        return requestDeduplicator.isDuplicate(RequestDeduplicator.fingerprint(method.name(), request.getRequestURI(), request.getQueryString(),
+                headerNames, headerValues, body != null ? ((BufferedShadowBody) body).asByteBuffer() : null));
+    }
+
+    public ShadowTrafficMetrics getShadowTrafficMetrics() {
+        return shadowTrafficMetrics;
     }
 }
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanFactoryUtils;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.mvc.method.RequestMappingInfo;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+/**
+ * Resolves the {@link ShadowTraffic} annotated handler methods into shadow traffic routes once every singleton, including the Spring MVC
+ * handler mappings, is initialized.
+ *
+ * Each request mapping pattern is translated to an anchored regex prefixed with the servlet context path, so a mapping without path variables
+ * ends up as an exact lookup in the {@link RouteMatcher} and a mapping with path variables is only evaluated for request URIs sharing its literal
+ * prefix.
+ */
+public class ShadowTrafficAnnotationResolver implements ApplicationContextAware, SmartInitializingSingleton {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShadowTrafficAnnotationResolver.class);
+    private static final String REGEX_META_CHARACTERS = "\\[](){}.*+?^$|";
+    private static final String ANY_PATH_SUFFIX = "/**";
+
+    private final ShadowTrafficConfigHelper shadowTrafficConfigHelper;
+    private ApplicationContext applicationContext;
+
+    /**
+     *
+     * @param shadowTrafficConfigHelper Configuration helper the resolved routes are registered with
+     */
+    public ShadowTrafficAnnotationResolver(ShadowTrafficConfigHelper shadowTrafficConfigHelper) {
+        this.shadowTrafficConfigHelper = shadowTrafficConfigHelper;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) {
+        this.applicationContext = applicationContext;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        Map<String, RequestMappingHandlerMapping> handlerMappings =
+                BeanFactoryUtils.beansOfTypeIncludingAncestors(applicationContext, RequestMappingHandlerMapping.class);
+
+        String contextPath = "";
+        if (applicationContext instanceof WebApplicationContext && ((WebApplicationContext) applicationContext).getServletContext() != null) {
+            contextPath = ((WebApplicationContext) applicationContext).getServletContext().getContextPath();
+        }
+
+        List<AnnotatedRoute> annotatedRoutes = resolve(handlerMappings.values(), contextPath);
+        if (!annotatedRoutes.isEmpty()) {
+            shadowTrafficConfigHelper.setAnnotatedRoutes(annotatedRoutes);
+            LOGGER.info("Resolved {} shadow traffic routes from @ShadowTraffic handler methods.", annotatedRoutes.size());
+        }
+    }
+
+    /**
+     * @param handlerMappings Spring MVC handler mappings
+     * @param contextPath servlet context path prepended to every mapping pattern
+     * @return one route per pattern and HTTP method of every annotated handler method
+     */
+    static List<AnnotatedRoute> resolve(Collection<RequestMappingHandlerMapping> handlerMappings, String contextPath) {
+        List<AnnotatedRoute> annotatedRoutes = new ArrayList<>();
+        for (RequestMappingHandlerMapping handlerMapping : handlerMappings) {
+            for (Map.Entry<RequestMappingInfo, HandlerMethod> entry : handlerMapping.getHandlerMethods().entrySet()) {
+                ShadowTraffic shadowTraffic = AnnotatedElementUtils.findMergedAnnotation(entry.getValue().getMethod(), ShadowTraffic.class);
+                if (shadowTraffic == null) {
+                    continue;
+                }
+
+                Set<String> patterns = entry.getKey().getPatternsCondition().getPatterns();
+                List<String> fileExtensions = !handlerMapping.useSuffixPatternMatch() ? Collections.emptyList()
+                        : handlerMapping.useRegisteredSuffixPatternMatch() ? handlerMapping.getFileExtensions() : null;
+                Set<RequestMethod> methods = entry.getKey().getMethodsCondition().getMethods();
+                // a mapping without patterns matches every path
+                for (String pattern : patterns.isEmpty() ? Collections.singleton(ANY_PATH_SUFFIX) : patterns) {
+                    String requestURI = toRegex(contextPath + pattern, fileExtensions, handlerMapping.useTrailingSlashMatch());
+                    if (methods.isEmpty()) {
+                        annotatedRoutes.add(new AnnotatedRoute(requestURI, CompiledShadowTrafficConfig.ALL_METHODS, shadowTraffic));
+                    }
+                    for (RequestMethod method : methods) {
+                        annotatedRoutes.add(new AnnotatedRoute(requestURI, method.name(), shadowTraffic));
+                    }
+                }
+            }
+        }
+        return annotatedRoutes;
+    }
+
+    /**
+     * Translate a request mapping path pattern to an anchored regex, without suffix pattern nor trailing slash matching.
+     *
+     * @param pattern request mapping path pattern
+     * @return regex matching the same request URIs
+     * @throws IllegalArgumentException if a path variable is not closed
+     */
+    static String toRegex(String pattern) {
+        return toRegex(pattern, Collections.emptyList(), false);
+    }
+
+    /**
+     * Translate a request mapping path pattern to an anchored regex. {@code ?} matches one character and {@code *} any characters within a path
+     * segment, {@code **} matches across path segments and {@code {name}} or {@code {name:regex}} matches a path variable.
+     *
+     * Like Spring MVC, a pattern without a dot also matches the request URI followed by a file extension when suffix pattern matching is on,
+     * and a pattern not ending with a slash also matches the request URI followed by one when trailing slash matching is on.
+     *
+     * @param pattern request mapping path pattern
+     * @param fileExtensions extensions matched after the pattern, null for any extension, empty for none
+     * @param trailingSlashMatch true if a trailing slash is matched after the pattern
+     * @return regex matching the same request URIs
+     * @throws IllegalArgumentException if a path variable is not closed
+     */
+    static String toRegex(String pattern, List<String> fileExtensions, boolean trailingSlashMatch) {
+        String path = pattern;
+        boolean anySuffix = false;
+        if (path.endsWith(ANY_PATH_SUFFIX)) {
+            path = path.substring(0, path.length() - ANY_PATH_SUFFIX.length());
+            anySuffix = true;
+        }
+
+        StringBuilder regex = new StringBuilder("^");
+        int i = 0;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '{') {
+                int end = closingBrace(path, i);
+                String variable = path.substring(i + 1, end);
+                int colon = variable.indexOf(':');
+                regex.append(colon < 0 ? "[^/]+" : "(?:" + variable.substring(colon + 1) + ")");
+                i = end + 1;
+            } else if (c == '*' && i + 1 < path.length() && path.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i += 2;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+                i++;
+            } else if (c == '?') {
+                regex.append("[^/]");
+                i++;
+            } else {
+                regex.append(quote(String.valueOf(c)));
+                i++;
+            }
+        }
+
+        if (anySuffix) {
+            regex.append("(?:/.*)?");
+            return regex.append('$').toString();
+        }
+
+        List<String> suffixes = new ArrayList<>();
+        if (pattern.indexOf('.') < 0) {
+            if (fileExtensions == null) {
+                suffixes.add("\\.[^/]*");
+            } else {
+                for (String fileExtension : fileExtensions) {
+                    suffixes.add(quote(fileExtension.startsWith(".") ? fileExtension : "." + fileExtension));
+                }
+            }
+        }
+        if (trailingSlashMatch && !pattern.endsWith("/")) {
+            suffixes.add("/");
+        }
+        if (!suffixes.isEmpty()) {
+            regex.append("(?:").append(String.join("|", suffixes)).append(")?");
+        }
+        return regex.append('$').toString();
+    }
+
+    private static String quote(String literal) {
+        StringBuilder quoted = new StringBuilder(literal.length());
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            if (REGEX_META_CHARACTERS.indexOf(c) >= 0) {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.toString();
+    }
+
+    private static int closingBrace(String path, int start) {
+        int depth = 0;
+        for (int i = start; i < path.length(); i++) {
+            if (path.charAt(i) == '{') {
+                depth++;
+            } else if (path.charAt(i) == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unclosed path variable in request mapping pattern: " + path);
+    }
+
+    /**
+     * Route resolved from a {@link ShadowTraffic} annotated handler method.
+     */
+    static final class AnnotatedRoute {
+
+        private final String requestURI;
+        private final String method;
+        private final Integer percentage;
+        private final List<String> hosts;
+
+        AnnotatedRoute(String requestURI, String method, ShadowTraffic shadowTraffic) {
+            this(requestURI, method, shadowTraffic.percentage() < 0 ? null : shadowTraffic.percentage(), Arrays.asList(shadowTraffic.hosts()));
+        }
+
+        AnnotatedRoute(String requestURI, String method, Integer percentage, List<String> hosts) {
+            this.requestURI = requestURI;
+            this.method = method;
+            this.percentage = percentage;
+            this.hosts = hosts;
+        }
+
+        String getRequestURI() {
+            return requestURI;
+        }
+
+        String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return percentage of the annotation, null to inherit the configured one
+         */
+        Integer getPercentage() {
+            return percentage;
+        }
+
+        List<String> getHosts() {
+            return hosts;
+        }
+    }
+}
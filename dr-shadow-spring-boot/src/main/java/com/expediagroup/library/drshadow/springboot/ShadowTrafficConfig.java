@@ -44,6 +44,14 @@ public class ShadowTrafficConfig {
         
         @JsonProperty("headerPatterns") private List<HeaderPattern> headerPattern;
 
+        @JsonProperty("percentage") private Integer percentage;
+
+        @JsonProperty("hosts") private List<String> hosts;
+
+        @JsonProperty("customHeaders") private Map<String, String> customHeaders;
+
+        @JsonProperty("forwardHeaders") private List<String> forwardHeaders;
+
         public String getRequestURI() { return requestURI; }
 
         public void setRequestURI(String requestURI) { this.requestURI = requestURI; }
@@ -64,6 +72,89 @@ public class ShadowTrafficConfig {
             this.headerPattern = headerPattern;
         }
         
+        /**
+         * @return percentage overriding the configured one for this pattern, null to inherit it
+         */
+        public Integer getPercentage() {
+            return percentage;
+        }
+        
+        public void setPercentage(Integer percentage) {
+            this.percentage = percentage;
+        }
+        
+        /**
+         * @return hosts overriding the configured ones for this pattern, null or empty to inherit them
+         */
+        public List<String> getHosts() {
+            return hosts;
+        }
+        
+        public void setHosts(List<String> hosts) {
+            this.hosts = hosts;
+        }
+        
+        /**
+         * @return custom headers replacing the configured ones for this pattern, null or empty to inherit them
+         */
+        public Map<String, String> getCustomHeaders() {
+            return customHeaders;
+        }
+        
+        public void setCustomHeaders(Map<String, String> customHeaders) {
+            this.customHeaders = customHeaders;
+        }
+        
+        /**
+         * @return forwarded headers replacing the configured ones for this pattern, null or empty to inherit them
+         */
+        public List<String> getForwardHeaders() {
+            return forwardHeaders;
+        }
+        
+        public void setForwardHeaders(List<String> forwardHeaders) {
+            this.forwardHeaders = forwardHeaders;
+        }
+        
+    }
+    
+    /**
+     * Where the key of sticky sampling is read from
+     */
+    public enum SamplingKeySource {
+        HEADER, COOKIE, QUERY_PARAM
+    }
+    
+    /**
+     * When the body of a shadowed request is captured
+     */
+    public enum BodyCaptureMode {
+        /** Read the whole body before the application, the shadow request is sent while the application handles the original one */
+        EAGER,
+        /** Copy the body as the application reads it, the shadow request is sent once the application is done */
+        TEE,
+        /** Stream the body to the hosts as the application reads it, a host falling more than a window behind is aborted */
+        STREAM
+    }
+    
+    /**
+     * Protocol spoken to the shadow hosts
+     */
+    public enum HttpProtocol {
+        /** One request at a time per connection */
+        HTTP1,
+        /** Requests multiplexed over a few connections, h2 negotiated with ALPN for https hosts and h2c with prior knowledge for http hosts */
+        HTTP2
+    }
+    
+    /**
+     * What is read of the responses of the shadow hosts
+     */
+    public enum HttpResponseMode {
+        /** Read the body to its end and drop it, the connection goes back to the pool */
+        DRAIN,
+        /** Stop at the status line and headers, the connection is closed unless the response had no body */
+        STATUS_ONLY
     }
     
     static class HeaderPattern {
@@ -105,13 +196,67 @@ public class ShadowTrafficConfig {
     
     @JsonProperty("invoker.corePoolSize") private int invokerCorePoolSize = ShadowTrafficConfiguration.SHADOW_TRAFFIC_INVOKER_DEFAULT_CORE_POOL_SIZE;
     
+    @JsonProperty("invoker.queueCapacity") private int invokerQueueCapacity = ShadowTrafficConfiguration.DEFAULT_INVOKER_QUEUE_CAPACITY;
+    
     @JsonProperty("http.corePoolSize") private int httpCorePoolSize = ShadowTrafficConfiguration.SHADOW_TRAFFIC_HTTP_DEFAULT_CORE_POOL_SIZE;
     
     @JsonProperty("http.connectionTimeoutMs") private int httpConnectionTimeoutMs = ShadowTrafficConfiguration.SHADOW_TRAFFIC_HTTP_CONNECTION_TIMEOUT;
     
     @JsonProperty("http.readTimeoutMs") private int httpReadTimeoutMs = ShadowTrafficConfiguration.SHADOW_TRAFFIC_HTTP_READ_TIMEOUT;
+    
+    @JsonProperty("http.writeTimeoutMs") private int httpWriteTimeoutMs = ShadowTrafficConfiguration.SHADOW_TRAFFIC_HTTP_WRITE_TIMEOUT;
+    
+    @JsonProperty("http.maxPendingAcquires") private int httpMaxPendingAcquires = ShadowTrafficConfiguration.DEFAULT_HTTP_MAX_PENDING_ACQUIRES;
+    
+    @JsonProperty("http.warmUpEnabled") private boolean httpWarmUpEnabled = false;
+    
+    @JsonProperty("http.responseMode") private HttpResponseMode httpResponseMode = HttpResponseMode.DRAIN;
+    
+    @JsonProperty("http.protocol") private HttpProtocol httpProtocol = HttpProtocol.HTTP1;
+    
+    @JsonProperty("http.h2Connections") private int httpH2Connections = ShadowTrafficConfiguration.DEFAULT_HTTP_H2_CONNECTIONS;
+    
+    @JsonProperty("http.h2MaxConcurrentStreams") private int httpH2MaxConcurrentStreams = ShadowTrafficConfiguration.DEFAULT_HTTP_H2_MAX_CONCURRENT_STREAMS;
 
     @JsonProperty("filterOrder") private int filterOrder = ShadowTrafficConfiguration.DEFAULT_FILTER_ORDER;
+
+    @JsonProperty("routeCache.enabled") private boolean routeCacheEnabled = false;
+
+    @JsonProperty("routeCache.maxSize") private int routeCacheMaxSize = ShadowTrafficConfiguration.DEFAULT_ROUTE_CACHE_MAX_SIZE;
+
+    @JsonProperty("routeCache.minHitPercentage") private int routeCacheMinHitPercentage = ShadowTrafficConfiguration.DEFAULT_ROUTE_CACHE_MIN_HIT_PERCENTAGE;
+    
+    @JsonProperty("sampling.keySource") private SamplingKeySource samplingKeySource;
+    
+    @JsonProperty("sampling.keyName") private String samplingKeyName;
+    
+    @JsonProperty("coverage.enabled") private boolean coverageEnabled = false;
+    
+    @JsonProperty("coverage.windowMs") private int coverageWindowMs = ShadowTrafficConfiguration.DEFAULT_COVERAGE_WINDOW_MS;
+    
+    @JsonProperty("coverage.maxRequestsPerWindow") private int coverageMaxRequestsPerWindow = ShadowTrafficConfiguration.DEFAULT_COVERAGE_MAX_REQUESTS_PER_WINDOW;
+    
+    @JsonProperty("coverage.minRequestsPerRoute") private int coverageMinRequestsPerRoute = ShadowTrafficConfiguration.DEFAULT_COVERAGE_MIN_REQUESTS_PER_ROUTE;
+    
+    @JsonProperty("dedup.enabled") private boolean dedupEnabled = false;
+    
+    @JsonProperty("dedup.windowMs") private int dedupWindowMs = ShadowTrafficConfiguration.DEFAULT_DEDUP_WINDOW_MS;
+    
+    @JsonProperty("dedup.maxEntries") private int dedupMaxEntries = ShadowTrafficConfiguration.DEFAULT_DEDUP_MAX_ENTRIES;
+    
+    @JsonProperty("body.captureMode") private BodyCaptureMode bodyCaptureMode = BodyCaptureMode.EAGER;
+    
+    @JsonProperty("body.maxInMemoryBytes") private int bodyMaxInMemoryBytes = ShadowTrafficConfiguration.DEFAULT_BODY_MAX_IN_MEMORY_BYTES;
+    
+    @JsonProperty("body.maxBytes") private int bodyMaxBytes = ShadowTrafficConfiguration.DEFAULT_BODY_MAX_BYTES;
+    
+    @JsonProperty("body.pooledBuffers") private boolean bodyPooledBuffers = false;
+    
+    @JsonProperty("body.streamWindowBytes") private int bodyStreamWindowBytes = ShadowTrafficConfiguration.DEFAULT_BODY_STREAM_WINDOW_BYTES;
+    
+    @JsonProperty("body.streamConnectBytes") private int bodyStreamConnectBytes = ShadowTrafficConfiguration.DEFAULT_BODY_STREAM_CONNECT_BYTES;
+    
+    @JsonProperty("body.maxInFlightBytes") private long bodyMaxInFlightBytes = ShadowTrafficConfiguration.DEFAULT_BODY_MAX_IN_FLIGHT_BYTES;
     
     public boolean isEnabled() {
         return enabled;
@@ -208,4 +353,220 @@ public class ShadowTrafficConfig {
     public void setFilterOrder(int filterOrder) {
         this.filterOrder = filterOrder;
     }
+
+    public boolean isRouteCacheEnabled() {
+        return routeCacheEnabled;
+    }
+
+    public void setRouteCacheEnabled(boolean routeCacheEnabled) {
+        this.routeCacheEnabled = routeCacheEnabled;
+    }
+
+    public int getRouteCacheMaxSize() {
+        return routeCacheMaxSize;
+    }
+
+    public void setRouteCacheMaxSize(int routeCacheMaxSize) {
+        this.routeCacheMaxSize = routeCacheMaxSize;
+    }
+
+    public int getRouteCacheMinHitPercentage() {
+        return routeCacheMinHitPercentage;
+    }
+
+    public void setRouteCacheMinHitPercentage(int routeCacheMinHitPercentage) {
+        this.routeCacheMinHitPercentage = routeCacheMinHitPercentage;
+    }
+
+    public SamplingKeySource getSamplingKeySource() {
+        return samplingKeySource;
+    }
+
+    public void setSamplingKeySource(SamplingKeySource samplingKeySource) {
+        this.samplingKeySource = samplingKeySource;
+    }
+
+    public String getSamplingKeyName() {
+        return samplingKeyName;
+    }
+
+    public void setSamplingKeyName(String samplingKeyName) {
+        this.samplingKeyName = samplingKeyName;
+    }
+
+    public boolean isCoverageEnabled() {
+        return coverageEnabled;
+    }
+
+    public void setCoverageEnabled(boolean coverageEnabled) {
+        this.coverageEnabled = coverageEnabled;
+    }
+
+    public int getCoverageWindowMs() {
+        return coverageWindowMs;
+    }
+
+    public void setCoverageWindowMs(int coverageWindowMs) {
+        this.coverageWindowMs = coverageWindowMs;
+    }
+
+    public int getCoverageMaxRequestsPerWindow() {
+        return coverageMaxRequestsPerWindow;
+    }
+
+    public void setCoverageMaxRequestsPerWindow(int coverageMaxRequestsPerWindow) {
+        this.coverageMaxRequestsPerWindow = coverageMaxRequestsPerWindow;
+    }
+
+    public int getCoverageMinRequestsPerRoute() {
+        return coverageMinRequestsPerRoute;
+    }
+
+    public void setCoverageMinRequestsPerRoute(int coverageMinRequestsPerRoute) {
+        this.coverageMinRequestsPerRoute = coverageMinRequestsPerRoute;
+    }
+
+    public boolean isDedupEnabled() {
+        return dedupEnabled;
+    }
+
+    public void setDedupEnabled(boolean dedupEnabled) {
+        this.dedupEnabled = dedupEnabled;
+    }
+
+    public int getDedupWindowMs() {
+        return dedupWindowMs;
+    }
+
+    public void setDedupWindowMs(int dedupWindowMs) {
+        this.dedupWindowMs = dedupWindowMs;
+    }
+
+    public int getDedupMaxEntries() {
+        return dedupMaxEntries;
+    }
+
+    public void setDedupMaxEntries(int dedupMaxEntries) {
+        this.dedupMaxEntries = dedupMaxEntries;
+    }
+
+    public BodyCaptureMode getBodyCaptureMode() {
+        return bodyCaptureMode;
+    }
+
+    public void setBodyCaptureMode(BodyCaptureMode bodyCaptureMode) {
+        this.bodyCaptureMode = bodyCaptureMode;
+    }
+
+    public int getBodyMaxInMemoryBytes() {
+        return bodyMaxInMemoryBytes;
+    }
+
+    public void setBodyMaxInMemoryBytes(int bodyMaxInMemoryBytes) {
+        this.bodyMaxInMemoryBytes = bodyMaxInMemoryBytes;
+    }
+
+    public int getBodyMaxBytes() {
+        return bodyMaxBytes;
+    }
+
+    public void setBodyMaxBytes(int bodyMaxBytes) {
+        this.bodyMaxBytes = bodyMaxBytes;
+    }
+
+    public boolean isBodyPooledBuffers() {
+        return bodyPooledBuffers;
+    }
+
+    public void setBodyPooledBuffers(boolean bodyPooledBuffers) {
+        this.bodyPooledBuffers = bodyPooledBuffers;
+    }
+
+    public int getBodyStreamWindowBytes() {
+        return bodyStreamWindowBytes;
+    }
+
+    public void setBodyStreamWindowBytes(int bodyStreamWindowBytes) {
+        this.bodyStreamWindowBytes = bodyStreamWindowBytes;
+    }
+
+    public int getBodyStreamConnectBytes() {
+        return bodyStreamConnectBytes;
+    }
+
+    public void setBodyStreamConnectBytes(int bodyStreamConnectBytes) {
+        this.bodyStreamConnectBytes = bodyStreamConnectBytes;
+    }
+
+    public long getBodyMaxInFlightBytes() {
+        return bodyMaxInFlightBytes;
+    }
+
+    public void setBodyMaxInFlightBytes(long bodyMaxInFlightBytes) {
+        this.bodyMaxInFlightBytes = bodyMaxInFlightBytes;
+    }
+
+    public int getHttpWriteTimeoutMs() {
+        return httpWriteTimeoutMs;
+    }
+
+    public void setHttpWriteTimeoutMs(int httpWriteTimeoutMs) {
+        this.httpWriteTimeoutMs = httpWriteTimeoutMs;
+    }
+
+    public int getHttpMaxPendingAcquires() {
+        return httpMaxPendingAcquires;
+    }
+
+    public void setHttpMaxPendingAcquires(int httpMaxPendingAcquires) {
+        this.httpMaxPendingAcquires = httpMaxPendingAcquires;
+    }
+
+    public boolean isHttpWarmUpEnabled() {
+        return httpWarmUpEnabled;
+    }
+
+    public void setHttpWarmUpEnabled(boolean httpWarmUpEnabled) {
+        this.httpWarmUpEnabled = httpWarmUpEnabled;
+    }
+
+    public HttpResponseMode getHttpResponseMode() {
+        return httpResponseMode;
+    }
+
+    public void setHttpResponseMode(HttpResponseMode httpResponseMode) {
+        this.httpResponseMode = httpResponseMode;
+    }
+
+    public HttpProtocol getHttpProtocol() {
+        return httpProtocol;
+    }
+
+    public void setHttpProtocol(HttpProtocol httpProtocol) {
+        this.httpProtocol = httpProtocol;
+    }
+
+    public int getHttpH2Connections() {
+        return httpH2Connections;
+    }
+
+    public void setHttpH2Connections(int httpH2Connections) {
+        this.httpH2Connections = httpH2Connections;
+    }
+
+    public int getHttpH2MaxConcurrentStreams() {
+        return httpH2MaxConcurrentStreams;
+    }
+
+    public void setHttpH2MaxConcurrentStreams(int httpH2MaxConcurrentStreams) {
+        this.httpH2MaxConcurrentStreams = httpH2MaxConcurrentStreams;
+    }
+
+    public int getInvokerQueueCapacity() {
+        return invokerQueueCapacity;
+    }
+
+    public void setInvokerQueueCapacity(int invokerQueueCapacity) {
+        this.invokerQueueCapacity = invokerQueueCapacity;
+    }
 }
@@ -15,21 +15,32 @@
  */
 package com.expediagroup.library.drshadow.springboot;
 
+import java.util.Collections;
+import java.util.List;
+
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficAnnotationResolver.AnnotatedRoute;
+
 /**
  * Helper class to retrieve the shadow traffic configuration. V1 is based off yaml file configuration.
  *
+ * The configuration is compiled into an immutable {@link CompiledShadowTrafficConfig} when it is bound so invalid patterns fail at startup.
+ *
  * TODO: make this pluggable for various dynamic use cases. The value in Dr Shadow is more on the runtime dynamic configuration.
  */
 public class ShadowTrafficConfigHelper {
 
-    private ShadowTrafficConfig shadowTrafficConfig;
+    private final ShadowTrafficConfig shadowTrafficConfig;
+    private volatile List<AnnotatedRoute> annotatedRoutes = Collections.emptyList();
+    private volatile CompiledShadowTrafficConfig compiledConfig;
 
     /**
      *
      * @param shadowTrafficConfig Shadow Traffic Configuration
+     * @throws IllegalArgumentException if the configuration contains invalid patterns
      */
     public ShadowTrafficConfigHelper(ShadowTrafficConfig shadowTrafficConfig) {
         this.shadowTrafficConfig = shadowTrafficConfig;
+        this.compiledConfig = CompiledShadowTrafficConfig.compile(shadowTrafficConfig);
     }
     
     /**
@@ -40,5 +51,34 @@ public class ShadowTrafficConfigHelper {
     public ShadowTrafficConfig getConfig() {
         return shadowTrafficConfig;
     }
+
+    /**
+     * Get the compiled snapshot of the Shadow Traffic Configuration used on the request path.
+     *
+     * @return compiledConfig
+     */
+    public CompiledShadowTrafficConfig getCompiledConfig() {
+        return compiledConfig;
+    }
+
+    /**
+     * Recompile the Shadow Traffic Configuration after it has changed. The previous snapshot stays in use if compilation fails.
+     *
+     * @throws IllegalArgumentException if the configuration contains invalid patterns
+     */
+    public void refresh() {
+        this.compiledConfig = CompiledShadowTrafficConfig.compile(shadowTrafficConfig, annotatedRoutes);
+    }
+
+    /**
+     * Register the routes resolved from {@link ShadowTraffic} annotated handler methods and recompile the configuration with them.
+     *
+     * @param annotatedRoutes routes resolved from annotated handler methods
+     * @throws IllegalArgumentException if a resolved route is not a valid regex
+     */
+    void setAnnotatedRoutes(List<AnnotatedRoute> annotatedRoutes) {
+        this.compiledConfig = CompiledShadowTrafficConfig.compile(shadowTrafficConfig, annotatedRoutes);
+        this.annotatedRoutes = annotatedRoutes;
+    }
     
 }
@@ -18,6 +18,7 @@ package com.expediagroup.library.drshadow.springboot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -25,10 +26,9 @@ import org.springframework.context.annotation.Condition;
 import org.springframework.context.annotation.ConditionContext;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.env.Environment;
 import org.springframework.core.type.AnnotatedTypeMetadata;
-import org.springframework.scheduling.annotation.EnableAsync;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -39,16 +39,32 @@ import java.net.UnknownHostException;
 @Configuration
 @Conditional(DrShadowEnable.class)
 @ComponentScan("com.expediagroup.library.drshadow")
-@EnableAsync
 public class ShadowTrafficConfiguration {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ShadowTrafficConfiguration.class);
 
     public static final Integer SHADOW_TRAFFIC_HTTP_DEFAULT_CORE_POOL_SIZE = 5;
     public static final Integer SHADOW_TRAFFIC_INVOKER_DEFAULT_CORE_POOL_SIZE = 5;
+    public static final Integer DEFAULT_INVOKER_QUEUE_CAPACITY = 1024;
     public static final Integer SHADOW_TRAFFIC_HTTP_CONNECTION_TIMEOUT = 1000;
     public static final Integer SHADOW_TRAFFIC_HTTP_READ_TIMEOUT = 300;
+    public static final Integer SHADOW_TRAFFIC_HTTP_WRITE_TIMEOUT = 1000;
+    public static final Integer DEFAULT_HTTP_MAX_PENDING_ACQUIRES = 10;
+    public static final Integer DEFAULT_HTTP_H2_CONNECTIONS = 2;
+    public static final Integer DEFAULT_HTTP_H2_MAX_CONCURRENT_STREAMS = 100;
     public static final Integer DEFAULT_FILTER_ORDER = 3;
+    public static final Integer DEFAULT_ROUTE_CACHE_MAX_SIZE = 10000;
+    public static final Integer DEFAULT_ROUTE_CACHE_MIN_HIT_PERCENTAGE = 50;
+    public static final Integer DEFAULT_COVERAGE_WINDOW_MS = 1000;
+    public static final Integer DEFAULT_COVERAGE_MAX_REQUESTS_PER_WINDOW = 100;
+    public static final Integer DEFAULT_COVERAGE_MIN_REQUESTS_PER_ROUTE = 1;
+    public static final Integer DEFAULT_DEDUP_WINDOW_MS = 1000;
+    public static final Integer DEFAULT_DEDUP_MAX_ENTRIES = 4096;
+    public static final Integer DEFAULT_BODY_MAX_IN_MEMORY_BYTES = 1024 * 1024;
+    public static final Integer DEFAULT_BODY_MAX_BYTES = 10 * 1024 * 1024;
+    public static final Integer DEFAULT_BODY_STREAM_WINDOW_BYTES = 256 * 1024;
+    public static final Integer DEFAULT_BODY_STREAM_CONNECT_BYTES = 1024 * 1024;
+    public static final Long DEFAULT_BODY_MAX_IN_FLIGHT_BYTES = 64L * 1024 * 1024;
 
     @Autowired
     private ShadowTrafficConfig shadowTrafficConfig;
@@ -65,8 +81,27 @@ public class ShadowTrafficConfiguration {
     }
 
     @Bean
-    public ShadowTrafficAdapter shadowTrafficAdapter(ShadowTrafficConfigHelper shadowTrafficConfigHelper) {
-        return new ShadowTrafficAdapter(shadowTrafficConfigHelper, getMachineName());
+    public ShadowTrafficAdapter shadowTrafficAdapter(ShadowTrafficConfigHelper shadowTrafficConfigHelper, ShadowTrafficMetrics shadowTrafficMetrics,
+            ShadowTrafficConnectionPools shadowTrafficConnectionPools) {
+        return new ShadowTrafficAdapter(shadowTrafficConfigHelper, getMachineName(), shadowTrafficMetrics, shadowTrafficConnectionPools);
+    }
+    
+    @Bean(destroyMethod = "dispose")
+    public ShadowTrafficConnectionPools shadowTrafficConnectionPools(ShadowTrafficConfigHelper shadowTrafficConfigHelper) {
+        // Pools are sized once, updating the http settings requires a restart of the application
+        return new ShadowTrafficConnectionPools(shadowTrafficConfigHelper.getConfig());
+    }
+    
+    /**
+     * Open the connections to the shadow hosts once the application is ready, the annotated routes and their hosts are resolved by then.
+     *
+     * @param event ApplicationReadyEvent
+     */
+    @EventListener
+    public void warmUpShadowTrafficConnections(ApplicationReadyEvent event) {
+        if (shadowTrafficConfig.isHttpWarmUpEnabled()) {
+            event.getApplicationContext().getBean(ShadowTrafficAdapter.class).warmUp();
+        }
     }
     
     @Bean
@@ -74,6 +109,11 @@ public class ShadowTrafficConfiguration {
         return new ShadowTrafficConfigHelper(shadowTrafficConfig);
     }
     
+    @Bean
+    public ShadowTrafficAnnotationResolver shadowTrafficAnnotationResolver(ShadowTrafficConfigHelper shadowTrafficConfigHelper) {
+        return new ShadowTrafficAnnotationResolver(shadowTrafficConfigHelper);
+    }
+    
     @Bean
     public FilterRegistrationBean shadowTrafficFilterBean(ShadowTrafficFilter shadowTrafficFilter) {
         FilterRegistrationBean registrationBean = new FilterRegistrationBean();
@@ -84,46 +124,38 @@ public class ShadowTrafficConfiguration {
         return registrationBean;
     }
     
-    @Bean
-    public ThreadPoolTaskExecutor shadowRestTemplateTaskExecutor(ShadowTrafficConfigHelper shadowTrafficConfigHelper) {
-        ThreadPoolTaskExecutor threadPool = new ThreadPoolTaskExecutor();
-        threadPool.setTaskDecorator(new ShadowTrafficLoggingTaskDecorator());
-        
+    @Bean(destroyMethod = "dispose")
+    public ShadowTrafficDispatcher shadowTrafficDispatcher(ShadowTrafficAdapter shadowTrafficAdapter,
+            ShadowTrafficConfigHelper shadowTrafficConfigHelper, ShadowTrafficMetrics shadowTrafficMetrics) {
         ShadowTrafficConfig shadowTrafficConfig = shadowTrafficConfigHelper.getConfig();
         
-        int corePoolSize = SHADOW_TRAFFIC_HTTP_DEFAULT_CORE_POOL_SIZE;
+        int threads = SHADOW_TRAFFIC_INVOKER_DEFAULT_CORE_POOL_SIZE;
+        int capacity = DEFAULT_INVOKER_QUEUE_CAPACITY;
         
         if (shadowTrafficConfig != null) {
-            corePoolSize = shadowTrafficConfig.getHttpCorePoolSize();
+            threads = shadowTrafficConfig.getInvokerCorePoolSize();
+            capacity = shadowTrafficConfig.getInvokerQueueCapacity();
         }
         
-        // Default value is already set inside the config
-        threadPool.setCorePoolSize(corePoolSize);
-        threadPool.initialize();
-        return threadPool;
+        // Threads and rings are sized once, updating the invoker settings requires a restart of the application
+        return new ShadowTrafficDispatcher(shadowTrafficAdapter, shadowTrafficMetrics, threads, capacity);
     }
-    
+
     @Bean
-    public ThreadPoolTaskExecutor shadowTrafficTaskExecutor(ShadowTrafficConfigHelper shadowTrafficConfigHelper) {
-        ThreadPoolTaskExecutor threadPool = new ThreadPoolTaskExecutor();
-        threadPool.setTaskDecorator(new ShadowTrafficLoggingTaskDecorator());
+    public InFlightBudget shadowTrafficInFlightBudget() {
+        return new InFlightBudget();
+    }
 
-        ShadowTrafficConfig shadowTrafficConfig = shadowTrafficConfigHelper.getConfig();
-        
-        int corePoolSize = SHADOW_TRAFFIC_INVOKER_DEFAULT_CORE_POOL_SIZE;
-        
-        if (shadowTrafficConfig != null) {
-            corePoolSize = shadowTrafficConfig.getInvokerCorePoolSize();
-        }
-        
-        threadPool.setCorePoolSize(corePoolSize);
-        threadPool.initialize();
-        return threadPool;
+    @Bean
+    public ShadowTrafficMetrics shadowTrafficMetrics(InFlightBudget shadowTrafficInFlightBudget) {
+        return new ShadowTrafficMetrics(shadowTrafficInFlightBudget);
     }
 
     @Bean
-    public ShadowTrafficFilter shadowTrafficFilter(ShadowTrafficAdapter shadowTrafficAdapter, ShadowTrafficConfigHelper shadowTrafficConfigHelper) {
-        return new ShadowTrafficFilter(shadowTrafficConfigHelper, shadowTrafficAdapter);
+    public ShadowTrafficFilter shadowTrafficFilter(ShadowTrafficDispatcher shadowTrafficDispatcher,
+            ShadowTrafficConfigHelper shadowTrafficConfigHelper, ShadowTrafficMetrics shadowTrafficMetrics,
+            InFlightBudget shadowTrafficInFlightBudget) {
+        return new ShadowTrafficFilter(shadowTrafficConfigHelper, shadowTrafficDispatcher, shadowTrafficMetrics, shadowTrafficInFlightBudget);
     }
     
 }
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.handler.timeout.WriteTimeoutHandler;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.netty.http.HttpResources;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Connection pools of the shadow hosts, one per host so that a slow host only ever uses up its own connections.
+ *
+ * Every pool keeps up to {@code http-core-pool-size} connections alive. Requests beyond that wait for a connection, up to
+ * {@code http-max-pending-acquires} of them, the following ones are dropped rather than queued. Connections are opened within
+ * {@code http-connection-timeout-ms}, a request must be written within {@code http-write-timeout-ms} and its response must not stall for
+ * more than {@code http-read-timeout-ms} once the request was sent. The settings are read once, when the pools are created.
+ *
+ * With the {@code HTTP2} protocol a host instead gets {@code http-h2-connections} connections carrying up to
+ * {@code http-h2-max-concurrent-streams} requests each, the HTTP/1.1 pool is only used if the host does not speak HTTP/2.
+ */
+public final class ShadowTrafficConnectionPools {
+
+    private static final String WRITE_TIMEOUT_HANDLER = "shadowTrafficWriteTimeout";
+    private static final String READ_TIMEOUT_HANDLER = "shadowTrafficReadTimeout";
+
+    private final Function<String, HostPool> hostPoolFactory;
+    private final Map<String, HostPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @param shadowTrafficConfig Shadow Traffic Configuration, the defaults are used if null
+     */
+    public ShadowTrafficConnectionPools(ShadowTrafficConfig shadowTrafficConfig) {
+        ShadowTrafficConfig config = shadowTrafficConfig != null ? shadowTrafficConfig : new ShadowTrafficConfig();
+        this.hostPoolFactory = baseUrl -> createHostPool(baseUrl, config);
+    }
+
+    /**
+     * Pools handing out the given clients instead of pooled reactor-netty ones.
+     *
+     * @param maxConnections connections kept per host
+     * @param maxPendingAcquires requests waiting for a connection per host, negative for no limit
+     * @param webClientFactory creates the client of a host from its base URL
+     */
+    ShadowTrafficConnectionPools(int maxConnections, int maxPendingAcquires, Function<String, WebClient> webClientFactory) {
+        int connections = Math.max(1, maxConnections);
+        this.hostPoolFactory = baseUrl -> new HostPool(webClientFactory.apply(baseUrl), null, connections,
+                maxRequests(connections, maxPendingAcquires));
+    }
+
+    private static int maxRequests(int inFlight, int maxPendingAcquires) {
+        return maxPendingAcquires < 0 ? Integer.MAX_VALUE : inFlight + maxPendingAcquires;
+    }
+
+    /**
+     * @param baseUrl scheme, host and port of the shadow host
+     * @return the pool of the host, created on first use
+     */
+    HostPool get(String baseUrl) {
+        return pools.computeIfAbsent(baseUrl, hostPoolFactory);
+    }
+
+    /**
+     * Close the connections of every host.
+     */
+    public void dispose() {
+        for (HostPool pool : pools.values()) {
+            if (pool.resources != null) {
+                pool.resources.dispose();
+            }
+        }
+        pools.clear();
+    }
+
+    private HostPool createHostPool(String baseUrl, ShadowTrafficConfig config) {
+        int maxConnections = Math.max(1, config.getHttpCorePoolSize());
+        int connectionTimeoutMs = config.getHttpConnectionTimeoutMs();
+        int readTimeoutMs = config.getHttpReadTimeoutMs();
+        int writeTimeoutMs = config.getHttpWriteTimeoutMs();
+        ConnectionProvider connectionProvider = ConnectionProvider.fixed("shadow-traffic-" + baseUrl, maxConnections,
+                connectionTimeoutMs > 0 ? connectionTimeoutMs : ConnectionProvider.DEFAULT_POOL_ACQUIRE_TIMEOUT);
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .keepAlive(true)
+                .tcpConfiguration(tcpClient -> connectionTimeoutMs > 0
+                        ? tcpClient.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMs) : tcpClient)
+                // the timeouts only apply while a request is in progress, an idle pooled connection must not time out
+                .doOnRequest((request, connection) -> {
+                    if (writeTimeoutMs > 0) {
+                        connection.addHandlerLast(WRITE_TIMEOUT_HANDLER, new WriteTimeoutHandler(writeTimeoutMs, TimeUnit.MILLISECONDS));
+                    }
+                })
+                .doAfterRequest((request, connection) -> {
+                    connection.removeHandler(WRITE_TIMEOUT_HANDLER);
+                    if (readTimeoutMs > 0) {
+                        connection.addHandlerLast(READ_TIMEOUT_HANDLER, new ReadTimeoutHandler(readTimeoutMs, TimeUnit.MILLISECONDS));
+                    }
+                })
+                .doAfterResponse((response, connection) -> connection.removeHandler(READ_TIMEOUT_HANDLER));
+        ReactorClientHttpConnector http11Connector = new ReactorClientHttpConnector(httpClient);
+        if (config.getHttpProtocol() == ShadowTrafficConfig.HttpProtocol.HTTP2) {
+            int h2Connections = Math.max(1, config.getHttpH2Connections());
+            Http2ClientHttpConnector http2Connector = new Http2ClientHttpConnector(baseUrl, h2Connections, HttpResources.get().onClient(false),
+                    config, http11Connector);
+            // the HTTP/1.1 fallback is bounded by its own pool, the permits are sized for the streams
+            return new HostPool(WebClient.builder().clientConnector(http2Connector).build(), Disposables.composite(http2Connector, connectionProvider),
+                    h2Connections, maxRequests(h2Connections * Math.max(1, config.getHttpH2MaxConcurrentStreams()), config.getHttpMaxPendingAcquires()));
+        }
+        return new HostPool(WebClient.builder().clientConnector(http11Connector).build(), connectionProvider, maxConnections,
+                maxRequests(maxConnections, config.getHttpMaxPendingAcquires()));
+    }
+
+    /**
+     * Client of one host and the number of requests using or waiting for one of its connections. A request holds a permit from the moment it
+     * asks for a connection until its response is drained.
+     */
+    static final class HostPool {
+
+        private final WebClient webClient;
+        private final Disposable resources;
+        private final int connections;
+        private final int maxRequests;
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private HostPool(WebClient webClient, Disposable resources, int connections, int maxRequests) {
+            this.webClient = webClient;
+            this.resources = resources;
+            this.connections = connections;
+            this.maxRequests = maxRequests;
+        }
+
+        WebClient getWebClient() {
+            return webClient;
+        }
+
+        /**
+         * @return connections kept to the host
+         */
+        int getConnections() {
+            return connections;
+        }
+
+        /**
+         * @return true if the request can be sent, it must then be released once done
+         */
+        boolean tryAcquire() {
+            for (;;) {
+                int current = requests.get();
+                if (current >= maxRequests) {
+                    return false;
+                }
+                if (requests.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            requests.decrementAndGet();
+        }
+
+        /**
+         * @return number of requests using or waiting for a connection
+         */
+        int getRequests() {
+            return requests.get();
+        }
+    }
+}
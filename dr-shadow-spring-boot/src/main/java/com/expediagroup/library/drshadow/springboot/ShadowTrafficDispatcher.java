@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Hands the shadow requests over from the request threads to a few dispatcher threads sending them with the {@link ShadowTrafficAdapter}.
+ *
+ * Every dispatcher thread owns a bounded ring of preallocated slots. A request thread publishes into the ring of its own dispatcher with a
+ * single compare-and-set and moves on to the next rings only if it is full, so publishing never blocks nor allocates beyond the copy of the
+ * MDC. Every ring counts the request threads publishing into it, so that once stopped its dispatcher waits for them before releasing what
+ * is left. The dispatcher drains its ring in batches and hands every request straight to the non-blocking client, parking once the ring stayed
+ * empty for a while. A request finding every ring full is not shadowed.
+ *
+ * The MDC of the request thread is set on the dispatcher thread while the request is handed over, so the logs of the shadow traffic carry it.
+ */
+public final class ShadowTrafficDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShadowTrafficDispatcher.class);
+    private static final int BATCH_SIZE = 64;
+    private static final int IDLE_SPINS = 64;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ShadowTrafficAdapter shadowTrafficAdapter;
+    private final ShadowTrafficMetrics shadowTrafficMetrics;
+    private final Ring[] rings;
+    private volatile boolean running = true;
+
+    /**
+     * Dispatcher without threads nor rings, sending every request right away on the calling thread: the request thread pays for building
+     * the shadow requests, the non-blocking client then sends them on its own event loops. It is what the filter constructors taking an
+     * adapter use, they have no lifecycle to stop dispatcher threads with.
+     *
+     * @param shadowTrafficAdapter Adapter sending the shadow traffic
+     * @param shadowTrafficMetrics Metrics updated for every rejected request
+     */
+    public ShadowTrafficDispatcher(ShadowTrafficAdapter shadowTrafficAdapter, ShadowTrafficMetrics shadowTrafficMetrics) {
+        this.shadowTrafficAdapter = shadowTrafficAdapter;
+        this.shadowTrafficMetrics = shadowTrafficMetrics;
+        this.rings = new Ring[0];
+    }
+
+    /**
+     *
+     * @param shadowTrafficAdapter Adapter sending the shadow traffic
+     * @param shadowTrafficMetrics Metrics updated for every rejected request
+     * @param threads number of dispatcher threads, each draining its own ring
+     * @param capacity number of requests waiting to be sent across all the rings, rounded up to a power of two per ring
+     * @throws IllegalArgumentException if there is no thread or no capacity
+     */
+    public ShadowTrafficDispatcher(ShadowTrafficAdapter shadowTrafficAdapter, ShadowTrafficMetrics shadowTrafficMetrics, int threads,
+            int capacity) {
+        if (threads <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Dispatcher requires at least one thread and a positive capacity but was threads=" + threads
+                    + ", capacity=" + capacity);
+        }
+        this.shadowTrafficAdapter = shadowTrafficAdapter;
+        this.shadowTrafficMetrics = shadowTrafficMetrics;
+        this.rings = new Ring[threads];
+        int ringCapacity = (capacity + threads - 1) / threads;
+        for (int i = 0; i < threads; i++) {
+            rings[i] = new Ring(ringCapacity);
+            Ring ring = rings[i];
+            Thread thread = new Thread(() -> run(ring), "shadow-traffic-dispatcher-" + (i + 1));
+            thread.setDaemon(true);
+            ring.consumer = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Publish the shadow request to the dispatcher threads. Ownership of the snapshot is transferred only if the request is accepted.
+     *
+     * @param shadowRequest snapshot of the incoming request
+     * @param shadowTrafficPolicy hosts and headers of the route the request matched
+     * @return false if every ring is full or the dispatcher was stopped, the caller keeps the snapshot and must release it
+     */
+    public boolean dispatch(ShadowRequest shadowRequest, ShadowTrafficPolicy shadowTrafficPolicy) {
+        if (rings.length == 0) {
+            shadowTrafficAdapter.invokeShadowTraffic(shadowRequest, shadowTrafficPolicy);
+            return true;
+        }
+        if (running) {
+            // slf4j 1.6 declares a raw map, it only ever holds strings
+            @SuppressWarnings("unchecked")
+            Map<String, String> context = MDC.getCopyOfContextMap();
+            int home = (int) (Thread.currentThread().getId() % rings.length);
+            for (int i = 0; i < rings.length; i++) {
+                Ring ring = rings[(home + i) % rings.length];
+                ring.producers.incrementAndGet();
+                try {
+                    // checked again once counted, a dispatcher that saw no producer left never gets another request
+                    if (!running) {
+                        break;
+                    }
+                    if (ring.offer(shadowRequest, shadowTrafficPolicy, context)) {
+                        return true;
+                    }
+                } finally {
+                    ring.producers.decrementAndGet();
+                }
+            }
+        }
+        shadowTrafficMetrics.recordDispatchRejected();
+        LOGGER.debug("Every shadow traffic dispatcher is busy, dropping the shadow request for {}", shadowRequest.getRequestURI());
+        return false;
+    }
+
+    /**
+     * Stop the dispatcher threads, the requests still waiting are discarded without being sent.
+     */
+    public void dispose() {
+        running = false;
+        for (Ring ring : rings) {
+            LockSupport.unpark(ring.consumer);
+        }
+        for (Ring ring : rings) {
+            try {
+                ring.consumer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void run(Ring ring) {
+        Slot[] batch = new Slot[BATCH_SIZE];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new Slot();
+        }
+        while (running) {
+            int drained = ring.drain(batch);
+            for (int i = 0; i < drained; i++) {
+                send(batch[i]);
+            }
+            if (drained == 0) {
+                idle(ring);
+            }
+        }
+        // request threads that saw the dispatcher running may still be publishing
+        while (ring.producers.get() != 0) {
+            Thread.yield();
+        }
+        int drained;
+        while ((drained = ring.drain(batch)) > 0) {
+            for (int i = 0; i < drained; i++) {
+                batch[i].shadowRequest.discard();
+                batch[i].clear();
+            }
+        }
+    }
+
+    private void send(Slot slot) {
+        try {
+            if (slot.context != null) {
+                MDC.setContextMap(slot.context);
+            }
+            shadowTrafficAdapter.invokeShadowTraffic(slot.shadowRequest, slot.shadowTrafficPolicy);
+        } catch (Throwable ex) { // Catch all, the dispatcher thread must keep draining its ring
+            LOGGER.warn("Dispatching shadow traffic failed", ex);
+        } finally {
+            MDC.clear();
+            slot.clear();
+        }
+    }
+
+    /**
+     * Spin for a little while before parking, a producer unparks the dispatcher if it sees it parked. Either the producer sees the flag or
+     * the dispatcher sees the request published before it, both being volatile.
+     */
+    private void idle(Ring ring) {
+        for (int i = 0; i < IDLE_SPINS; i++) {
+            if (!ring.isEmpty() || !running) {
+                return;
+            }
+            Thread.yield();
+        }
+        ring.parked = true;
+        if (ring.isEmpty() && running) {
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        ring.parked = false;
+    }
+
+    /**
+     * A request waiting in a ring or taken out of it by the dispatcher.
+     */
+    private static final class Slot {
+
+        private ShadowRequest shadowRequest;
+        private ShadowTrafficPolicy shadowTrafficPolicy;
+        private Map<String, String> context;
+
+        void clear() {
+            shadowRequest = null;
+            shadowTrafficPolicy = null;
+            context = null;
+        }
+    }
+
+    /**
+     * Bounded ring written by any number of request threads and read by its single dispatcher thread. The sequence of a slot tells who may
+     * use it next: equal to the position of a producer it is free to claim, one past it the request is published for the consumer.
+     */
+    private static final class Ring {
+
+        private final Slot[] slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicInteger producers = new AtomicInteger();
+        private long head;
+        private volatile Thread consumer;
+        private volatile boolean parked;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+            this.slots = new Slot[size];
+            this.sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                slots[i] = new Slot();
+                sequences.set(i, i);
+            }
+            this.mask = size - 1;
+        }
+
+        boolean offer(ShadowRequest shadowRequest, ShadowTrafficPolicy shadowTrafficPolicy, Map<String, String> context) {
+            for (;;) {
+                long position = tail.get();
+                int index = (int) position & mask;
+                long sequence = sequences.get(index);
+                if (sequence == position) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        Slot slot = slots[index];
+                        slot.shadowRequest = shadowRequest;
+                        slot.shadowTrafficPolicy = shadowTrafficPolicy;
+                        slot.context = context;
+                        sequences.set(index, position + 1);
+                        if (parked) {
+                            LockSupport.unpark(consumer);
+                        }
+                        return true;
+                    }
+                } else if (sequence < position) {
+                    // the consumer did not take the request published a lap ago yet, the ring is full
+                    return false;
+                }
+                // else another producer claimed the slot first, retry with the next position
+            }
+        }
+
+        /**
+         * Only called by the dispatcher thread. Every slot is handed back to the producers as soon as its request was copied out.
+         *
+         * @param batch slots receiving the requests
+         * @return number of requests copied into the batch
+         */
+        int drain(Slot[] batch) {
+            int drained = 0;
+            while (drained < batch.length) {
+                int index = (int) head & mask;
+                if (sequences.get(index) != head + 1) {
+                    break;
+                }
+                Slot slot = slots[index];
+                Slot target = batch[drained++];
+                target.shadowRequest = slot.shadowRequest;
+                target.shadowTrafficPolicy = slot.shadowTrafficPolicy;
+                target.context = slot.context;
+                slot.clear();
+                sequences.lazySet(index, head + slots.length);
+                head++;
+            }
+            return drained;
+        }
+
+        boolean isEmpty() {
+            return sequences.get((int) head & mask) != head + 1;
+        }
+    }
+}
@@ -16,13 +16,12 @@
 package com.expediagroup.library.drshadow.springboot;
 
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -30,11 +29,10 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.CollectionUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.springframework.web.filter.OncePerRequestFilter;
 
-import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.HeaderPattern;
+import com.expediagroup.library.drshadow.springboot.CompiledShadowTrafficConfig.CompiledInclusionPattern;
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.BodyCaptureMode;
 
 /**
  * Generate shadow traffic by simply reproducing the original request and sending it to the configured destination.
@@ -44,15 +42,75 @@ import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.HeaderPa
 public class ShadowTrafficFilter extends OncePerRequestFilter {
     
     private static final Logger LOGGER = LoggerFactory.getLogger(ShadowTrafficFilter.class);
-    private static final String ALL_METHODS = "*";
+    static final String SHADOW_TRAFFIC_ROUTE_ATTRIBUTE = ShadowTrafficFilter.class.getName() + ".ROUTE";
     
-    private ShadowTrafficAdapter shadowTrafficAdapter;
+    private final ShadowTrafficDispatcher shadowTrafficDispatcher;
     private ShadowTrafficConfigHelper shadowTrafficConfigHelper;
     private DrShadowHttpServletRequestFactory drShadowHttpServletRequestFactory;
+    private final ShadowTrafficMetrics shadowTrafficMetrics;
+    private final InFlightBudget inFlightBudget;
+    private Random random;
     
+    /**
+     * Shadow requests are sent from the request thread, see {@link ShadowTrafficDispatcher#ShadowTrafficDispatcher(ShadowTrafficAdapter,
+     * ShadowTrafficMetrics)}.
+     *
+     * @param shadowTrafficConfigHelper Configuration helper
+     * @param shadowTrafficAdapter Adapter sending the shadow traffic
+     */
     public ShadowTrafficFilter(ShadowTrafficConfigHelper shadowTrafficConfigHelper, ShadowTrafficAdapter shadowTrafficAdapter) {
-        this.shadowTrafficAdapter = shadowTrafficAdapter;
+        this(shadowTrafficConfigHelper, shadowTrafficAdapter, new ShadowTrafficMetrics());
+    }
+    
+    /**
+     * Shadow requests are sent from the request thread, see {@link ShadowTrafficDispatcher#ShadowTrafficDispatcher(ShadowTrafficAdapter,
+     * ShadowTrafficMetrics)}.
+     *
+     * @param shadowTrafficConfigHelper Configuration helper
+     * @param shadowTrafficAdapter Adapter sending the shadow traffic
+     * @param shadowTrafficMetrics Metrics updated for every matched request
+     */
+    public ShadowTrafficFilter(ShadowTrafficConfigHelper shadowTrafficConfigHelper, ShadowTrafficAdapter shadowTrafficAdapter,
+            ShadowTrafficMetrics shadowTrafficMetrics) {
+        this(shadowTrafficConfigHelper, new ShadowTrafficDispatcher(shadowTrafficAdapter, shadowTrafficMetrics), shadowTrafficMetrics);
+    }
+    
+    /**
+     *
+     * @param shadowTrafficConfigHelper Configuration helper
+     * @param shadowTrafficDispatcher Dispatcher handing the shadow requests over to the adapter
+     * @param shadowTrafficMetrics Metrics updated for every matched request
+     */
+    public ShadowTrafficFilter(ShadowTrafficConfigHelper shadowTrafficConfigHelper, ShadowTrafficDispatcher shadowTrafficDispatcher,
+            ShadowTrafficMetrics shadowTrafficMetrics) {
+        this(shadowTrafficConfigHelper, shadowTrafficDispatcher, shadowTrafficMetrics, InFlightBudget.DEFAULT);
+    }
+    
+    /**
+     *
+     * @param shadowTrafficConfigHelper Configuration helper
+     * @param shadowTrafficDispatcher Dispatcher handing the shadow requests over to the adapter
+     * @param shadowTrafficMetrics Metrics updated for every matched request
+     * @param inFlightBudget Budget of the body bytes in flight shared across the application
+     */
+    public ShadowTrafficFilter(ShadowTrafficConfigHelper shadowTrafficConfigHelper, ShadowTrafficDispatcher shadowTrafficDispatcher,
+            ShadowTrafficMetrics shadowTrafficMetrics, InFlightBudget inFlightBudget) {
+        this.shadowTrafficDispatcher = shadowTrafficDispatcher;
         this.shadowTrafficConfigHelper = shadowTrafficConfigHelper;
+        this.shadowTrafficMetrics = shadowTrafficMetrics;
+        this.inFlightBudget = inFlightBudget;
+    }
+    
+    /**
+     * Only used for unit testing to manipulate the randomization
+     * @param random Random instance for generating random number for tests
+     */
+    protected void setRandom(Random random) {
+        this.random = random;
+    }
+    
+    public ShadowTrafficMetrics getShadowTrafficMetrics() {
+        return shadowTrafficMetrics;
     }
     
     /**
@@ -65,72 +123,31 @@ public class ShadowTrafficFilter extends OncePerRequestFilter {
      */
     @Override
     protected boolean shouldNotFilter(HttpServletRequest request) throws ServletException {
-        String path = request.getRequestURI();
-        Map<String, String> headerKeyValueMap = new HashMap<>();
-        
-        ShadowTrafficConfig shadowTrafficConfig = shadowTrafficConfigHelper.getConfig();
+        // Read the snapshot once so the whole decision is made against a consistent configuration
+        CompiledShadowTrafficConfig compiledConfig = shadowTrafficConfigHelper.getCompiledConfig();
         
         // If shadow traffic is disabled then don't bother matching patterns nor invoke the filter
-        if (shadowTrafficConfig == null || !shadowTrafficConfig.isEnabled()) {
+        if (compiledConfig == null || !compiledConfig.isEnabled()) {
             return true;
         }
         
-        // If this was already shadow traffic, do not invoke the filter
-        Enumeration<?> headerNames = request.getHeaderNames();
-        
-        // There is no way to optimize this as it's required to go through each header :(
-        if (headerNames != null) {
-            while (headerNames.hasMoreElements()) {
-                String key = (String) headerNames.nextElement();
-                String value = request.getHeader(key);
-                if (null != key) {
-                    headerKeyValueMap.put(key, null != value ? value.toLowerCase() : null);
-
-                    if (value != null && key.equalsIgnoreCase(ShadowTrafficAdapter.IS_SHADOW_TRAFFIC_KEY) &&
-                            value.equalsIgnoreCase(ShadowTrafficAdapter.IS_SHADOW_TRAFFIC_VALUE)) {
-                        return true;
-                    }  // Only care about the shadow traffic key
-                }
-            }
+        // Headers are only looked at once the path and method match, most requests stop here
+        int[] routes = compiledConfig.matchRoutes(request.getMethod(), request.getRequestURI());
+        if (routes.length == 0) {
+            return true;
         }
         
-        if (CollectionUtils.isEmpty(shadowTrafficConfig.getInclusionPatterns())) {
+        // If this was already shadow traffic, do not invoke the filter
+        if (ShadowTrafficAdapter.IS_SHADOW_TRAFFIC_VALUE.equalsIgnoreCase(request.getHeader(ShadowTrafficAdapter.IS_SHADOW_TRAFFIC_KEY))) {
             return true;
         }
 
-        for (ShadowTrafficConfig.InclusionPattern inclusionPattern : shadowTrafficConfig.getInclusionPatterns()) {
-            if (inclusionPattern != null) {
-                try {
-                    Pattern compiledExclusionPattern = Pattern.compile(inclusionPattern.getRequestURI());
-
-                    // If the path and method match the configured inclusion pattern then allow the shadow traffic through
-                    if (compiledExclusionPattern.matcher(path).matches() && (inclusionPattern.getMethod().equals(ALL_METHODS)
-                            || request.getMethod().equalsIgnoreCase(inclusionPattern.getMethod()))) {
-
-                        List<HeaderPattern> headerPatterns = inclusionPattern.getHeaderPattern();
-                        if (CollectionUtils.isEmpty(headerPatterns)) {
-                            return false;
-                        } else {
-                            for (HeaderPattern headerPattern : headerPatterns) {
-                                if (null != headerPattern && null != headerPattern.getHeaderKey() && null != headerPattern.getHeaderValue() &&
-                                        headerKeyValueMap.containsKey(headerPattern.getHeaderKey().toLowerCase())) {
-                                    Pattern headerValuePattern = Pattern.compile(headerPattern.getHeaderValue().toLowerCase());
-                                    String requestHeaderActualValue = headerKeyValueMap.get(headerPattern.getHeaderKey().toLowerCase());
-                                    if (StringUtils.isNotBlank(requestHeaderActualValue) && headerValuePattern.matcher(requestHeaderActualValue).matches()) {
-                                        return false;
-                                    }
-                                }
-
-                            }
-                        }
-
-                    }
-                } catch (PatternSyntaxException pse) { // give a better log warning for invalid syntax
-                    LOGGER.warn("Invalid pattern syntax configured", pse);
-                } catch (Exception ex) {
-                    // if anything else unexpected happens then just ignore the inclusion pattern
-                    LOGGER.warn("Invalid inclusion pattern", ex);
-                }
+        List<CompiledInclusionPattern> inclusionPatterns = compiledConfig.getInclusionPatterns();
+        for (int route : routes) {
+            // The path and method match the configured inclusion pattern, allow the shadow traffic through if the headers match too
+            if (inclusionPatterns.get(route).matchesHeaders(request)) {
+                request.setAttribute(SHADOW_TRAFFIC_ROUTE_ATTRIBUTE, inclusionPatterns.get(route));
+                return false;
             }
         }
 
@@ -139,7 +156,9 @@ public class ShadowTrafficFilter extends OncePerRequestFilter {
     }
     
     /**
-     * Invoke shadow traffic asynchronously and continue the chain
+     * Invoke shadow traffic asynchronously for the sampled share of the requests and continue the chain. Requests outside the percentage
+     * continue unwrapped so their body is never buffered. With the tee body capture mode the shadow traffic is only invoked once the chain
+     * returned and the body is complete. With the stream mode it is invoked right away and the body ends once the chain returned.
      * 
      * @param request HttpServletRequest
      * @param response HttpServletResponse
@@ -154,15 +173,190 @@ public class ShadowTrafficFilter extends OncePerRequestFilter {
     		this.drShadowHttpServletRequestFactory = new DrShadowHttpServletRequestFactory();
     	}
 
-    	final DrShadowHttpServletRequest drShadowRequest = drShadowHttpServletRequestFactory.getHttpServletRequest(request);
+    	// The route matched by shouldNotFilter, its policy or the configured one if the route was not resolved
+    	CompiledShadowTrafficConfig compiledConfig = shadowTrafficConfigHelper.getCompiledConfig();
+    	CompiledInclusionPattern route = (CompiledInclusionPattern) request.getAttribute(SHADOW_TRAFFIC_ROUTE_ATTRIBUTE);
+    	ShadowTrafficPolicy policy = route != null ? route.getPolicy() : compiledConfig.getDefaultPolicy();
+    	request.removeAttribute(SHADOW_TRAFFIC_ROUTE_ATTRIBUTE);
+
+    	// Sample before the request is wrapped, the wrapper copies the whole body
+    	if (!isSampled(compiledConfig, request, route, policy)) {
+    		shadowTrafficMetrics.recordUnsampled(request.getContentLengthLong());
+    		chain.doFilter(request, response);
+    		return;
+    	}
+    	shadowTrafficMetrics.recordSampled();
+
+    	// A body declared larger than the maximum is not even buffered
+    	if (request.getContentLengthLong() > compiledConfig.getBodyMaxBytes()) {
+    		shadowTrafficMetrics.recordOversized();
+    		chain.doFilter(request, response);
+    		return;
+    	}
+
+    	// Shed the shadow traffic, never the request, while the bodies in flight use up the budget
+    	long charge = expectedBodyBytes(compiledConfig, request, policy);
+    	if (!inFlightBudget.tryAcquire(charge, compiledConfig.getBodyMaxInFlightBytes())) {
+    		shadowTrafficMetrics.recordBudgetRejected();
+    		chain.doFilter(request, response);
+    		return;
+    	}
+
+    	final DrShadowHttpServletRequest drShadowRequest;
+    	try {
+    		drShadowRequest = drShadowHttpServletRequestFactory.getHttpServletRequest(request, compiledConfig, policy);
+    	} catch (IOException | RuntimeException ex) {
+    		inFlightBudget.release(charge);
+    		throw ex;
+    	}
+    	drShadowRequest.charged(inFlightBudget, charge);
+    	// The body is captured while or after the application reads it, it is only complete once the application is done
+    	final boolean captureAfterChain = drShadowRequest.isCapturedAfterChain();
+
+    	if (!captureAfterChain) {
+    		invokeShadowTraffic(drShadowRequest, request, policy, compiledConfig);
+    	}
+
+    	try {
+    		chain.doFilter(drShadowRequest, response);
+    	} finally {
+    		if (request.isAsyncStarted()) {
+    			// The application goes on with the request after the filter returned
+    			request.getAsyncContext().addListener(new CompletionListener(() -> complete(drShadowRequest, request, policy, compiledConfig,
+    					captureAfterChain)));
+    		} else {
+    			complete(drShadowRequest, request, policy, compiledConfig, captureAfterChain);
+    		}
+    	}
+    }
 
-    	try {            
-    		shadowTrafficAdapter.invokeShadowTraffic(drShadowRequest, request);
+    private void complete(DrShadowHttpServletRequest drShadowRequest, HttpServletRequest request, ShadowTrafficPolicy policy,
+    		CompiledShadowTrafficConfig compiledConfig, boolean captureAfterChain) {
+    	if (captureAfterChain) {
+    		invokeShadowTraffic(drShadowRequest, request, policy, compiledConfig);
+    	} else if (drShadowRequest instanceof StreamingHttpServletRequest) {
+    		endOfBody((StreamingHttpServletRequest) drShadowRequest, request);
+    	}
+    	drShadowRequest.release();
+    }
+
+    /**
+     * Stream the remainder of the body the application did not read and end the shadow requests.
+     */
+    private void endOfBody(StreamingHttpServletRequest streamingRequest, HttpServletRequest request) {
+    	try {
+    		streamingRequest.endOfBody();
+    	} catch (Exception ex) { // Catch all to prevent any interruption to the original request
+    		LOGGER.debug("Unable to stream the remainder of the request body of {}, shadow traffic aborted", request.getRequestURI(), ex);
+    	}
+    	if (streamingRequest.isOversized()) {
+    		shadowTrafficMetrics.recordOversized();
+    	}
+    	shadowTrafficMetrics.recordAbortedStreams(streamingRequest.getAbortedStreams());
+    }
+
+    /**
+     * Hand a snapshot of the request over to the dispatcher, taken on the request thread so the adapter never touches the servlet request. The
+     * snapshot holds a reference on the body, the adapter releases it once every host was sent to. A body larger than what was acquired
+     * from the in flight budget up front, its length being unknown, acquires the difference first.
+     */
+    private void invokeShadowTraffic(DrShadowHttpServletRequest drShadowRequest, HttpServletRequest request, ShadowTrafficPolicy policy,
+    		CompiledShadowTrafficConfig compiledConfig) {
+    	try {
+    		if (!drShadowRequest.finishCapture()) {
+    			if (drShadowRequest.isOversized()) {
+    				shadowTrafficMetrics.recordOversized();
+    			} else if (drShadowRequest.isCaptureFailed()) {
+    				shadowTrafficMetrics.recordCaptureFailed();
+    			} else {
+    				LOGGER.debug("Request body was read without blocking and not entirely, skipping shadow traffic for {}", request.getRequestURI());
+    			}
+    			return;
+    		}
+    		ShadowBody body = drShadowRequest.getBody();
+    		long missing = body != null && !body.isStreamed() ? body.length() - drShadowRequest.getChargedBytes() : 0;
+    		if (missing > 0) {
+    			if (!inFlightBudget.tryAcquire(missing, compiledConfig.getBodyMaxInFlightBytes())) {
+    				shadowTrafficMetrics.recordBudgetRejected();
+    				return;
+    			}
+    			drShadowRequest.charged(inFlightBudget, missing);
+    		}
+    		ShadowRequest shadowRequest = ShadowRequest.of(drShadowRequest, policy.getForwardHeaders());
+    		boolean dispatched = false;
+    		try {
+    			dispatched = shadowTrafficDispatcher.dispatch(shadowRequest, policy);
+    		} finally {
+    			if (!dispatched) {
+    				shadowRequest.discard();
+    			}
+    		}
     	} catch (Exception ex) { // Catch all to prevent any interruption to the original request
     		LOGGER.error("Shadow traffic was configured to be ON but invoking shadow traffic failed! Continuing w/ original request...", ex);
     	}
+    }
 
-    	chain.doFilter(drShadowRequest, response);
+    /**
+     * @return bytes the shadow request will hold, the declared body length or what every host stream of a streamed body can queue at most, 0
+     * if not known yet
+     */
+    private static long expectedBodyBytes(CompiledShadowTrafficConfig compiledConfig, HttpServletRequest request, ShadowTrafficPolicy policy) {
+        if (compiledConfig.getBodyCaptureMode() == BodyCaptureMode.STREAM) {
+            int hosts = policy.getHosts() != null ? policy.getHosts().size() : 0;
+            return StreamingHttpServletRequest.maxQueuedBytes(compiledConfig.getBodyStreamWindowBytes(),
+                    compiledConfig.getBodyStreamConnectBytes()) * hosts;
+        }
+        return Math.max(0, request.getContentLengthLong());
+    }
+
+    /**
+     * With coverage sampling the per route budget decides, a route with a zero percentage is still never shadowed. Otherwise requests carrying
+     * the configured sampling key are sampled by the bucket of their key, the others independently of each other.
+     */
+    private boolean isSampled(CompiledShadowTrafficConfig compiledConfig, HttpServletRequest request, CompiledInclusionPattern route,
+            ShadowTrafficPolicy policy) {
+        if (compiledConfig.getCoverageSampler() != null && route != null) {
+            return policy.getPercentage() > 0 && compiledConfig.getCoverageSampler().isSampled(route.getIndex());
+        }
+        StickySampler stickySampler = compiledConfig.getStickySampler();
+        int bucket = stickySampler != null ? stickySampler.bucket(request) : StickySampler.NO_BUCKET;
+        if (bucket == StickySampler.NO_BUCKET) {
+            Random sampler = random != null ? random : ThreadLocalRandom.current();
+            bucket = sampler.nextInt(StickySampler.BUCKETS);
+        }
+        return bucket < policy.getPercentage();
+    }
+
+    /**
+     * Runs the given action once the asynchronous processing of the request completed, whether it timed out or failed before.
+     */
+    private static final class CompletionListener implements AsyncListener {
+
+    	private final Runnable action;
+
+    	CompletionListener(Runnable action) {
+    		this.action = action;
+    	}
+
+    	@Override
+    	public void onComplete(AsyncEvent event) {
+    		action.run();
+    	}
+
+    	@Override
+    	public void onTimeout(AsyncEvent event) {
+    		// followed by onComplete
+    	}
+
+    	@Override
+    	public void onError(AsyncEvent event) {
+    		// followed by onComplete
+    	}
+
+    	@Override
+    	public void onStartAsync(AsyncEvent event) {
+    		// the listeners are cleared when the processing is restarted
+    		event.getAsyncContext().addListener(this);
+    	}
     }
-    
 }
@@ -1,43 +0,0 @@
-/**
- * Copyright (C) 2019 Expedia, Inc.
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- * http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-package com.expediagroup.library.drshadow.springboot;
-
-import org.slf4j.MDC;
-import org.springframework.core.task.TaskDecorator;
-
-import java.util.Map;
-
-/**
- * Ensure that MDC logging is passed to Dr Shadow async threads
- */
-public class ShadowTrafficLoggingTaskDecorator implements TaskDecorator {
-
-    @Override
-    public Runnable decorate(Runnable task) {
-        Map<String, String> context = MDC.getCopyOfContextMap();
-        return () -> {
-            try {
-                if (context != null) {
-                    MDC.setContextMap(context);
-                }
-                task.run();
-            } finally {
-                MDC.clear();
-            }
-        };
-    }
-
-}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing what the shadow traffic filter did with the requests it matched. Counters only ever grow, so rates are obtained by
+ * sampling them periodically.
+ */
+public class ShadowTrafficMetrics {
+
+    private final LongAdder sampledRequests = new LongAdder();
+    private final LongAdder unsampledRequests = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+    private final LongAdder suppressedRequests = new LongAdder();
+    private final LongAdder oversizedRequests = new LongAdder();
+    private final LongAdder captureFailedRequests = new LongAdder();
+    private final LongAdder abortedStreams = new LongAdder();
+    private final LongAdder budgetRejectedRequests = new LongAdder();
+    private final LongAdder poolRejectedRequests = new LongAdder();
+    private final LongAdder dispatchRejectedRequests = new LongAdder();
+    private final InFlightBudget inFlightBudget;
+
+    public ShadowTrafficMetrics() {
+        this(InFlightBudget.DEFAULT);
+    }
+
+    /**
+     *
+     * @param inFlightBudget Budget charged by the filter, only read to expose the bytes in flight
+     */
+    public ShadowTrafficMetrics(InFlightBudget inFlightBudget) {
+        this.inFlightBudget = inFlightBudget;
+    }
+
+    void recordSampled() {
+        sampledRequests.increment();
+    }
+
+    /**
+     * @param contentLength declared content length of the request, ignored if unknown
+     */
+    void recordUnsampled(long contentLength) {
+        unsampledRequests.increment();
+        if (contentLength > 0) {
+            bytesSaved.add(contentLength);
+        }
+    }
+
+    void recordSuppressed() {
+        suppressedRequests.increment();
+    }
+
+    void recordOversized() {
+        oversizedRequests.increment();
+    }
+
+    void recordCaptureFailed() {
+        captureFailedRequests.increment();
+    }
+
+    void recordAbortedStreams(int count) {
+        abortedStreams.add(count);
+    }
+
+    void recordBudgetRejected() {
+        budgetRejectedRequests.increment();
+    }
+
+    void recordPoolRejected() {
+        poolRejectedRequests.increment();
+    }
+
+    void recordDispatchRejected() {
+        dispatchRejectedRequests.increment();
+    }
+
+    /**
+     * @return number of matched requests selected for shadowing
+     */
+    public long getSampledRequestCount() {
+        return sampledRequests.sum();
+    }
+
+    /**
+     * @return number of matched requests passed through unwrapped because they fell outside the percentage
+     */
+    public long getUnsampledRequestCount() {
+        return unsampledRequests.sum();
+    }
+
+    /**
+     * @return request body bytes that were not buffered thanks to sampling, requests without a declared content length are not counted
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    /**
+     * @return number of sampled requests not sent because an identical request was sent within the deduplication window
+     */
+    public long getSuppressedRequestCount() {
+        return suppressedRequests.sum();
+    }
+
+    /**
+     * @return number of sampled requests not sent because their body is larger than the configured maximum
+     */
+    public long getOversizedRequestCount() {
+        return oversizedRequests.sum();
+    }
+
+    /**
+     * @return number of sampled requests not sent because their body could not be written to its temporary file
+     */
+    public long getCaptureFailedRequestCount() {
+        return captureFailedRequests.sum();
+    }
+
+    /**
+     * @return number of streamed shadow requests aborted because their host fell too far behind the request body
+     */
+    public long getAbortedStreamCount() {
+        return abortedStreams.sum();
+    }
+
+    /**
+     * @return number of sampled requests not shadowed because the bodies in flight already used up the budget
+     */
+    public long getBudgetRejectedRequestCount() {
+        return budgetRejectedRequests.sum();
+    }
+
+    /**
+     * @return number of body bytes currently held by shadow requests in flight
+     */
+    public long getInFlightBytes() {
+        return inFlightBudget.getUsedBytes();
+    }
+
+    /**
+     * @return number of shadow requests to a host not sent because every connection to the host was busy and too many requests already waited
+     */
+    public long getPoolRejectedRequestCount() {
+        return poolRejectedRequests.sum();
+    }
+
+    /**
+     * @return number of sampled requests not shadowed because the queues of every dispatcher thread were full
+     */
+    public long getDispatchRejectedRequestCount() {
+        return dispatchRejectedRequests.sum();
+    }
+}
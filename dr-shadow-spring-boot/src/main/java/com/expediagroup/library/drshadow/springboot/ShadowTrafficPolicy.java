@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.CollectionUtils;
+
+/**
+ * Immutable description of how a matched request is shadowed: which share of the requests, to which hosts and with which headers.
+ *
+ * The configuration level policy is the default of every route. An inclusion pattern or a {@link ShadowTraffic} annotation overrides parts of it
+ * for its own route.
+ */
+public final class ShadowTrafficPolicy {
+
+    private final int percentage;
+    private final List<String> hosts;
+    private final Map<String, String> customHeaders;
+    private final List<String> forwardHeaders;
+
+    ShadowTrafficPolicy(int percentage, List<String> hosts) {
+        this(percentage, hosts, null, null);
+    }
+
+    ShadowTrafficPolicy(int percentage, List<String> hosts, Map<String, String> customHeaders, List<String> forwardHeaders) {
+        this.percentage = percentage;
+        this.hosts = hosts == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(hosts));
+        this.customHeaders = customHeaders == null ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(customHeaders));
+        this.forwardHeaders = forwardHeaders == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(forwardHeaders));
+    }
+
+    /**
+     * @param shadowTrafficConfig Shadow Traffic Configuration
+     * @return the policy configured at the top level of the configuration
+     */
+    static ShadowTrafficPolicy of(ShadowTrafficConfig shadowTrafficConfig) {
+        return new ShadowTrafficPolicy(shadowTrafficConfig.getPercentage(), shadowTrafficConfig.getHosts(), shadowTrafficConfig.getCustomHeaders(),
+                shadowTrafficConfig.getForwardHeaders());
+    }
+
+    /**
+     * Apply the overrides of a single route, every null or empty override inherits the value of this policy.
+     *
+     * @param percentage percentage override
+     * @param hosts hosts override
+     * @param customHeaders custom headers override, replaces the inherited ones as a whole
+     * @param forwardHeaders forwarded headers override, replaces the inherited ones as a whole
+     * @return a policy with the given overrides applied on top of this one
+     * @throws IllegalArgumentException if the percentage is not within 0-100
+     */
+    ShadowTrafficPolicy override(Integer percentage, List<String> hosts, Map<String, String> customHeaders, List<String> forwardHeaders) {
+        if (percentage != null && (percentage < 0 || percentage > 100)) {
+            throw new IllegalArgumentException("Shadow traffic percentage must be within 0-100 but was " + percentage);
+        }
+        return new ShadowTrafficPolicy(percentage == null ? this.percentage : percentage,
+                CollectionUtils.isEmpty(hosts) ? this.hosts : hosts,
+                CollectionUtils.isEmpty(customHeaders) ? this.customHeaders : customHeaders,
+                CollectionUtils.isEmpty(forwardHeaders) ? this.forwardHeaders : forwardHeaders);
+    }
+
+    public int getPercentage() {
+        return percentage;
+    }
+
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    public Map<String, String> getCustomHeaders() {
+        return customHeaders;
+    }
+
+    public List<String> getForwardHeaders() {
+        return forwardHeaders;
+    }
+}
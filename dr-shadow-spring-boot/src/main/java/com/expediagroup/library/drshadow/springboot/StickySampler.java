@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.SamplingKeySource;
+
+/**
+ * Samples requests by hashing a key read from the request, a session or user id for example, into a fixed space of buckets. A request is
+ * sampled when its bucket is below the percentage, so a given key is either always or never shadowed for a percentage, on every instance, and
+ * raising the percentage only adds keys.
+ *
+ * The hash only depends on the characters of the key so every JVM puts a key in the same bucket.
+ */
+final class StickySampler {
+
+    static final int BUCKETS = 100;
+    static final int NO_BUCKET = -1;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final SamplingKeySource keySource;
+    private final String keyName;
+
+    /**
+     *
+     * @param keySource where the key is read from
+     * @param keyName name of the header, cookie or query parameter holding the key
+     * @throws IllegalArgumentException if the key name is blank
+     */
+    StickySampler(SamplingKeySource keySource, String keyName) {
+        if (StringUtils.isBlank(keyName)) {
+            throw new IllegalArgumentException("Sticky sampling from " + keySource + " requires a sampling key name");
+        }
+        this.keySource = keySource;
+        this.keyName = keyName;
+    }
+
+    /**
+     * @param request the incoming request
+     * @return the bucket of the request key, {@link #NO_BUCKET} if the request has no key
+     */
+    int bucket(HttpServletRequest request) {
+        String key = key(request);
+        return StringUtils.isEmpty(key) ? NO_BUCKET : bucket(key);
+    }
+
+    /**
+     * FNV-1a over the UTF-16 code units of the key, finished with the MurmurHash3 64 bit mix so that keys differing only in their last characters
+     * still spread over every bucket.
+     *
+     * @param key sampling key
+     * @return bucket of the key between 0 inclusive and {@link #BUCKETS} exclusive
+     */
+    static int bucket(String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) ((hash >>> 1) % BUCKETS);
+    }
+
+    private String key(HttpServletRequest request) {
+        switch (keySource) {
+            case HEADER:
+                return request.getHeader(keyName);
+            case COOKIE:
+                return cookie(request);
+            case QUERY_PARAM:
+                return queryParam(request.getQueryString());
+            default:
+                return null;
+        }
+    }
+
+    private String cookie(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (keyName.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The query string is parsed here rather than through getParameter, which would also read a form encoded body before the application does.
+     */
+    String queryParam(String queryString) {
+        if (queryString == null) {
+            return null;
+        }
+        int start = 0;
+        while (start <= queryString.length()) {
+            int end = queryString.indexOf('&', start);
+            if (end < 0) {
+                end = queryString.length();
+            }
+            if (queryString.startsWith(keyName, start) && start + keyName.length() < end && queryString.charAt(start + keyName.length()) == '=') {
+                return decode(queryString.substring(start + keyName.length() + 1, end));
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    private static String decode(String value) {
+        if (value.indexOf('%') < 0 && value.indexOf('+') < 0) {
+            return value;
+        }
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // a malformed escape still identifies the same key every time
+            return value;
+        }
+    }
+}
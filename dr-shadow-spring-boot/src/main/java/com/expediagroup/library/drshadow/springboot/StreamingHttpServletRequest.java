@@ -0,0 +1,390 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.UnicastProcessor;
+
+import com.expediagroup.library.drshadow.springboot.TeeHttpServletRequest.TeeServletInputStream;
+
+/**
+ * Streams the body to the shadow hosts while the application reads it, nothing is buffered beyond a small window per host. Every chunk the
+ * application reads is copied once and queued on the stream of every host, the shadow requests are sent as soon as the request is wrapped
+ * and write the chunks as they arrive.
+ *
+ * A host queueing more than the connect allowance before it is connected, or falling more than the window behind once it is, aborts the
+ * shadow request of that host only, the application keeps reading the original request unaffected. A body growing past the maximum aborts
+ * every host. Once the application is done with the request, {@link #endOfBody()} reads
+ * whatever it left unread and ends the streams.
+ */
+public class StreamingHttpServletRequest extends DrShadowHttpServletRequest {
+    
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+    
+    private final StreamingShadowBody body;
+    private TeeServletInputStream inputStream;
+    private BufferedReader reader;
+    
+    /**
+     *
+     * @param request Original http servlet request
+     * @param streams number of hosts the body is streamed to
+     * @param windowBytes number of bytes a host can fall behind once connected before its stream is aborted
+     * @param connectBytes number of bytes queued for a host while it connects before its stream is aborted
+     * @param maxBytes size above which the streams are aborted and the request counted as oversized
+     * @throws IOException IOException
+     */
+    public StreamingHttpServletRequest(HttpServletRequest request, int streams, int windowBytes, int connectBytes, int maxBytes) throws IOException {
+        super(request);
+        this.body = new StreamingShadowBody(request.getContentLengthLong(), streams, windowBytes, connectBytes, maxBytes);
+    }
+    
+    /**
+     * @param windowBytes number of bytes a host can fall behind once connected
+     * @param connectBytes number of bytes queued for a host while it connects
+     * @return most bytes queued for one host at any time, what it queued while connecting and did not take yet plus its window
+     */
+    static long maxQueuedBytes(int windowBytes, int connectBytes) {
+        return (long) windowBytes + connectBytes;
+    }
+    
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            ServletInputStream original = super.getInputStream();
+            if (original == null) {
+                return null;
+            }
+            inputStream = new TeeServletInputStream(original, body.getOutput());
+        }
+        return inputStream;
+    }
+    
+    @Override
+    public BufferedReader getReader() throws IOException {
+        if (reader == null) {
+            ServletInputStream in = getInputStream();
+            if (in == null) {
+                return null;
+            }
+            reader = new BufferedReader(new InputStreamReader(in, getBodyCharset()));
+        }
+        return reader;
+    }
+    
+    /**
+     * @return the streamed body, written to the hosts as the application reads it
+     */
+    @Override
+    ShadowBody getBody() {
+        return body;
+    }
+    
+    @Override
+    boolean isOversized() {
+        return body.isOversized();
+    }
+    
+    /**
+     * Read the part of the body the application did not and end the streams, unless the application switched to non blocking reads and
+     * did not read it all, the streams are then aborted. Reading stops as soon as every stream is done.
+     *
+     * @throws IOException if the remainder of the body could not be read, the streams are then aborted
+     */
+    void endOfBody() throws IOException {
+        try {
+            ServletInputStream in = getInputStream();
+            if (in != null && !body.isDone()) {
+                if (inputStream.isNonBlocking()) {
+                    if (!in.isFinished()) {
+                        body.abort();
+                        return;
+                    }
+                } else {
+                    byte[] drain = new byte[DRAIN_BUFFER_SIZE];
+                    while (!body.isDone() && in.read(drain, 0, drain.length) != -1) {
+                        // the tee stream streams what is read
+                    }
+                }
+            }
+            body.complete();
+        } catch (IOException | RuntimeException e) {
+            body.abort();
+            throw e;
+        }
+    }
+    
+    /**
+     * @return number of host streams aborted because the host took longer than the connect allowance or fell behind by more than the window
+     */
+    int getAbortedStreams() {
+        return body.getAbortedStreams();
+    }
+    
+    @Override
+    void freeBody() {
+        body.abort();
+    }
+    
+    private Charset getBodyCharset() {
+        String characterEncoding = getCharacterEncoding();
+        // ISO-8859-1 is the servlet default when the request does not declare its encoding
+        return characterEncoding != null ? Charset.forName(characterEncoding) : StandardCharsets.ISO_8859_1;
+    }
+    
+    /**
+     * Body written to the hosts as it is read. Every host claims one stream. The chunks queued while a host connects are bounded by the
+     * connect allowance, so a slow connection or TLS handshake is not held to the window, and its window starts once it subscribed.
+     */
+    static final class StreamingShadowBody extends ShadowBody {
+        
+        private static final DefaultDataBufferFactory DATA_BUFFER_FACTORY = new DefaultDataBufferFactory();
+        
+        private final long declaredLength;
+        private final int windowBytes;
+        private final int connectBytes;
+        private final int maxBytes;
+        private final List<HostStream> streams;
+        private final AtomicInteger claimed = new AtomicInteger();
+        private final MonoProcessor<Void> completion = MonoProcessor.create();
+        private final OutputStream output = new OutputStream() {
+            
+            @Override
+            public void write(int b) {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) {
+                StreamingShadowBody.this.write(b, off, len);
+            }
+        };
+        private long size;
+        private boolean oversized;
+        private int abortedStreams;
+        
+        StreamingShadowBody(long declaredLength, int streams, int windowBytes, int connectBytes, int maxBytes) {
+            this.declaredLength = declaredLength;
+            this.windowBytes = windowBytes;
+            this.connectBytes = connectBytes;
+            this.maxBytes = maxBytes;
+            this.streams = new ArrayList<>(streams);
+            for (int i = 0; i < streams; i++) {
+                this.streams.add(new HostStream());
+            }
+        }
+        
+        /**
+         * @return the declared content length, the actual length is only known once the whole body was read
+         */
+        @Override
+        long length() {
+            return declaredLength >= 0 ? declaredLength : -1;
+        }
+        
+        @Override
+        boolean isStreamed() {
+            return true;
+        }
+        
+        /**
+         * @return the next unclaimed host stream
+         */
+        @Override
+        Flux<DataBuffer> content() {
+            int index = claimed.getAndIncrement();
+            if (index >= streams.size()) {
+                return Flux.error(new IllegalStateException("The body is only streamed to " + streams.size() + " hosts"));
+            }
+            return streams.get(index).flux;
+        }
+        
+        /**
+         * Drop a host stream claimed by {@link #content()} that will never be subscribed to, its chunks are dropped and it takes no more.
+         */
+        @Override
+        void discard(Flux<DataBuffer> content) {
+            for (HostStream stream : streams) {
+                if (stream.flux == content) {
+                    stream.abort(new CancellationException("Shadow request not sent, its body stream is discarded"));
+                }
+            }
+        }
+        
+        @Override
+        Mono<Void> whenComplete() {
+            return completion;
+        }
+        
+        OutputStream getOutput() {
+            return output;
+        }
+        
+        void write(byte[] bytes, int offset, int length) {
+            if (length <= 0 || isDone()) {
+                return;
+            }
+            size += length;
+            if (size > maxBytes) {
+                oversized = true;
+                abort();
+                return;
+            }
+            // one copy shared by every host, each of them reads it through its own buffer
+            byte[] chunk = Arrays.copyOfRange(bytes, offset, offset + length);
+            for (HostStream stream : streams) {
+                if (!stream.offer(chunk)) {
+                    abortedStreams++;
+                }
+            }
+        }
+        
+        /**
+         * @return true if no host stream takes any more bytes
+         */
+        boolean isDone() {
+            for (HostStream stream : streams) {
+                if (!stream.terminated) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        boolean isOversized() {
+            return oversized;
+        }
+        
+        int getAbortedStreams() {
+            return abortedStreams;
+        }
+        
+        void complete() {
+            for (HostStream stream : streams) {
+                stream.complete();
+            }
+            if (!completion.isTerminated()) {
+                completion.onComplete();
+            }
+        }
+        
+        @Override
+        void free() {
+            abort();
+        }
+        
+        @Override
+        void abort() {
+            for (HostStream stream : streams) {
+                stream.abort(new CancellationException("Shadow traffic body stream aborted"));
+            }
+            if (!completion.isTerminated()) {
+                completion.onError(new CancellationException("Shadow traffic body stream aborted"));
+            }
+        }
+        
+        /**
+         * Chunks queued for one host. The bytes queued before the host subscribed are accounted for against the connect allowance, the ones
+         * queued after and not yet taken by it against the window. The backlog is taken first, so a host never holds more than both.
+         */
+        private final class HostStream {
+            
+            private final UnicastProcessor<DataBuffer> processor = UnicastProcessor.create();
+            private final MonoProcessor<Throwable> aborted = MonoProcessor.create();
+            private final AtomicLong backlogBytes = new AtomicLong();
+            private final AtomicLong pendingBytes = new AtomicLong();
+            private volatile boolean subscribed;
+            private volatile boolean terminated;
+            
+            /**
+             * An abort cuts the stream right away, dropping the chunks still queued, instead of waiting for the host to take them.
+             */
+            private final Flux<DataBuffer> flux = processor
+                    .doOnSubscribe(subscription -> subscribed = true)
+                    .doOnNext(this::taken)
+                    .doOnCancel(() -> terminated = true)
+                    .takeUntilOther(aborted)
+                    .concatWith(Mono.defer(() -> aborted.isTerminated() ? Mono.error(aborted.peek()) : Mono.empty()));
+            
+            /**
+             * @return false if the host queued more than the connect allowance before it connected, or fell more than the window behind
+             * after, and its stream was aborted
+             */
+            boolean offer(byte[] chunk) {
+                if (terminated) {
+                    return true;
+                }
+                if (!subscribed) {
+                    if (backlogBytes.addAndGet(chunk.length) > connectBytes) {
+                        abort(new IOException("Shadow host did not connect within the first " + connectBytes + " bytes of the request body"));
+                        return false;
+                    }
+                } else if (pendingBytes.addAndGet(chunk.length) > windowBytes) {
+                    abort(new IOException("Shadow host fell more than " + windowBytes + " bytes behind the request body"));
+                    return false;
+                }
+                processor.onNext(DATA_BUFFER_FACTORY.wrap(chunk));
+                return true;
+            }
+            
+            /**
+             * The chunks are taken in the order they were queued, so the backlog is taken in full before any chunk counted in the window.
+             */
+            private void taken(DataBuffer buffer) {
+                int length = buffer.readableByteCount();
+                if (backlogBytes.get() > 0) {
+                    backlogBytes.addAndGet(-length);
+                } else {
+                    pendingBytes.addAndGet(-length);
+                }
+            }
+            
+            void complete() {
+                if (!terminated) {
+                    terminated = true;
+                    processor.onComplete();
+                }
+            }
+            
+            void abort(Throwable cause) {
+                if (!terminated) {
+                    terminated = true;
+                    aborted.onNext(cause);
+                }
+            }
+        }
+    }
+}
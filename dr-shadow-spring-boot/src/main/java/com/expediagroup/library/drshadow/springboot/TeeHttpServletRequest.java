@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Captures the body while the application reads it instead of before. Every byte the application reads through {@link #getInputStream()}
+ * or {@link #getReader()} is copied into the capture buffer, and {@link #finishCapture()} reads whatever it left unread once it is done
+ * with the request. The shadow request can only be sent after that, so the original request no longer waits for the body to be buffered.
+ */
+public class TeeHttpServletRequest extends DrShadowHttpServletRequest {
+    
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+    
+    private final CaptureBuffer capture;
+    private TeeServletInputStream inputStream;
+    private BufferedReader reader;
+    private ShadowBody body;
+    
+    /**
+     *
+     * @param request Original http servlet request
+     * @throws IOException IOException
+     */
+    public TeeHttpServletRequest(HttpServletRequest request) throws IOException {
+        this(request, CaptureBuffer.MAX_ARRAY_LENGTH, CaptureBuffer.MAX_ARRAY_LENGTH);
+    }
+    
+    /**
+     * A body larger than the maximum is not captured at all, the application still reads it from the original request.
+     *
+     * @param request Original http servlet request
+     * @param maxInMemoryBytes size above which the body spills to a memory mapped temporary file
+     * @param maxBytes size above which the body is not captured and the request not shadowed
+     * @throws IOException IOException
+     */
+    public TeeHttpServletRequest(HttpServletRequest request, int maxInMemoryBytes, int maxBytes) throws IOException {
+        this(request, maxInMemoryBytes, maxBytes, CaptureBuffer.UNPOOLED);
+    }
+    
+    /**
+     *
+     * @param request Original http servlet request
+     * @param maxInMemoryBytes size above which the body spills to a memory mapped temporary file
+     * @param maxBytes size above which the body is not captured and the request not shadowed
+     * @param allocator allocator of the in memory body
+     * @throws IOException IOException
+     */
+    public TeeHttpServletRequest(HttpServletRequest request, int maxInMemoryBytes, int maxBytes, ByteBufAllocator allocator) throws IOException {
+        super(request);
+        this.capture = new CaptureBuffer(request.getContentLengthLong(), maxInMemoryBytes, maxBytes, allocator);
+    }
+    
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            ServletInputStream original = super.getInputStream();
+            if (original == null) {
+                return null;
+            }
+            inputStream = new TeeServletInputStream(original, capture);
+        }
+        return inputStream;
+    }
+    
+    @Override
+    public BufferedReader getReader() throws IOException {
+        if (reader == null) {
+            ServletInputStream in = getInputStream();
+            if (in == null) {
+                return null;
+            }
+            reader = new BufferedReader(new InputStreamReader(in, getBodyCharset()));
+        }
+        return reader;
+    }
+    
+    /**
+     * Read the part of the body the application did not, unless it switched the stream to non blocking reads. In that case the body is
+     * only complete if the application read it all.
+     *
+     * The remainder is read on the request thread once the application is done, so an upload the application ignored still delays the
+     * end of the request by the time it takes to receive at most the maximum size. Past that nothing more is read: a body declared larger
+     * than the maximum is never captured nor drained, and reading stops as soon as a body without declared length grows past it.
+     */
+    @Override
+    boolean finishCapture() throws IOException {
+        if (body != null) {
+            return true;
+        }
+        ServletInputStream in = getInputStream();
+        if (in != null) {
+            if (inputStream.isNonBlocking()) {
+                if (!in.isFinished()) {
+                    return false;
+                }
+            } else {
+                byte[] drain = new byte[DRAIN_BUFFER_SIZE];
+                while (!capture.isOverflowed() && in.read(drain, 0, drain.length) != -1) {
+                    // the tee stream captures what is read
+                }
+            }
+        }
+        body = capture.toShadowBody();
+        return body != null;
+    }
+    
+    /**
+     * @return the captured body, null until {@link #finishCapture()} completed
+     */
+    @Override
+    ShadowBody getBody() {
+        return body;
+    }
+    
+    @Override
+    boolean isCapturedAfterChain() {
+        return true;
+    }
+    
+    @Override
+    boolean isCaptureComplete() {
+        return body != null;
+    }
+    
+    @Override
+    boolean isOversized() {
+        return capture.isOverflowed();
+    }
+    
+    @Override
+    boolean isCaptureFailed() {
+        return capture.isFailed();
+    }
+    
+    @Override
+    void freeBody() {
+        if (body != null) {
+            body.free();
+        } else {
+            capture.discard();
+        }
+    }
+    
+    private Charset getBodyCharset() {
+        String characterEncoding = getCharacterEncoding();
+        // ISO-8859-1 is the servlet default when the request does not declare its encoding
+        return characterEncoding != null ? Charset.forName(characterEncoding) : StandardCharsets.ISO_8859_1;
+    }
+    
+    /**
+     * Copies every byte read from the container stream to the given output, which must not throw.
+     */
+    static final class TeeServletInputStream extends ServletInputStream {
+        
+        private final ServletInputStream in;
+        private final OutputStream capture;
+        private boolean nonBlocking;
+        
+        TeeServletInputStream(ServletInputStream in, OutputStream capture) {
+            this.in = in;
+            this.capture = capture;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                capture.write(b);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                capture.write(b, off, read);
+            }
+            return read;
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+        
+        @Override
+        public boolean isFinished() {
+            return in.isFinished();
+        }
+        
+        @Override
+        public boolean isReady() {
+            return in.isReady();
+        }
+        
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            nonBlocking = true;
+            in.setReadListener(readListener);
+        }
+        
+        boolean isNonBlocking() {
+            return nonBlocking;
+        }
+    }
+}
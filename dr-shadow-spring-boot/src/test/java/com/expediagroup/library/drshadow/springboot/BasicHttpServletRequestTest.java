@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BasicHttpServletRequestTest {
+
+    private static final byte[] BODY = new byte[]{0x00, (byte) 0xe9, (byte) 0xff, 0x7f, (byte) 0x80, 0x0a};
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testBodyCaptured_expectReplayedToApplicationAndShadowed() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        when(request.getContentLengthLong()).thenReturn((long) BODY.length);
+        BasicHttpServletRequest basicRequest = new BasicHttpServletRequest(request, 1024, 1024);
+
+        byte[] read = new byte[BODY.length];
+        assertEquals(BODY.length, basicRequest.getInputStream().read(read));
+        assertArrayEquals(BODY, read);
+        assertEquals(BODY[0], basicRequest.getInputStream().read());
+        assertArrayEquals(BODY, CaptureBufferTest.bytes(basicRequest.getBody()));
+        assertTrue(basicRequest.finishCapture());
+    }
+
+    @Test
+    public void testBodyAboveMaximum_expectStillReplayedButNotShadowed() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        BasicHttpServletRequest basicRequest = new BasicHttpServletRequest(request, 2, 4);
+
+        byte[] read = new byte[BODY.length];
+        assertEquals(BODY.length, basicRequest.getInputStream().read(read));
+        assertArrayEquals(BODY, read);
+        assertTrue(basicRequest.isOversized());
+        assertFalse(basicRequest.finishCapture());
+        basicRequest.release();
+    }
+
+    @Test
+    public void testSpillDirectoryUnwritable_expectStillReplayedButNotShadowed() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        when(request.getContentLengthLong()).thenReturn((long) BODY.length);
+        BasicHttpServletRequest basicRequest = new BasicHttpServletRequest(request, 2, 1024, CaptureBuffer.UNPOOLED,
+                temporaryFolder.newFile().toPath().resolve("spill"));
+
+        byte[] read = new byte[BODY.length];
+        assertEquals(BODY.length, basicRequest.getInputStream().read(read));
+        assertArrayEquals(BODY, read);
+        assertTrue(basicRequest.isCaptureFailed());
+        assertFalse(basicRequest.isOversized());
+        assertFalse(basicRequest.finishCapture());
+        basicRequest.release();
+    }
+
+    @Test
+    public void testBulkReadSkipAndAvailable_expectConsistentPositions() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        BasicHttpServletRequest basicRequest = new BasicHttpServletRequest(request, 1024, 1024);
+        ServletInputStream in = basicRequest.getInputStream();
+
+        assertEquals(BODY.length, in.available());
+        assertEquals(2, in.skip(2));
+        byte[] read = new byte[3];
+        assertEquals(3, in.read(read, 0, 3));
+        assertArrayEquals(new byte[]{BODY[2], BODY[3], BODY[4]}, read);
+        assertEquals(1, in.available());
+        assertFalse(in.isFinished());
+        assertEquals(1, in.skip(10));
+        assertTrue(in.isFinished());
+        assertEquals(-1, in.read(read, 0, 3));
+    }
+
+    @Test
+    public void testReadListener_expectBodyReadWithoutBlockingThenAllDataRead() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        BasicHttpServletRequest basicRequest = new BasicHttpServletRequest(request, 1024, 1024);
+        ServletInputStream in = basicRequest.getInputStream();
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        List<String> events = new ArrayList<>();
+
+        in.setReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                events.add("onDataAvailable");
+                byte[] chunk = new byte[4];
+                int length;
+                while (in.isReady() && (length = in.read(chunk)) != -1) {
+                    read.write(chunk, 0, length);
+                }
+                events.add("read");
+            }
+
+            @Override
+            public void onAllDataRead() {
+                events.add("onAllDataRead");
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                fail(t.getMessage());
+            }
+        });
+
+        assertArrayEquals(BODY, read.toByteArray());
+        assertEquals(3, events.size());
+        assertEquals("onDataAvailable", events.get(0));
+        assertEquals("read", events.get(1));
+        assertEquals("onAllDataRead", events.get(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSecondReadListener_expectRejected() throws IOException {
+        ServletInputStream in = new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(new byte[0]));
+        ReadListener listener = new ReadListener() {
+            @Override
+            public void onDataAvailable() {
+            }
+
+            @Override
+            public void onAllDataRead() {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+        };
+        in.setReadListener(listener);
+        in.setReadListener(listener);
+    }
+}
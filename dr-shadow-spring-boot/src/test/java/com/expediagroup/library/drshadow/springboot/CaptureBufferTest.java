@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import com.expediagroup.library.drshadow.springboot.ShadowBody.BufferedShadowBody;
+import com.expediagroup.library.drshadow.springboot.ShadowBody.ByteBufShadowBody;
+import com.expediagroup.library.drshadow.springboot.ShadowBody.MappedShadowBody;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureBufferTest {
+
+    private static final byte[] BODY = new byte[]{0x00, (byte) 0xe9, (byte) 0xff, 0x7f, (byte) 0x80, 0x0a};
+
+    @Rule
+    public NettyLeakRule nettyLeakRule = new NettyLeakRule();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testReadBodyOfDeclaredLength_expectBytesUnchanged() throws IOException {
+        assertArrayEquals(BODY, read(BODY.length, 1024, 1024));
+    }
+
+    @Test
+    public void testReadBodyOfUnknownLength_expectBytesUnchanged() throws IOException {
+        assertArrayEquals(BODY, read(-1, 1024, 1024));
+    }
+
+    @Test
+    public void testReadBodyShorterThanDeclared_expectBytesRead() throws IOException {
+        assertArrayEquals(BODY, read(BODY.length + 10, 1024, 1024));
+    }
+
+    @Test
+    public void testReadBodyLongerThanDeclared_expectWholeBody() throws IOException {
+        assertArrayEquals(BODY, read(2, 1024, 1024));
+    }
+
+    @Test
+    public void testBodyAboveInMemoryThreshold_expectSpilledToMappedFileDeletedOnFree() throws IOException {
+        CaptureBuffer capture = new CaptureBuffer(-1, 4, 1024, CaptureBuffer.UNPOOLED);
+        capture.write(BODY[0]);
+        capture.write(BODY, 1, BODY.length - 1);
+
+        ShadowBody body = capture.toShadowBody();
+
+        assertTrue(body instanceof MappedShadowBody);
+        assertArrayEquals(BODY, bytes(body));
+        Path file = ((MappedShadowBody) body).getFile();
+        assertTrue(Files.exists(file));
+        body.free();
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void testBodyAboveMaximum_expectNotCapturedAndSpillFileDeleted() throws IOException {
+        CaptureBuffer capture = new CaptureBuffer(-1, 2, 4, CaptureBuffer.UNPOOLED);
+        capture.readFrom(new ByteArrayInputStream(BODY));
+
+        assertTrue(capture.isOverflowed());
+        assertEquals(BODY.length, capture.size());
+        assertNull(capture.toShadowBody());
+    }
+
+    @Test
+    public void testSpillDirectoryUnwritable_expectCaptureGivenUp() throws IOException {
+        CaptureBuffer capture = new CaptureBuffer(-1, 2, 1024, CaptureBuffer.UNPOOLED, false, unwritableDirectory());
+        capture.readFrom(new ByteArrayInputStream(BODY));
+
+        assertTrue(capture.isFailed());
+        assertEquals(BODY.length, capture.size());
+        assertNull(capture.toShadowBody());
+    }
+
+    @Test
+    public void testSpillDirectoryUnwritableWithHeapFallback_expectWholeBodyKeptOnHeap() throws IOException {
+        CaptureBuffer capture = new CaptureBuffer(-1, 2, 1024, CaptureBuffer.UNPOOLED, true, unwritableDirectory());
+        capture.write(BODY[0]);
+        capture.write(BODY, 1, 2);
+        capture.readFrom(new ByteArrayInputStream(BODY, 3, BODY.length - 3));
+
+        ShadowBody body = capture.toShadowBody();
+
+        assertTrue(capture.isFailed());
+        assertTrue(body instanceof ByteBufShadowBody);
+        assertArrayEquals(BODY, bytes(body));
+        body.free();
+    }
+
+    @Test
+    public void testPooledBody_expectBufferReturnedOnlyOnceEveryHostAndOwnerReleasedIt() throws IOException {
+        CaptureBuffer capture = new CaptureBuffer(BODY.length, 1024, 1024, new PooledByteBufAllocator(false));
+        capture.readFrom(new ByteArrayInputStream(BODY));
+
+        BufferedShadowBody body = capture.toShadowBody();
+        ByteBuf buffer = ((ByteBufShadowBody) body).getBuffer();
+        DataBuffer firstHost = body.newDataBuffer();
+        DataBuffer secondHost = body.newDataBuffer();
+
+        assertEquals(3, buffer.refCnt());
+        DataBufferUtils.release(firstHost);
+        DataBufferUtils.release(secondHost);
+        assertEquals(1, buffer.refCnt());
+        assertArrayEquals(BODY, bytes(body));
+        body.free();
+        assertEquals(0, buffer.refCnt());
+    }
+
+    @Test
+    public void testPooledBodySpilled_expectBytesUnchanged() throws IOException {
+        CaptureBuffer capture = new CaptureBuffer(-1, 4, 1024, new PooledByteBufAllocator(false));
+        capture.readFrom(new ByteArrayInputStream(BODY));
+
+        ShadowBody body = capture.toShadowBody();
+
+        assertTrue(body instanceof MappedShadowBody);
+        assertArrayEquals(BODY, bytes(body));
+        body.free();
+    }
+
+    /**
+     * A directory below a regular file, which cannot be created whatever the permissions of the user running the tests.
+     */
+    private Path unwritableDirectory() throws IOException {
+        return temporaryFolder.newFile().toPath().resolve("spill");
+    }
+
+    private static byte[] read(long contentLength, int maxInMemoryBytes, int maxBytes) throws IOException {
+        CaptureBuffer capture = new CaptureBuffer(contentLength, maxInMemoryBytes, maxBytes, CaptureBuffer.UNPOOLED);
+        capture.readFrom(new ByteArrayInputStream(BODY));
+        return bytes(capture.toShadowBody());
+    }
+
+    static byte[] bytes(ShadowBody body) {
+        ByteBuffer buffer = ((BufferedShadowBody) body).asByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
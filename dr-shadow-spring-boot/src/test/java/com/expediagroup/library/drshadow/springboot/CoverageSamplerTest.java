@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoverageSamplerTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testEveryRouteGetsItsMinimumWhileTheTotalIsCapped() {
+        int hot = 0;
+        int rare = 1;
+        CoverageSampler sampler = new CoverageSampler(1000, 10, 2, 2, clock::get);
+
+        int hotSampled = sample(sampler, hot, 10000);
+        int rareSampled = sample(sampler, rare, 3);
+
+        // the hot route takes its minimum and the whole shared budget, the rare one still gets its minimum
+        assertEquals(2 + 6, hotSampled);
+        assertEquals(2, rareSampled);
+    }
+
+    @Test
+    public void testBudgetIsRenewedEveryWindow() {
+        int route = 0;
+        CoverageSampler sampler = new CoverageSampler(1000, 5, 1, 1, clock::get);
+
+        assertEquals(5, sample(sampler, route, 100));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        int sampled = sample(sampler, route, 100);
+
+        // the previous window saw 100 arrivals, the rest of the budget is spread over them
+        assertTrue(String.valueOf(sampled), sampled >= 1 && sampled <= 5);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(5000));
+        assertEquals(5, sample(sampler, route, 5));
+    }
+
+    @Test
+    public void testConcurrentRequestsNeverExceedTheBudget() throws Exception {
+        int routes = 4;
+        CoverageSampler sampler = new CoverageSampler(60000, 100, 5, routes, clock::get);
+        AtomicInteger[] sampled = new AtomicInteger[routes];
+        for (int i = 0; i < sampled.length; i++) {
+            sampled[i] = new AtomicInteger();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    int route = i % routes;
+                    if (sampler.isSampled(route)) {
+                        sampled[route].incrementAndGet();
+                    }
+                }
+                done.countDown();
+            });
+        }
+        done.await(30, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        int total = 0;
+        for (AtomicInteger count : sampled) {
+            assertTrue(count.get() >= 5);
+            total += count.get();
+        }
+        assertEquals(100, total);
+    }
+
+    @Test
+    public void testUnknownRouteOnlyCompetesForTheSharedBudget() {
+        CoverageSampler sampler = new CoverageSampler(1000, 4, 2, 1, clock::get);
+
+        // a route of a previous configuration snapshot has no guaranteed share in this sampler
+        assertEquals(2, sample(sampler, 7, 100));
+        assertEquals(2, sample(sampler, 0, 100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowMustBePositive() {
+        new CoverageSampler(0, 100, 1, 1);
+    }
+
+    private int sample(CoverageSampler sampler, int route, int requests) {
+        int sampled = 0;
+        for (int i = 0; i < requests; i++) {
+            if (sampler.isSampled(route)) {
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+}
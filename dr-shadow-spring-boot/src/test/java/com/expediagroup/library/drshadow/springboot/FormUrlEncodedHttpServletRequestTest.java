@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FormUrlEncodedHttpServletRequestTest {
+
+    private static final String FORM = "name=caf%C3%A9&tag=a&tag=b%26c&empty=&flag";
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Test
+    public void testRawFormBodyReadByApplication_expectForwardedAsIsOnceAndNeverParsedByWrapper() throws IOException {
+        byte[] form = FORM.getBytes(StandardCharsets.US_ASCII);
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(form)));
+        when(request.getContentLengthLong()).thenReturn((long) form.length);
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request);
+
+        assertEquals(FORM, formRequest.getReader().readLine());
+        assertTrue(formRequest.finishCapture());
+        ShadowBody body = formRequest.getBody();
+
+        assertArrayEquals(form, CaptureBufferTest.bytes(body));
+        assertSame(body, formRequest.getBody());
+        assertFalse(formRequest.isQueryStringInBody());
+        verify(request, never()).getParameterMap();
+    }
+
+    @Test
+    public void testFormBodyNeverRead_expectRawBodyReadOnceApplicationIsDone() throws IOException {
+        byte[] form = FORM.getBytes(StandardCharsets.US_ASCII);
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(form)));
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request);
+
+        assertNull(formRequest.getBody());
+        assertTrue(formRequest.finishCapture());
+
+        assertArrayEquals(form, CaptureBufferTest.bytes(formRequest.getBody()));
+        assertFalse(formRequest.isQueryStringInBody());
+    }
+
+    @Test
+    public void testParametersAskedFirst_expectServedByContainerAndEveryValueReEncoded() throws IOException {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        parameters.put("name", new String[]{"café"});
+        parameters.put("tag", new String[]{"a", "b&c"});
+        when(request.getParameter("name")).thenReturn("café");
+        when(request.getParameterMap()).thenReturn(parameters);
+        when(request.getCharacterEncoding()).thenReturn("UTF-8");
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request);
+
+        assertEquals("café", formRequest.getParameter("name"));
+        assertTrue(formRequest.finishCapture());
+
+        assertEquals("name=caf%C3%A9&tag=a&tag=b%26c", new String(CaptureBufferTest.bytes(formRequest.getBody()), StandardCharsets.US_ASCII));
+        assertTrue(formRequest.isQueryStringInBody());
+        verify(request, never()).getInputStream();
+    }
+
+    @Test
+    public void testParametersWithoutDeclaredCharset_expectReEncodedAsIso88591LikeTheContainerDecodedThem() throws IOException {
+        when(request.getParameterMap()).thenReturn(Collections.singletonMap("name", new String[]{"café"}));
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request);
+
+        assertArrayEquals(new String[]{"café"}, formRequest.getParameterMap().get("name"));
+        assertTrue(formRequest.finishCapture());
+
+        assertEquals("name=caf%E9", new String(CaptureBufferTest.bytes(formRequest.getBody()), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testBodyReadThenParameters_expectParametersFromContainerAndRawBody() throws IOException {
+        byte[] form = FORM.getBytes(StandardCharsets.US_ASCII);
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(form)));
+        when(request.getParameter("page")).thenReturn("2");
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request);
+
+        assertArrayEquals(form, IOUtils.toByteArray(formRequest.getInputStream()));
+        assertEquals("2", formRequest.getParameter("page"));
+        assertTrue(formRequest.finishCapture());
+
+        assertArrayEquals(form, CaptureBufferTest.bytes(formRequest.getBody()));
+        assertFalse(formRequest.isQueryStringInBody());
+    }
+
+    @Test
+    public void testFormBodyAlreadyConsumed_expectEveryValueReEncodedFromParameters() throws IOException {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        parameters.put("name", new String[]{"café"});
+        parameters.put("tag", new String[]{"a", "b&c"});
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(new byte[0])));
+        when(request.getContentLengthLong()).thenReturn(42L);
+        when(request.getParameterMap()).thenReturn(parameters);
+        when(request.getCharacterEncoding()).thenReturn("UTF-8");
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request);
+
+        assertTrue(formRequest.finishCapture());
+        ShadowBody body = formRequest.getBody();
+
+        assertEquals("name=caf%C3%A9&tag=a&tag=b%26c", new String(CaptureBufferTest.bytes(body), StandardCharsets.US_ASCII));
+        assertSame(body, formRequest.getBody());
+        assertTrue(formRequest.isQueryStringInBody());
+    }
+
+    @Test
+    public void testChunkedFormBodyAlreadyConsumed_expectReEncodedFromParameters() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(new byte[0])));
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        when(request.getParameterMap()).thenReturn(Collections.singletonMap("name", new String[]{"value"}));
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request);
+
+        assertTrue(formRequest.finishCapture());
+
+        assertEquals("name=value", new String(CaptureBufferTest.bytes(formRequest.getBody()), StandardCharsets.US_ASCII));
+        assertTrue(formRequest.isQueryStringInBody());
+    }
+
+    @Test
+    public void testFormDeclaredAboveMaximum_expectNotShadowedAndParametersLeftToContainer() throws IOException {
+        when(request.getContentLengthLong()).thenReturn(1000L);
+        when(request.getParameterValues("tag")).thenReturn(new String[]{"a", "b&c"});
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request, 10, 10, CaptureBuffer.UNPOOLED);
+
+        assertArrayEquals(new String[]{"a", "b&c"}, formRequest.getParameterValues("tag"));
+        assertFalse(formRequest.finishCapture());
+        assertTrue(formRequest.isOversized());
+        assertNull(formRequest.getBody());
+        verify(request, never()).getParameterMap();
+    }
+
+    @Test
+    public void testFormAboveMaximumReadByApplication_expectWholeBodyReadAndNotShadowed() throws IOException {
+        byte[] form = FORM.getBytes(StandardCharsets.US_ASCII);
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(form)));
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request, 10, 10, CaptureBuffer.UNPOOLED);
+
+        assertArrayEquals(form, IOUtils.toByteArray(formRequest.getInputStream()));
+        assertFalse(formRequest.finishCapture());
+        assertTrue(formRequest.isOversized());
+    }
+
+    @Test
+    public void testReEncodedFormAboveMaximum_expectNotShadowed() throws IOException {
+        when(request.getParameterMap()).thenReturn(Collections.singletonMap("name", new String[]{"a value longer than the maximum"}));
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request, 10, 10, CaptureBuffer.UNPOOLED);
+
+        formRequest.getParameterMap();
+
+        assertFalse(formRequest.finishCapture());
+        assertTrue(formRequest.isOversized());
+        assertNull(formRequest.getBody());
+    }
+}
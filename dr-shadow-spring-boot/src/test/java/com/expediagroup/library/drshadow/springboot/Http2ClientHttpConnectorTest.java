@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2FrameStream;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class Http2ClientHttpConnectorTest {
+
+    @Rule
+    public NettyLeakRule nettyLeakRule = new NettyLeakRule();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger streams = new AtomicInteger();
+    private final AtomicInteger bodyBytes = new AtomicInteger();
+    private volatile int closedConnections;
+    private volatile boolean interim;
+    private NioEventLoopGroup serverGroup;
+    private Channel server;
+    private String baseUrl;
+    private ShadowTrafficConfig config;
+    private ShadowTrafficConnectionPools pools;
+
+    /**
+     * Embedded h2c server with prior knowledge, every request is answered with a 200 and "ok" once its body was received, preceded by a 100
+     * if interim is set. The first closedConnections connections are closed right away.
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        serverGroup = new NioEventLoopGroup(1);
+        server = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        if (connections.incrementAndGet() <= closedConnections) {
+                            ch.close();
+                            return;
+                        }
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forServer().build(), new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                if (msg instanceof Http2HeadersFrame) {
+                                    Http2HeadersFrame frame = (Http2HeadersFrame) msg;
+                                    streams.incrementAndGet();
+                                    if (frame.isEndStream()) {
+                                        respond(ctx, frame.stream());
+                                    }
+                                } else if (msg instanceof Http2DataFrame) {
+                                    Http2DataFrame frame = (Http2DataFrame) msg;
+                                    bodyBytes.addAndGet(frame.content().readableBytes());
+                                    if (frame.isEndStream()) {
+                                        respond(ctx, frame.stream());
+                                    }
+                                }
+                                ReferenceCountUtil.release(msg);
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+        baseUrl = "http://localhost:" + ((InetSocketAddress) server.localAddress()).getPort();
+        config = new ShadowTrafficConfig();
+        config.setHttpProtocol(ShadowTrafficConfig.HttpProtocol.HTTP2);
+        config.setHttpH2Connections(1);
+    }
+
+    private void respond(ChannelHandlerContext ctx, Http2FrameStream stream) {
+        if (interim) {
+            ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("100")).stream(stream));
+        }
+        ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().status("200")).stream(stream));
+        ctx.writeAndFlush(new DefaultHttp2DataFrame(Unpooled.copiedBuffer("ok", StandardCharsets.US_ASCII), true).stream(stream));
+    }
+
+    @After
+    public void tearDown() {
+        if (pools != null) {
+            pools.dispose();
+        }
+        server.close();
+        serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private static Mono<String> drainToString(ClientResponse response) {
+        return response.bodyToFlux(DataBuffer.class)
+                .map(buffer -> {
+                    String value = StandardCharsets.US_ASCII.decode(buffer.asByteBuffer()).toString();
+                    DataBufferUtils.release(buffer);
+                    return value;
+                })
+                .reduce("", String::concat);
+    }
+
+    @Test
+    public void testConcurrentRequests_expectMultiplexedOverOneConnection() {
+        pools = new ShadowTrafficConnectionPools(config);
+        WebClient webClient = pools.get(baseUrl).getWebClient();
+
+        List<String> responses = Flux.range(0, 20)
+                .flatMap(i -> webClient.post()
+                        .uri(baseUrl + "/hotels/" + i + "?q=1")
+                        .body(BodyInserters.fromDataBuffers(Flux.just(new DefaultDataBufferFactory().wrap("body".getBytes(StandardCharsets.US_ASCII)))))
+                        .exchange()
+                        .flatMap(response -> drainToString(response).map(body -> response.rawStatusCode() + " " + body)))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertEquals(20, responses.size());
+        responses.forEach(response -> assertEquals("200 ok", response));
+        assertEquals(1, connections.get());
+        assertEquals(20, streams.get());
+        assertEquals(20 * "body".length(), bodyBytes.get());
+    }
+
+    @Test
+    public void testResponseBodyNotRead_expectStreamResetAndConnectionKept() {
+        pools = new ShadowTrafficConnectionPools(config);
+        WebClient webClient = pools.get(baseUrl).getWebClient();
+
+        webClient.get().uri(baseUrl + "/hotels").exchange().flatMap(response -> response.bodyToMono(Void.class)).block(Duration.ofSeconds(5));
+        String second = webClient.get().uri(baseUrl + "/hotels").exchange().flatMap(Http2ClientHttpConnectorTest::drainToString)
+                .block(Duration.ofSeconds(5));
+
+        assertEquals("ok", second);
+        assertEquals(1, connections.get());
+        assertEquals(2, streams.get());
+    }
+
+    @Test
+    public void testInformationalResponseFirst_expectFinalStatusAndBody() {
+        interim = true;
+        pools = new ShadowTrafficConnectionPools(config);
+        WebClient webClient = pools.get(baseUrl).getWebClient();
+
+        String response = webClient.get().uri(baseUrl + "/hotels").exchange()
+                .flatMap(exchange -> drainToString(exchange).map(body -> exchange.rawStatusCode() + " " + body))
+                .block(Duration.ofSeconds(5));
+
+        assertEquals("200 ok", response);
+    }
+
+    @Test
+    public void testConnectionClosedBeforeSettings_expectRequestFailedAndHttp2Retried() {
+        closedConnections = 1;
+        pools = new ShadowTrafficConnectionPools(config);
+        WebClient webClient = pools.get(baseUrl).getWebClient();
+
+        String first = webClient.get().uri(baseUrl + "/hotels").exchange().flatMap(Http2ClientHttpConnectorTest::drainToString)
+                .onErrorResume(ex -> Mono.just("failed"))
+                .block(Duration.ofSeconds(5));
+        String second = webClient.get().uri(baseUrl + "/hotels").exchange().flatMap(Http2ClientHttpConnectorTest::drainToString)
+                .block(Duration.ofSeconds(5));
+
+        assertEquals("failed", first);
+        assertEquals("ok", second);
+        assertEquals(2, connections.get());
+        assertEquals(1, streams.get());
+    }
+
+    @Test
+    public void testPrefaceAnsweredWithHttp11_expectFallbackToHttp11() throws InterruptedException {
+        Channel http11Server = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec(), new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                if (msg instanceof HttpRequest) {
+                                    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                            Unpooled.copiedBuffer("http1", StandardCharsets.US_ASCII));
+                                    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 5).set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                                    ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                                }
+                                ReferenceCountUtil.release(msg);
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+        try {
+            String http11Url = "http://localhost:" + ((InetSocketAddress) http11Server.localAddress()).getPort();
+            pools = new ShadowTrafficConnectionPools(config);
+            WebClient webClient = pools.get(http11Url).getWebClient();
+
+            String response = webClient.get().uri(http11Url + "/hotels").exchange().flatMap(Http2ClientHttpConnectorTest::drainToString)
+                    .block(Duration.ofSeconds(5));
+
+            assertEquals("http1", response);
+        } finally {
+            http11Server.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightBudgetTest {
+
+    @Test
+    public void testAcquireUpToTheBudget_expectRejectedPastItUntilReleased() {
+        InFlightBudget budget = new InFlightBudget();
+
+        assertTrue(budget.tryAcquire(600, 1000));
+        assertTrue(budget.tryAcquire(400, 1000));
+        assertFalse(budget.tryAcquire(1, 1000));
+        budget.release(400);
+        assertTrue(budget.tryAcquire(300, 1000));
+        assertEquals(900, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testUnlimitedBudget_expectBytesAccountedForOnly() {
+        InFlightBudget budget = new InFlightBudget();
+
+        assertTrue(budget.tryAcquire(Integer.MAX_VALUE, 0));
+        assertTrue(budget.tryAcquire(0, 1));
+        assertEquals(Integer.MAX_VALUE, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testConcurrentAcquires_expectBudgetNeverExceeded() throws InterruptedException {
+        InFlightBudget budget = new InFlightBudget();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger acquired = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (budget.tryAcquire(10, 5000)) {
+                    acquired.incrementAndGet();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(500, acquired.get());
+        assertEquals(5000, budget.getUsedBytes());
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MultiPartHttpServletRequestTest {
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Test
+    public void testLargeBinaryUpload_expectCopiedWithCrlfBoundariesAndSpilled() throws IOException, ServletException {
+        byte[] file = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(file);
+        Part field = part("form-data; name=\"description\"", null, "café\r\n".getBytes(StandardCharsets.UTF_8));
+        Part upload = part("form-data; name=\"file\"; filename=\"image.png\"", "image/png", file);
+        when(request.getHeader("content-type")).thenReturn("multipart/form-data; boundary=XyZ");
+        when(request.getParts()).thenReturn(Arrays.asList(field, upload));
+
+        MultiPartHttpServletRequest multipartRequest = new MultiPartHttpServletRequest(request, 1024 * 1024, 8 * 1024 * 1024,
+                CaptureBuffer.UNPOOLED);
+        assertTrue(multipartRequest.finishCapture());
+        ShadowBody body = multipartRequest.getBody();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(("--XyZ\r\ncontent-disposition: form-data; name=\"description\"\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        expected.write("café\r\n".getBytes(StandardCharsets.UTF_8));
+        expected.write(("\r\n--XyZ\r\ncontent-disposition: form-data; name=\"file\"; filename=\"image.png\"\r\ncontent-type: image/png\r\n\r\n")
+                .getBytes(StandardCharsets.UTF_8));
+        expected.write(file);
+        expected.write("\r\n--XyZ--\r\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(body instanceof ShadowBody.MappedShadowBody);
+        assertArrayEquals(expected.toByteArray(), join(body.content().collectList().block()));
+        assertEquals(expected.size(), body.length());
+        assertArrayEquals(expected.toByteArray(), CaptureBufferTest.bytes(body));
+        multipartRequest.release();
+    }
+
+    @Test
+    public void testPartsDeletedOnceCaptured_expectBodyStillComplete() throws IOException, ServletException {
+        AtomicBoolean deleted = new AtomicBoolean();
+        Part upload = part("form-data; name=\"file\"", null, new byte[]{1, 2, 3});
+        when(upload.getInputStream()).thenAnswer(invocation -> {
+            if (deleted.get()) {
+                throw new IOException("part deleted");
+            }
+            return new ByteArrayInputStream(new byte[]{1, 2, 3});
+        });
+        when(request.getHeader("content-type")).thenReturn("multipart/form-data; boundary=XyZ");
+        when(request.getParts()).thenReturn(Collections.singletonList(upload));
+        MultiPartHttpServletRequest multipartRequest = new MultiPartHttpServletRequest(request);
+
+        assertTrue(multipartRequest.finishCapture());
+        // what the container does with the parts once the request is done
+        deleted.set(true);
+
+        byte[] content = join(multipartRequest.getBody().content().collectList().block());
+        assertTrue(new String(content, StandardCharsets.ISO_8859_1).endsWith("\r\n\u0001\u0002\u0003\r\n--XyZ--\r\n"));
+        verify(upload).getInputStream();
+    }
+
+    @Test
+    public void testPartsAboveMaximum_expectNotCapturedAndOversized() throws IOException, ServletException {
+        Part upload = part("form-data; name=\"file\"", null, new byte[64]);
+        when(request.getHeader("content-type")).thenReturn("multipart/form-data; boundary=XyZ");
+        when(request.getParts()).thenReturn(Collections.singletonList(upload));
+        MultiPartHttpServletRequest multipartRequest = new MultiPartHttpServletRequest(request, 16, 32, CaptureBuffer.UNPOOLED);
+
+        assertFalse(multipartRequest.finishCapture());
+        assertTrue(multipartRequest.isOversized());
+        assertNull(multipartRequest.getBody());
+    }
+
+    @Test
+    public void testQuotedBoundary_expectBoundaryUnquotedAndLengthOfTheCopy() throws IOException, ServletException {
+        Part upload = part("form-data; name=\"file\"", null, new byte[]{0x0d, 0x0a, 0x00});
+        when(request.getHeader("content-type")).thenReturn("multipart/form-data; boundary=\"a b\"; charset=UTF-8");
+        when(request.getParts()).thenReturn(Collections.singletonList(upload));
+
+        MultiPartHttpServletRequest multipartRequest = new MultiPartHttpServletRequest(request);
+        assertTrue(multipartRequest.finishCapture());
+        ShadowBody body = multipartRequest.getBody();
+
+        byte[] content = join(body.content().collectList().block());
+        assertEquals(content.length, body.length());
+        assertTrue(new String(content, StandardCharsets.ISO_8859_1).startsWith("--a b\r\n"));
+        assertTrue(new String(content, StandardCharsets.ISO_8859_1).endsWith("\r\n\u0000\r\n--a b--\r\n"));
+    }
+
+    @Test
+    public void testNoBoundary_expectNoBody() throws IOException, ServletException {
+        when(request.getHeader("content-type")).thenReturn("multipart/form-data");
+        when(request.getParts()).thenReturn(Collections.singletonList(mock(Part.class)));
+
+        MultiPartHttpServletRequest multipartRequest = new MultiPartHttpServletRequest(request);
+
+        assertTrue(multipartRequest.finishCapture());
+        assertNull(multipartRequest.getBody());
+    }
+
+    private static Part part(String contentDisposition, String contentType, byte[] content) throws IOException {
+        Part part = mock(Part.class);
+        List<String> headerNames = contentType == null ? Collections.singletonList("content-disposition")
+                : Arrays.asList("content-disposition", "content-type");
+        when(part.getHeaderNames()).thenReturn(headerNames);
+        when(part.getHeaders("content-disposition")).thenReturn(Collections.singletonList(contentDisposition));
+        if (contentType != null) {
+            when(part.getHeaders("content-type")).thenReturn(Collections.singletonList(contentType));
+        }
+        when(part.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(content));
+        return part;
+    }
+
+    private static byte[] join(List<DataBuffer> buffers) {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (DataBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            joined.write(bytes, 0, bytes.length);
+            DataBufferUtils.release(buffer);
+        }
+        return joined.toByteArray();
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.rules.ExternalResource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+
+/**
+ * Fails the test if netty reported a leaked buffer, the build installing {@link Detector} as its custom leak detector. Netty only reports a
+ * leak when it tracks the next buffer after the leaked one was garbage collected, so the rule collects the garbage and allocates a pooled
+ * buffer a few times before checking.
+ */
+public class NettyLeakRule extends ExternalResource {
+
+    private static final List<String> LEAKS = new CopyOnWriteArrayList<>();
+    private static final int DETECTION_ROUNDS = 5;
+
+    @Override
+    protected void after() {
+        if (!Detector.installed) {
+            return;
+        }
+        for (int i = 0; i < DETECTION_ROUNDS && LEAKS.isEmpty(); i++) {
+            System.gc();
+            System.runFinalization();
+            PooledByteBufAllocator.DEFAULT.heapBuffer(1).release();
+        }
+        if (!LEAKS.isEmpty()) {
+            List<String> leaks = new ArrayList<>(LEAKS);
+            LEAKS.clear();
+            throw new AssertionError(leaks.size() + " netty buffer(s) garbage collected without being released: " + leaks);
+        }
+    }
+
+    /**
+     * Records every leak it reports, installed with the io.netty.customResourceLeakDetector system property.
+     */
+    public static class Detector<T> extends ResourceLeakDetector<T> {
+
+        private static volatile boolean installed;
+
+        public Detector(Class<?> resourceType, int samplingInterval) {
+            super(resourceType, samplingInterval);
+            installed = true;
+        }
+
+        /**
+         * Looked up first by netty, which logs an error when it is missing.
+         */
+        public Detector(Class<?> resourceType, int samplingInterval, long maxActive) {
+            this(resourceType, samplingInterval);
+        }
+
+        @Override
+        protected void reportTracedLeak(String resourceType, String records) {
+            LEAKS.add(resourceType + records);
+            super.reportTracedLeak(resourceType, records);
+        }
+
+        @Override
+        protected void reportUntracedLeak(String resourceType) {
+            LEAKS.add(resourceType);
+            super.reportUntracedLeak(resourceType);
+        }
+    }
+}
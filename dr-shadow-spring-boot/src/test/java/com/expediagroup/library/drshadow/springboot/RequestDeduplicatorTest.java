@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestDeduplicatorTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testRepeatWithinWindowIsDuplicate() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(1000, 1024, clock::get);
+        long fingerprint = fingerprint("/hotels", "id=1", "session", null);
+
+        assertFalse(deduplicator.isDuplicate(fingerprint));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertTrue(deduplicator.isDuplicate(fingerprint));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertFalse(deduplicator.isDuplicate(fingerprint));
+        assertTrue(deduplicator.isDuplicate(fingerprint));
+    }
+
+    @Test
+    public void testCollidingFingerprintTakesTheSlotOver() {
+        RequestDeduplicator deduplicator = new RequestDeduplicator(1000, 1, clock::get);
+
+        assertFalse(deduplicator.isDuplicate(1L << 32));
+        assertFalse(deduplicator.isDuplicate(2L << 32));
+        assertFalse(deduplicator.isDuplicate(1L << 32));
+    }
+
+    @Test
+    public void testFingerprintCoversEveryPartOfTheRequest() {
+        long fingerprint = fingerprint("/hotels", "id=1", "session", "body");
+
+        assertNotEquals(fingerprint, fingerprint("/hotels2", "id=1", "session", "body"));
+        assertNotEquals(fingerprint, fingerprint("/hotels", "id=2", "session", "body"));
+        assertNotEquals(fingerprint, fingerprint("/hotels", "id=1", "other", "body"));
+        assertNotEquals(fingerprint, fingerprint("/hotels", "id=1", "session", "body2"));
+        assertNotEquals(fingerprint("/hotels", "", "session", "body"), fingerprint("/hotels", null, "session", "body"));
+        assertNotEquals(fingerprint("/ab", "c", "session", "body"), fingerprint("/a", "bc", "session", "body"));
+        assertNotEquals(fingerprint, RequestDeduplicator.fingerprint("POST", "/hotels", "id=1", Collections.singletonList("x-session"),
+                Collections.singletonList("session"), ByteBuffer.wrap("body".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testOnlyIdempotentMethodsAreDeduplicated() {
+        assertTrue(RequestDeduplicator.isIdempotent(HttpMethod.GET));
+        assertTrue(RequestDeduplicator.isIdempotent(HttpMethod.PUT));
+        assertFalse(RequestDeduplicator.isIdempotent(HttpMethod.POST));
+        assertFalse(RequestDeduplicator.isIdempotent(HttpMethod.PATCH));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowMustBePositive() {
+        new RequestDeduplicator(0, 1024);
+    }
+
+    private long fingerprint(String uri, String query, String session, String body) {
+        return RequestDeduplicator.fingerprint("GET", uri, query, Arrays.asList("x-session"), Arrays.asList(session), body != null ? ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)) : null);
+    }
+}
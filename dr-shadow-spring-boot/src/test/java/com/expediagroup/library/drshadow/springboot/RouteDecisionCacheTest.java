@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RouteDecisionCacheTest {
+
+    @Test
+    public void testGetCountsHitsAndMisses() {
+        RouteDecisionCache cache = new RouteDecisionCache(100, 50);
+        int[] routes = new int[]{1};
+
+        assertNull(cache.get("GET", "/hotels"));
+        cache.put("GET", "/hotels", routes);
+
+        assertSame(routes, cache.get("GET", "/hotels"));
+        assertNull(cache.get("POST", "/hotels"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        RouteDecisionCache cache = new RouteDecisionCache(160, 0);
+
+        for (int i = 0; i < 10000; i++) {
+            cache.put("GET", "/hotels/" + i, RouteMatcher.NO_ROUTES);
+        }
+
+        assertTrue(cache.size() <= 160);
+        assertFalse(cache.isDisabled());
+    }
+
+    @Test
+    public void testHighCardinalityDisablesCache() {
+        RouteDecisionCache cache = new RouteDecisionCache(160, 50);
+
+        for (int i = 0; i < 1000 && !cache.isDisabled(); i++) {
+            String path = "/hotels/" + i;
+            if (cache.get("GET", path) == null) {
+                cache.put("GET", path, RouteMatcher.NO_ROUTES);
+            }
+        }
+
+        assertTrue(cache.isDisabled());
+        assertEquals(0, cache.size());
+        assertNull(cache.get("GET", "/hotels/999"));
+    }
+
+    @Test
+    public void testLowCardinalityKeepsCacheEnabled() {
+        RouteDecisionCache cache = new RouteDecisionCache(160, 50);
+
+        for (int i = 0; i < 10000; i++) {
+            String path = "/hotels/" + (i % 100);
+            if (cache.get("GET", path) == null) {
+                cache.put("GET", path, RouteMatcher.NO_ROUTES);
+            }
+        }
+
+        assertFalse(cache.isDisabled());
+        assertEquals(100, cache.getMissCount());
+    }
+
+    @Test
+    public void testCompiledConfigUsesCacheAndNewSnapshotStartsEmpty() {
+        ShadowTrafficConfig config = new ShadowTrafficConfig();
+        config.setEnabled(true);
+        config.setRouteCacheEnabled(true);
+        ShadowTrafficConfig.InclusionPattern inclusionPattern = new ShadowTrafficConfig.InclusionPattern();
+        inclusionPattern.setRequestURI("^/hotels/.*");
+        inclusionPattern.setMethod("GET");
+        config.setInclusionPatterns(Collections.singletonList(inclusionPattern));
+        ShadowTrafficConfigHelper helper = new ShadowTrafficConfigHelper(config);
+
+        CompiledShadowTrafficConfig compiledConfig = helper.getCompiledConfig();
+        assertArrayEquals(new int[]{0}, compiledConfig.matchRoutes("GET", "/hotels/1"));
+        assertArrayEquals(new int[]{0}, compiledConfig.matchRoutes("GET", "/hotels/1"));
+        assertEquals(1, compiledConfig.getRouteDecisionCache().getHitCount());
+        assertEquals(1, compiledConfig.getRouteDecisionCache().getMissCount());
+
+        helper.refresh();
+
+        assertNotSame(compiledConfig.getRouteDecisionCache(), helper.getCompiledConfig().getRouteDecisionCache());
+        assertEquals(0, helper.getCompiledConfig().getRouteDecisionCache().size());
+    }
+}
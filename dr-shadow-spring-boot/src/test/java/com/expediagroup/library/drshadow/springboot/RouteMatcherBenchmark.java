@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.expediagroup.library.drshadow.springboot.CompiledShadowTrafficConfig.CompiledInclusionPattern;
+
+/**
+ * Compares the indexed {@link RouteMatcher} with evaluating every inclusion pattern one after another. The {@code prefix} shape only
+ * generates patterns starting with a literal prefix, looked up in the trie, the {@code regex} shape only patterns without one, merged into
+ * the combined alternation which is still evaluated alternative by alternative.
+ *
+ * Run the main method from the IDE or with the test classpath, it is not part of the unit test run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteMatcherBenchmark {
+
+    @Param({"1", "10", "100", "1000", "5000"})
+    private int patterns;
+
+    @Param({"prefix", "regex"})
+    private String shape;
+
+    private List<CompiledInclusionPattern> routes;
+    private RouteMatcher routeMatcher;
+    private String matchingPath;
+    private String missingPath;
+
+    @Setup
+    public void setUp() {
+        routes = new ArrayList<>();
+        boolean prefix = "prefix".equals(shape);
+        for (int i = 0; i < patterns; i++) {
+            routes.add(RouteMatcherTest.route(prefix ? "^/service" + i + "/items/[0-9]+$" : "^/[a-z]+/items/" + i + "$", "GET", false));
+        }
+        routeMatcher = new RouteMatcher(routes);
+        matchingPath = prefix ? "/service" + (patterns / 2) + "/items/42" : "/service/items/" + (patterns / 2);
+        missingPath = prefix ? "/unknown/items/42" : "/unknown/items/none";
+    }
+
+    @Benchmark
+    public int[] indexedMatch() {
+        return routeMatcher.match("GET", matchingPath);
+    }
+
+    @Benchmark
+    public int[] indexedMiss() {
+        return routeMatcher.match("GET", missingPath);
+    }
+
+    @Benchmark
+    public boolean linearMatch() {
+        return linear(matchingPath);
+    }
+
+    @Benchmark
+    public boolean linearMiss() {
+        return linear(missingPath);
+    }
+
+    private boolean linear(String path) {
+        for (CompiledInclusionPattern route : routes) {
+            if (route.matches(path, "GET")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RouteMatcherBenchmark.class.getSimpleName()).build()).run();
+    }
+}
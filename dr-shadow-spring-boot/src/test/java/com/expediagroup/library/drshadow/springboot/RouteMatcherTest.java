@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.expediagroup.library.drshadow.springboot.CompiledShadowTrafficConfig.CompiledInclusionPattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RouteMatcherTest {
+
+    private static final List<String> METHODS = Arrays.asList("GET", "get", "POST", "PUT", "DELETE", null);
+
+    private static final List<String> PATHS = Arrays.asList("/", "/hotels", "/hotels/", "/hotels/123", "/hotels/123/rooms", "/hotel-details",
+            "/get", "/ge", "/gettt", "/api/v1/cars", "/api/v2/cars", "/api.v1", "/apixv1", "/a|b", "/b", "/flights/abc", "/FLIGHTS/abc",
+            "/aa", "/abab", "/x/y/z", "");
+
+    @Test
+    public void testLiteralPrefix() {
+        assertPrefix("^/hotels$", "/hotels", true);
+        assertPrefix("/hotels", "/hotels", true);
+        assertPrefix("^/hotels/.*", "/hotels/", false);
+        assertPrefix("^/get*", "/ge", false);
+        assertPrefix("^/get+", "/get", false);
+        assertPrefix("^/get?", "/ge", false);
+        assertPrefix("^/get{2}", "/ge", false);
+        assertPrefix("^/api\\.v1$", "/api.v1", true);
+        assertPrefix("^/hotels/\\d+$", "/hotels/", false);
+        assertPrefix("^/a|/b", "", false);
+        assertPrefix("^/(a|b)", "/", false);
+        assertPrefix("[/]hotels", "", false);
+        assertPrefix("(?i)/hotels", "", false);
+        assertPrefix("^/\\Qa|b\\E", "", false);
+    }
+
+    @Test
+    public void testIsCombinable() {
+        assertTrue(RouteMatcher.isCombinable("^/hotels/(\\d+)/rooms$"));
+        assertTrue(RouteMatcher.isCombinable("(?:/a|/b)"));
+        assertTrue(RouteMatcher.isCombinable("\\(?"));
+        assertFalse(RouteMatcher.isCombinable("(a)\\1"));
+        assertFalse(RouteMatcher.isCombinable("(?<id>a)\\k<id>"));
+        assertFalse(RouteMatcher.isCombinable("(?i)/hotels"));
+    }
+
+    @Test
+    public void testMatchIsEquivalentToEvaluatingEveryPatternInOrder() {
+        List<String[]> patterns = Arrays.asList(
+                new String[]{"^/hotels$", "GET"},
+                new String[]{"^/hotels$", "*"},
+                new String[]{"^/hotels/.*", "get"},
+                new String[]{"^/hotels/\\d+$", "POST"},
+                new String[]{"^/hotel-details$", "*"},
+                new String[]{"^/get*", "GET"},
+                new String[]{"^/api\\.v1$", "*"},
+                new String[]{"^/api/v[12]/cars$", "PUT"},
+                new String[]{"^/a|/b", "*"},
+                new String[]{".*", "DELETE"},
+                new String[]{"(?i)/flights/.*", "*"},
+                new String[]{"(a)\\1", "*"},
+                new String[]{"/(a|b)+", "GET"},
+                new String[]{"(/x)/(y)/(z)", "*"},
+                new String[]{"", "*"});
+
+        // every combination of pattern subsets with and without header patterns
+        for (int mask = 0; mask < 4; mask++) {
+            List<CompiledInclusionPattern> routes = new ArrayList<>();
+            for (int i = 0; i < patterns.size(); i++) {
+                boolean conditional = (mask & 1) == 1 ? i % 2 == 0 : (mask & 2) == 2 && i % 3 == 0;
+                routes.add(route(patterns.get(i)[0], patterns.get(i)[1], conditional));
+            }
+            assertEquivalent(routes);
+
+            List<CompiledInclusionPattern> reversed = new ArrayList<>(routes);
+            Collections.reverse(reversed);
+            assertEquivalent(reversed);
+        }
+    }
+
+    @Test
+    public void testMatchWithManyPrefixedPatterns() {
+        List<CompiledInclusionPattern> routes = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            routes.add(route("^/service" + i + "/items/[0-9]+$", i % 2 == 0 ? "GET" : "*", false));
+        }
+        RouteMatcher routeMatcher = new RouteMatcher(routes);
+
+        assertArrayEquals(new int[]{4321}, routeMatcher.match("POST", "/service4321/items/42"));
+        assertArrayEquals(new int[]{4320}, routeMatcher.match("GET", "/service4320/items/42"));
+        assertArrayEquals(RouteMatcher.NO_ROUTES, routeMatcher.match("POST", "/service4320/items/42"));
+        assertArrayEquals(RouteMatcher.NO_ROUTES, routeMatcher.match("GET", "/service4320/items/abc"));
+    }
+
+    private void assertEquivalent(List<CompiledInclusionPattern> routes) {
+        RouteMatcher routeMatcher = new RouteMatcher(routes);
+        for (String method : METHODS) {
+            for (String path : PATHS) {
+                assertArrayEquals(method + " " + path, expected(routes, method, path), routeMatcher.match(method, path));
+            }
+        }
+    }
+
+    private int[] expected(List<CompiledInclusionPattern> routes, String method, String path) {
+        List<Integer> matched = new ArrayList<>();
+        for (int i = 0; i < routes.size(); i++) {
+            if (routes.get(i).matches(path, method)) {
+                matched.add(i);
+                if (!routes.get(i).isConditional()) {
+                    break;
+                }
+            }
+        }
+        return matched.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void assertPrefix(String regex, String prefix, boolean exact) {
+        RouteMatcher.LiteralPrefix literalPrefix = RouteMatcher.LiteralPrefix.of(regex);
+        assertEquals(regex, prefix, literalPrefix.getPrefix());
+        assertEquals(regex, exact, literalPrefix.isExact());
+    }
+
+    static CompiledInclusionPattern route(String requestURI, String method, boolean conditional) {
+        ShadowTrafficConfig.InclusionPattern inclusionPattern = new ShadowTrafficConfig.InclusionPattern();
+        inclusionPattern.setRequestURI(requestURI);
+        inclusionPattern.setMethod(method);
+        if (conditional) {
+            ShadowTrafficConfig.HeaderPattern headerPattern = new ShadowTrafficConfig.HeaderPattern();
+            headerPattern.setHeaderKey("x-brand");
+            headerPattern.setHeaderValue("egencia");
+            inclusionPattern.setHeaderPattern(Collections.singletonList(headerPattern));
+        }
+        return new CompiledInclusionPattern(inclusionPattern, new ShadowTrafficPolicy(100, null), 0);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShadowHostTest {
+
+    @Test
+    public void testHostWithoutScheme_expectSchemeFromSsl() {
+        assertEquals("https://shadow.example.com", ShadowHost.of("shadow.example.com", true).getBaseUrl());
+        assertEquals("http://shadow.example.com:8080", ShadowHost.of("shadow.example.com:8080", false).getBaseUrl());
+    }
+
+    @Test
+    public void testHostWithScheme_expectKeptAsIs() {
+        assertEquals("http://shadow.example.com", ShadowHost.of("http://shadow.example.com", true).getBaseUrl());
+        assertEquals("https://shadow.example.com/base", ShadowHost.of("https://shadow.example.com/base", false).getBaseUrl());
+    }
+
+    @Test
+    public void testUri_expectPathAndQueryAppendedToBaseUrl() {
+        ShadowHost shadowHost = ShadowHost.of("shadow.example.com", true);
+
+        assertEquals(URI.create("https://shadow.example.com/hotels?id=1%202"), shadowHost.uri("/hotels?id=1%202"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBlankHost_expectRejected() {
+        ShadowHost.of(" ", true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidHost_expectRejected() {
+        ShadowHost.of("shadow example.com", true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHostWithQuery_expectRejected() {
+        ShadowHost.of("shadow.example.com?id=1", true);
+    }
+}
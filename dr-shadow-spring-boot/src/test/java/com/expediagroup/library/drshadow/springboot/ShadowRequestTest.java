@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ShadowRequestTest {
+
+    @Rule
+    public NettyLeakRule nettyLeakRule = new NettyLeakRule();
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Test
+    public void testSnapshot_expectOnlyForwardedHeadersCopiedAndRequestNotReadAgain() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(
+                new ByteArrayInputStream(new byte[]{1, 2, 3})));
+        when(request.getMethod()).thenReturn("PUT");
+        when(request.getRequestURI()).thenReturn("/bookings/1");
+        when(request.getQueryString()).thenReturn("lang=en");
+        when(request.getHeader("x-cookie")).thenReturn("session");
+        when(request.getHeader("accept")).thenReturn(null);
+        BasicHttpServletRequest basicRequest = new BasicHttpServletRequest(request);
+
+        ShadowRequest shadowRequest = ShadowRequest.of(basicRequest, Arrays.asList("x-cookie", "X-Cookie", "accept"));
+
+        assertEquals("PUT", shadowRequest.getMethod());
+        assertEquals("/bookings/1", shadowRequest.getRequestURI());
+        assertEquals("lang=en", shadowRequest.getQueryString());
+        assertEquals(1, shadowRequest.getHeaders().size());
+        assertEquals(Collections.singletonList("session"), shadowRequest.getHeaders().get("X-COOKIE"));
+        assertArrayEquals(new byte[]{1, 2, 3}, CaptureBufferTest.bytes(shadowRequest.getBody()));
+        verify(request).getInputStream();
+        verify(request).getContentLengthLong();
+        verify(request).getMethod();
+        verify(request).getRequestURI();
+        verify(request).getQueryString();
+        verify(request).getHeader("x-cookie");
+        verify(request).getHeader("X-Cookie");
+        verify(request).getHeader("accept");
+        verifyNoMoreInteractions(request);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMultipartNotCaptured_expectRefused() throws IOException {
+        MultiPartHttpServletRequest multipartRequest = new MultiPartHttpServletRequest(request);
+
+        ShadowRequest.of(multipartRequest, Collections.emptyList());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTeeNotFinished_expectRefused() throws IOException {
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request);
+
+        ShadowRequest.of(teeRequest, Collections.emptyList());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotHeaders_expectReadOnly() throws IOException {
+        ShadowRequest shadowRequest = ShadowRequest.of(new BasicHttpServletRequest(request), Collections.emptyList());
+
+        shadowRequest.getHeaders().add("x-cookie", "session");
+    }
+
+    @Test
+    public void testReleaseWrapperThenSnapshot_expectBodyAndBudgetFreedWithTheLastReference() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(
+                new ByteArrayInputStream(new byte[64])));
+        BasicHttpServletRequest basicRequest = new BasicHttpServletRequest(request, 1024, 1024, PooledByteBufAllocator.DEFAULT);
+        InFlightBudget budget = new InFlightBudget();
+        budget.tryAcquire(64, 0);
+        basicRequest.charged(budget, 64);
+        ShadowBody.ByteBufShadowBody body = (ShadowBody.ByteBufShadowBody) basicRequest.getBody();
+
+        ShadowRequest shadowRequest = ShadowRequest.of(basicRequest, Collections.emptyList());
+        basicRequest.release();
+
+        assertEquals(1, body.getBuffer().refCnt());
+        assertEquals(64, budget.getUsedBytes());
+        shadowRequest.release();
+        assertEquals(0, body.getBuffer().refCnt());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testFormBodyHoldingTheQueryString_expectQueryStringLeftOut() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(new byte[0])));
+        when(request.getContentLengthLong()).thenReturn(42L);
+        when(request.getParameterMap()).thenReturn(Collections.singletonMap("name", new String[]{"value"}));
+        FormUrlEncodedHttpServletRequest formRequest = new FormUrlEncodedHttpServletRequest(request);
+        formRequest.finishCapture();
+
+        ShadowRequest shadowRequest = ShadowRequest.of(formRequest, Collections.emptyList());
+
+        assertNull(shadowRequest.getQueryString());
+        verify(request, never()).getQueryString();
+        assertEquals("name=value", new String(CaptureBufferTest.bytes(shadowRequest.getBody())));
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the cost of shadowing a request to a growing number of hosts, the request is prepared once and only its URL changes per host.
+ * The hosts answer right away without any network so only the work of the adapter is measured.
+ *
+ * Run the main method from the IDE or with the test classpath, it is not part of the unit test run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShadowTrafficAdapterBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    private int hosts;
+
+    private ShadowTrafficAdapter adapter;
+    private ShadowTrafficPolicy policy;
+    private ShadowRequest shadowRequest;
+
+    @Setup
+    public void setUp() {
+        ((Logger) LoggerFactory.getLogger(ShadowTrafficAdapter.class)).setLevel(Level.INFO);
+
+        List<String> hostNames = new ArrayList<>();
+        for (int i = 0; i < hosts; i++) {
+            hostNames.add("shadow" + i + ".example.com");
+        }
+        ShadowTrafficConfig shadowTrafficConfig = new ShadowTrafficConfig();
+        shadowTrafficConfig.setHosts(hostNames);
+        shadowTrafficConfig.setForwardHeaders(Arrays.asList("accept", "x-request-id"));
+        shadowTrafficConfig.setCustomHeaders(Collections.singletonMap("source", "benchmark"));
+        ShadowTrafficConfigHelper shadowTrafficConfigHelper = new ShadowTrafficConfigHelper(shadowTrafficConfig);
+        policy = shadowTrafficConfigHelper.getCompiledConfig().getDefaultPolicy();
+
+        ExchangeStrategies strategies = ExchangeStrategies.withDefaults();
+        WebClient webClient = WebClient.builder()
+                .exchangeFunction(request -> Mono.just(ClientResponse.create(HttpStatus.OK, strategies).build()))
+                .build();
+        adapter = new ShadowTrafficAdapter(shadowTrafficConfigHelper, "benchmark", new ShadowTrafficMetrics(),
+                new ShadowTrafficConnectionPools(1, -1, baseUrl -> webClient));
+
+        // The request has no body so the snapshot can be shadowed again after the adapter released it
+        DrShadowHttpServletRequest request = Mockito.mock(DrShadowHttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/hotels/search/new york");
+        when(request.getQueryString()).thenReturn("checkin=2019-09-01&checkout=2019-09-03&rooms=2&adults=2");
+        when(request.getHeader("accept")).thenReturn("application/json");
+        when(request.getHeader("x-request-id")).thenReturn("6f1c2a4e-9d3b-4a7e-8c21-0b5f3e9d7a12");
+        when(request.isCaptureComplete()).thenReturn(true);
+        when(request.getLease()).thenReturn(new ShadowRequest.Lease(ShadowRequest.Lease.NOTHING));
+        shadowRequest = ShadowRequest.of(request, policy.getForwardHeaders());
+    }
+
+    @Benchmark
+    public void invokeShadowTraffic() {
+        adapter.invokeShadowTraffic(shadowRequest, policy);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ShadowTrafficAdapterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
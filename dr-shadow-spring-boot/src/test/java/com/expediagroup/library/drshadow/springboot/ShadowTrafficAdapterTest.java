@@ -17,34 +17,40 @@ package com.expediagroup.library.drshadow.springboot;
 
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
 
-import javax.servlet.http.HttpServletRequest;
 import java.net.URI;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import static com.expediagroup.library.drshadow.springboot.ShadowTrafficAdapter.IS_SHADOW_TRAFFIC_KEY;
 import static com.expediagroup.library.drshadow.springboot.ShadowTrafficAdapter.IS_SHADOW_TRAFFIC_VALUE;
 import static com.expediagroup.library.drshadow.springboot.ShadowTrafficAdapter.SHADOW_TRAFFIC_FROM_KEY;
-import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -55,14 +61,15 @@ import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ShadowTrafficAdapterTest {
+
+    @Rule
+    public NettyLeakRule nettyLeakRule = new NettyLeakRule();
+
     private ShadowTrafficAdapter shadowTrafficAdapter;
 
     @Mock
     private DrShadowHttpServletRequest shadowServletRequest;
 
-    @Mock
-    private HttpServletRequest originalServletRequest;
-
     @Mock
     private ShadowTrafficConfig shadowTrafficConfig;
 
@@ -72,27 +79,27 @@ public class ShadowTrafficAdapterTest {
     @Mock
     private WebClient webClient;
 
-    @Mock
-    private Random random;
-
     private String machineName = "testMachineName";
 
     private WebClient.RequestBodyUriSpec requestBodyUriSpec = Mockito.mock(WebClient.RequestBodyUriSpec.class);
     private WebClient.RequestBodySpec requestBodySpec = Mockito.mock(WebClient.RequestBodySpec.class);
     private WebClient.RequestHeadersSpec requestHeadersSpec = Mockito.mock(WebClient.RequestHeadersSpec.class);
-    private WebClient.ResponseSpec responseSpec = Mockito.mock(WebClient.ResponseSpec.class);
+    private ClientResponse clientResponse = Mockito.mock(ClientResponse.class);
+
+    private final InFlightBudget budget = new InFlightBudget();
 
     @Before
     public void setUp() {
         shadowTrafficAdapter = new ShadowTrafficAdapter(shadowTrafficConfigHelper, machineName);
-        shadowTrafficAdapter.setRandom(random);
         shadowTrafficAdapter.setWebClient(webClient);
 
         when(webClient.method(any())).thenReturn(requestBodyUriSpec);
         when(requestBodyUriSpec.uri(any(URI.class))).thenReturn(requestBodySpec);
         when(requestBodySpec.headers(any())).thenReturn(requestBodySpec);
-        when(requestBodySpec.syncBody(any())).thenReturn(requestHeadersSpec);
-        when(requestHeadersSpec.retrieve()).thenReturn(responseSpec);
+        when(requestBodySpec.body(any())).thenReturn(requestHeadersSpec);
+        when(requestBodySpec.exchange()).thenReturn(Mono.just(clientResponse));
+        when(requestHeadersSpec.exchange()).thenReturn(Mono.just(clientResponse));
+        when(clientResponse.bodyToFlux(DataBuffer.class)).thenReturn(Flux.empty());
     }
 
     @Test
@@ -100,43 +107,18 @@ public class ShadowTrafficAdapterTest {
 
         when(shadowTrafficConfigHelper.getConfig()).thenReturn(null);
 
-        shadowTrafficAdapter.invokeShadowTraffic(shadowServletRequest, originalServletRequest);
-
-        verify(webClient, times(0)).method(any());
-    }
-
-    @Test
-    public void testInvokeShadowTrafficWithRandomValueGreaterThanPercentageConfigured_expectNoShadowTrafficPerformed() {
-
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
-        when(shadowTrafficConfig.getPercentage()).thenReturn(50);
-        when(random.nextInt(eq(100))).thenReturn(51);
-
-        shadowTrafficAdapter.invokeShadowTraffic(shadowServletRequest, originalServletRequest);
-
-        verify(webClient, times(0)).method(any());
-    }
-
-    @Test
-    public void testInvokeShadowTrafficWithNullDrShadowServletRequest_expectNoShadowTrafficPerformed() {
-
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
-        when(shadowTrafficConfig.getPercentage()).thenReturn(50);
-        when(random.nextInt(eq(100))).thenReturn(30);
-
-        shadowTrafficAdapter.invokeShadowTraffic(null, originalServletRequest);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, null);
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
 
         verify(webClient, times(0)).method(any());
     }
 
     @Test
-    public void testInvokeShadowTrafficWithNullOriginalRequest_expectNoShadowTrafficPerformed() {
+    public void testInvokeShadowTrafficWithNullShadowRequest_expectNoShadowTrafficPerformed() {
 
         when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
-        when(shadowTrafficConfig.getPercentage()).thenReturn(50);
-        when(random.nextInt(eq(100))).thenReturn(30);
 
-        shadowTrafficAdapter.invokeShadowTraffic(shadowServletRequest, null);
+        shadowTrafficAdapter.invokeShadowTraffic(null, new ShadowTrafficPolicy(50, null));
 
         verify(webClient, times(0)).method(any());
     }
@@ -145,11 +127,10 @@ public class ShadowTrafficAdapterTest {
     public void testInvokeShadowTrafficWithNullMethod_expectNoShadowTrafficPerformed() {
 
         when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
-        when(shadowTrafficConfig.getPercentage()).thenReturn(50);
-        when(random.nextInt(eq(100))).thenReturn(30);
         when(shadowServletRequest.getMethod()).thenReturn(null);
 
-        shadowTrafficAdapter.invokeShadowTraffic(shadowServletRequest, originalServletRequest);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, null);
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
 
         verify(webClient, times(0)).method(any());
         verify(shadowServletRequest, times(1)).getMethod();
@@ -159,17 +140,14 @@ public class ShadowTrafficAdapterTest {
     public void testInvokeShadowTraffic_withHttpsHost() {
 
         when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
-        when(shadowTrafficConfig.getPercentage()).thenReturn(50);
-        when(random.nextInt(eq(100))).thenReturn(30);
+        when(shadowTrafficConfig.isSsl()).thenReturn(true);
         when(shadowServletRequest.getMethod()).thenReturn("GET");
-        when(shadowTrafficConfig.getCustomHeaders()).thenReturn(new HashMap<>());
-        when(shadowTrafficConfig.getForwardHeaders()).thenReturn(new ArrayList<>());
 
         // Test with 1 http and 1 https
-        when(shadowTrafficConfig.getHosts()).thenReturn(Arrays.asList("int-maui.karmalab.net"));
         when(shadowServletRequest.getRequestURI()).thenReturn("/hotels?param=abcd");
 
-        shadowTrafficAdapter.invokeShadowTraffic(shadowServletRequest, originalServletRequest);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("int-maui.karmalab.net"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
 
         UriComponentsBuilder uriCompBuilder = UriComponentsBuilder.fromHttpUrl("https://int-maui.karmalab.net/hotels?param=abcd");
         URI expectedShadowUrl = uriCompBuilder.build().toUri();
@@ -177,24 +155,20 @@ public class ShadowTrafficAdapterTest {
         verify(webClient, times(1)).method(eq(HttpMethod.GET));
         verify(requestBodyUriSpec, times(1)).uri(eq(expectedShadowUrl));
         verify(requestBodySpec, times(1)).headers(any(Consumer.class));
-        verify(requestBodySpec, times(1)).syncBody(isNull());
+        verify(requestBodySpec, never()).body(any());
     }
 
     @Test
     public void testInvokeShadowTraffic_withHttpHost() {
 
         when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
-        when(shadowTrafficConfig.getPercentage()).thenReturn(50);
-        when(random.nextInt(eq(100))).thenReturn(30);
         when(shadowServletRequest.getMethod()).thenReturn("GET");
-        when(shadowTrafficConfig.getCustomHeaders()).thenReturn(new HashMap<>());
-        when(shadowTrafficConfig.getForwardHeaders()).thenReturn(new ArrayList<>());
 
         // Test with 1 http and 1 https
-        when(shadowTrafficConfig.getHosts()).thenReturn(Arrays.asList("http://int-maui.karmalab.net"));
         when(shadowServletRequest.getRequestURI()).thenReturn("/hotels?param=abcd");
 
-        shadowTrafficAdapter.invokeShadowTraffic(shadowServletRequest, originalServletRequest);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("http://int-maui.karmalab.net"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
 
         UriComponentsBuilder uriCompBuilder = UriComponentsBuilder.fromHttpUrl("http://int-maui.karmalab.net/hotels?param=abcd");
         URI expectedShadowUrl = uriCompBuilder.build().toUri();
@@ -202,25 +176,127 @@ public class ShadowTrafficAdapterTest {
         verify(webClient, times(1)).method(eq(HttpMethod.GET));
         verify(requestBodyUriSpec, times(1)).uri(eq(expectedShadowUrl));
         verify(requestBodySpec, times(1)).headers(any(Consumer.class));
-        verify(requestBodySpec, times(1)).syncBody(isNull());
+        verify(requestBodySpec, never()).body(any());
+    }
+
+    @Test
+    public void testInvokeShadowTraffic_withHttpsSchemeAndWithoutSchemeWhenSslDisabled() {
+
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
+        when(shadowTrafficConfig.isSsl()).thenReturn(false);
+        when(shadowServletRequest.getMethod()).thenReturn("GET");
+        when(shadowServletRequest.getRequestURI()).thenReturn("/hotels");
+
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("https://first.example.com", "second.example.com:8080"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        verify(requestBodyUriSpec, times(1)).uri(eq(URI.create("https://first.example.com/hotels")));
+        verify(requestBodyUriSpec, times(1)).uri(eq(URI.create("http://second.example.com:8080/hotels")));
+    }
+
+    @Test
+    public void testInvokeShadowTrafficToSeveralHosts_expectSamePathAndHeadersOnEveryHost() {
+
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
+        when(shadowTrafficConfig.isSsl()).thenReturn(true);
+        when(shadowServletRequest.getMethod()).thenReturn("GET");
+        when(shadowServletRequest.getRequestURI()).thenReturn("/hotels/new%20york");
+        when(shadowServletRequest.getQueryString()).thenReturn("name=a+b&city=new%20york");
+
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("first.example.com", "http://second.example.com:8080/base"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        verify(requestBodyUriSpec, times(1)).uri(eq(URI.create("https://first.example.com/hotels/new%20york?name=a%20b&city=new%20york")));
+        verify(requestBodyUriSpec, times(1)).uri(eq(URI.create("http://second.example.com:8080/base/hotels/new%20york?name=a%20b&city=new%20york")));
+        ArgumentCaptor<Consumer<HttpHeaders>> headers = ArgumentCaptor.forClass(Consumer.class);
+        verify(requestBodySpec, times(2)).headers(headers.capture());
+        HttpHeaders first = new HttpHeaders();
+        headers.getAllValues().get(0).accept(first);
+        HttpHeaders second = new HttpHeaders();
+        headers.getAllValues().get(1).accept(second);
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(machineName, first.getFirst(SHADOW_TRAFFIC_FROM_KEY));
+    }
+
+    @Test
+    public void testInvokeShadowTrafficWhileTheConnectionIsBusy_expectDroppedPastPendingAcquires() {
+
+        shadowTrafficAdapter = new ShadowTrafficAdapter(shadowTrafficConfigHelper, machineName, new ShadowTrafficMetrics(),
+                new ShadowTrafficConnectionPools(1, 0, baseUrl -> webClient));
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
+        when(shadowServletRequest.getMethod()).thenReturn("GET");
+        when(shadowServletRequest.getRequestURI()).thenReturn("/hotels");
+        MonoProcessor<DataBuffer> firstResponse = MonoProcessor.create();
+        AtomicInteger sent = new AtomicInteger();
+        Flux<DataBuffer> otherResponses = Flux.<DataBuffer>empty().doOnSubscribe(subscription -> sent.incrementAndGet());
+        when(clientResponse.bodyToFlux(DataBuffer.class)).thenReturn(firstResponse.flux().doOnSubscribe(subscription -> sent.incrementAndGet()),
+                otherResponses);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("http://int-maui.karmalab.net"));
+
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        Assert.assertEquals(1, shadowTrafficAdapter.getShadowTrafficMetrics().getPoolRejectedRequestCount());
+        // the dropped request is released right away, the first one once its response came
+        Assert.assertEquals(1, budget.getUsedBytes());
+        firstResponse.onComplete();
+        Assert.assertEquals(0, budget.getUsedBytes());
+
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        Assert.assertEquals(1, shadowTrafficAdapter.getShadowTrafficMetrics().getPoolRejectedRequestCount());
+        Assert.assertEquals(2, sent.get());
+    }
+
+    @Test
+    public void testInvokeShadowTrafficWithStreamedBodyWhileTheConnectionIsBusy_expectDroppedStreamDiscarded() {
+
+        shadowTrafficAdapter = new ShadowTrafficAdapter(shadowTrafficConfigHelper, machineName, new ShadowTrafficMetrics(),
+                new ShadowTrafficConnectionPools(1, 0, baseUrl -> webClient));
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
+        when(shadowServletRequest.getMethod()).thenReturn("POST");
+        when(shadowServletRequest.getRequestURI()).thenReturn("/hotels");
+        when(clientResponse.bodyToFlux(DataBuffer.class)).thenReturn(MonoProcessor.<DataBuffer>create().flux());
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("http://int-maui.karmalab.net"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+        StreamingHttpServletRequest.StreamingShadowBody body = new StreamingHttpServletRequest.StreamingShadowBody(-1, 1, 1024, 1024, 4096);
+        when(shadowServletRequest.getBody()).thenReturn(body);
+
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        Assert.assertEquals(1, shadowTrafficAdapter.getShadowTrafficMetrics().getPoolRejectedRequestCount());
+        // the stream the refused request claimed no longer queues the chunks the application reads
+        Assert.assertTrue(body.isDone());
+    }
+
+    @Test
+    public void testInvokeShadowTrafficWithStreamedBodyAndNoHost_expectBodyAborted() {
+
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
+        when(shadowServletRequest.getMethod()).thenReturn("POST");
+        StreamingHttpServletRequest.StreamingShadowBody body = new StreamingHttpServletRequest.StreamingShadowBody(-1, 1, 1024, 1024, 4096);
+        when(shadowServletRequest.getBody()).thenReturn(body);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Collections.singletonList(" "));
+
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        verify(webClient, never()).method(any());
+        Assert.assertTrue(body.isDone());
+        Assert.assertTrue(body.whenComplete().materialize().block().isOnError());
     }
 
     @Test
     public void testInvokeShadowTraffic_verifyOriginalUrlEncodedParamsDoesNotDoubleEncode() {
 
         when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
-        when(shadowTrafficConfig.getPercentage()).thenReturn(50);
-        when(random.nextInt(eq(100))).thenReturn(30);
         when(shadowServletRequest.getMethod()).thenReturn("GET");
-        when(shadowTrafficConfig.getCustomHeaders()).thenReturn(new HashMap<>());
-        when(shadowTrafficConfig.getForwardHeaders()).thenReturn(new ArrayList<>());
 
         // Test with 1 http and 1 https
-        when(shadowTrafficConfig.getHosts()).thenReturn(Arrays.asList("http://int-maui.karmalab.net"));
         // make sure that the param here is url encoded
         when(shadowServletRequest.getRequestURI()).thenReturn("/hotels?param=ab%20cd");
 
-        shadowTrafficAdapter.invokeShadowTraffic(shadowServletRequest, originalServletRequest);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("http://int-maui.karmalab.net"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
 
         UriComponentsBuilder uriCompBuilder = UriComponentsBuilder.fromHttpUrl("http://int-maui.karmalab.net/hotels?param=ab cd");
         URI expectedShadowUrl = uriCompBuilder.build().toUri();
@@ -228,26 +304,23 @@ public class ShadowTrafficAdapterTest {
         verify(webClient, times(1)).method(eq(HttpMethod.GET));
         verify(requestBodyUriSpec, times(1)).uri(eq(expectedShadowUrl));
         verify(requestBodySpec, times(1)).headers(any(Consumer.class));
-        verify(requestBodySpec, times(1)).syncBody(isNull());
+        verify(requestBodySpec, never()).body(any());
     }
 
     @Test
     public void testInvokeShadowTraffic_verifyWithPostBody() {
 
         when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
-        when(shadowTrafficConfig.getPercentage()).thenReturn(50);
-        when(random.nextInt(eq(100))).thenReturn(30);
         when(shadowServletRequest.getMethod()).thenReturn("POST");
-        when(shadowTrafficConfig.getCustomHeaders()).thenReturn(new HashMap<>());
-        when(shadowTrafficConfig.getForwardHeaders()).thenReturn(new ArrayList<>());
-        when(shadowServletRequest.getBody()).thenReturn("testBody");
+        ShadowBody body = ShadowBody.wrap("testBody".getBytes(StandardCharsets.UTF_8));
+        when(shadowServletRequest.getBody()).thenReturn(body);
 
         // Test with 1 http and 1 https
-        when(shadowTrafficConfig.getHosts()).thenReturn(Arrays.asList("http://int-maui.karmalab.net"));
         // make sure that the param here is url encoded
         when(shadowServletRequest.getRequestURI()).thenReturn("/hotels?param=ab%20cd");
 
-        shadowTrafficAdapter.invokeShadowTraffic(shadowServletRequest, originalServletRequest);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("http://int-maui.karmalab.net"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
 
         UriComponentsBuilder uriCompBuilder = UriComponentsBuilder.fromHttpUrl("http://int-maui.karmalab.net/hotels?param=ab cd");
         URI expectedShadowUrl = uriCompBuilder.build().toUri();
@@ -255,7 +328,69 @@ public class ShadowTrafficAdapterTest {
         verify(webClient, times(1)).method(eq(HttpMethod.POST));
         verify(requestBodyUriSpec, times(1)).uri(eq(expectedShadowUrl));
         verify(requestBodySpec, times(1)).headers(any(Consumer.class));
-        verify(requestBodySpec, times(1)).syncBody(eq("testBody"));
+        verify(requestBodySpec, times(1)).body(any(BodyInserter.class));
+        verify(clientResponse, times(1)).bodyToFlux(DataBuffer.class);
+        // released once the shadow request completed
+        Assert.assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testInvokeShadowTrafficWithStatusOnlyResponseMode_expectBodyNotRead() {
+
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
+        when(shadowTrafficConfig.getHttpResponseMode()).thenReturn(ShadowTrafficConfig.HttpResponseMode.STATUS_ONLY);
+        when(shadowServletRequest.getMethod()).thenReturn("GET");
+        when(shadowServletRequest.getRequestURI()).thenReturn("/hotels");
+        when(clientResponse.bodyToMono(Void.class)).thenReturn(Mono.empty());
+
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("http://int-maui.karmalab.net"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        verify(clientResponse, times(1)).bodyToMono(Void.class);
+        verify(clientResponse, never()).bodyToFlux(DataBuffer.class);
+        Assert.assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testInvokeShadowTrafficToTwoHosts_expectReleasedOnlyOnceBothCompleted() {
+
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
+        when(shadowServletRequest.getMethod()).thenReturn("POST");
+        when(shadowServletRequest.getBody()).thenReturn(ShadowBody.wrap("testBody".getBytes(StandardCharsets.UTF_8)));
+        when(shadowServletRequest.getRequestURI()).thenReturn("/hotels");
+        MonoProcessor<DataBuffer> firstHost = MonoProcessor.create();
+        MonoProcessor<DataBuffer> secondHost = MonoProcessor.create();
+        when(clientResponse.bodyToFlux(DataBuffer.class)).thenReturn(firstHost.flux(), secondHost.flux());
+
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("http://first.example.com", "http://second.example.com"));
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        Assert.assertEquals(1, budget.getUsedBytes());
+        firstHost.onComplete();
+        Assert.assertEquals(1, budget.getUsedBytes());
+        secondHost.onError(new IllegalStateException("second host failure"));
+        Assert.assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testInvokeShadowTrafficTwiceWithDedupEnabled_expectRepeatSuppressed() {
+
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(shadowTrafficConfig);
+        when(shadowTrafficConfig.isDedupEnabled()).thenReturn(true);
+        when(shadowTrafficConfig.getDedupWindowMs()).thenReturn(60000);
+        when(shadowTrafficConfig.getDedupMaxEntries()).thenReturn(16);
+        CompiledShadowTrafficConfig compiledConfig = CompiledShadowTrafficConfig.compile(shadowTrafficConfig);
+        when(shadowTrafficConfigHelper.getCompiledConfig()).thenReturn(compiledConfig);
+        when(shadowServletRequest.getMethod()).thenReturn("GET");
+        when(shadowServletRequest.getRequestURI()).thenReturn("/hotels");
+        when(shadowServletRequest.getQueryString()).thenReturn("param=abcd");
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, Arrays.asList("http://int-maui.karmalab.net"));
+
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+        shadowTrafficAdapter.invokeShadowTraffic(snapshot(policy), policy);
+
+        verify(webClient, times(1)).method(eq(HttpMethod.GET));
+        Assert.assertEquals(1, shadowTrafficAdapter.getShadowTrafficMetrics().getSuppressedRequestCount());
     }
 
     @Test
@@ -263,7 +398,7 @@ public class ShadowTrafficAdapterTest {
         Map<String, String> customHeaders = new HashMap<>();
         customHeaders.put("carlson", "tse");
 
-        HttpHeaders httpHeaders = shadowTrafficAdapter.createHeaders(shadowServletRequest, customHeaders, new ArrayList<>());
+        HttpHeaders httpHeaders = shadowTrafficAdapter.createHeaders(snapshot(new ShadowTrafficPolicy(50, null)), customHeaders);
 
         HttpHeaders expectedHeaders = new HttpHeaders();
         expectedHeaders.add(IS_SHADOW_TRAFFIC_KEY, IS_SHADOW_TRAFFIC_VALUE);
@@ -275,15 +410,10 @@ public class ShadowTrafficAdapterTest {
 
     @Test
     public void testHeaderCreationWithApplicationJsonUTF8Set() {
-        Vector headerNames = new Vector();
-        headerNames.add("Content-Type");
-
-        Enumeration<String> headers =  headerNames.elements();
-
-        when(shadowServletRequest.getHeaderNames()).thenReturn(headers);
         when(shadowServletRequest.getHeader(eq("Content-Type"))).thenReturn(MediaType.APPLICATION_JSON_VALUE);
+        ShadowTrafficPolicy policy = new ShadowTrafficPolicy(50, null, null, Arrays.asList("Content-Type"));
 
-        HttpHeaders httpHeaders = shadowTrafficAdapter.createHeaders(shadowServletRequest, new HashMap<>(), Arrays.asList("Content-Type"));
+        HttpHeaders httpHeaders = shadowTrafficAdapter.createHeaders(snapshot(policy), new HashMap<>());
 
         HttpHeaders expectedHeaders = new HttpHeaders();
         expectedHeaders.add(IS_SHADOW_TRAFFIC_KEY, IS_SHADOW_TRAFFIC_VALUE);
@@ -292,4 +422,19 @@ public class ShadowTrafficAdapterTest {
 
         Assert.assertEquals(expectedHeaders, httpHeaders);
     }
-}
\ No newline at end of file
+
+    /**
+     * Snapshot of the mocked request as the filter takes it. The reference of the filter is dropped right away so the snapshot holds the
+     * last one, the byte charged to the budget tells whether it was released.
+     */
+    private ShadowRequest snapshot(ShadowTrafficPolicy policy) {
+        ShadowRequest.Lease lease = new ShadowRequest.Lease(ShadowRequest.Lease.NOTHING);
+        budget.tryAcquire(1, 0);
+        lease.charged(budget, 1);
+        when(shadowServletRequest.isCaptureComplete()).thenReturn(true);
+        when(shadowServletRequest.getLease()).thenReturn(lease);
+        ShadowRequest shadowRequest = ShadowRequest.of(shadowServletRequest, policy.getForwardHeaders());
+        lease.release();
+        return shadowRequest;
+    }
+}
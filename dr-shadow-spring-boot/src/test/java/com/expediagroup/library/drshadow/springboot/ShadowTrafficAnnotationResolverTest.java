@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+import org.springframework.context.support.StaticApplicationContext;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficAnnotationResolver.AnnotatedRoute;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ShadowTrafficAnnotationResolverTest {
+
+    @Test
+    public void testToRegex() {
+        assertEquals("^/hotels$", ShadowTrafficAnnotationResolver.toRegex("/hotels"));
+        assertEquals("^/hotels/[^/]+/rooms$", ShadowTrafficAnnotationResolver.toRegex("/hotels/{id}/rooms"));
+        assertEquals("^/hotels/(?:\\d{3})$", ShadowTrafficAnnotationResolver.toRegex("/hotels/{id:\\d{3}}"));
+        assertEquals("^/static(?:/.*)?$", ShadowTrafficAnnotationResolver.toRegex("/static/**"));
+        assertEquals("^/files/[^/]*\\.txt$", ShadowTrafficAnnotationResolver.toRegex("/files/*.txt"));
+        assertEquals("^/a/.*/b[^/]$", ShadowTrafficAnnotationResolver.toRegex("/a/**/b?"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testToRegexRejectsUnclosedVariable() {
+        ShadowTrafficAnnotationResolver.toRegex("/hotels/{id");
+    }
+
+    @Test
+    public void testToRegexWithSuffixPatternAndTrailingSlashMatch() {
+        assertEquals("^/hotels(?:\\.[^/]*|/)?$", ShadowTrafficAnnotationResolver.toRegex("/hotels", null, true));
+        assertEquals("^/hotels(?:\\.json|\\.xml)?$", ShadowTrafficAnnotationResolver.toRegex("/hotels", Arrays.asList("json", ".xml"), false));
+        assertEquals("^/hotels\\.json(?:/)?$", ShadowTrafficAnnotationResolver.toRegex("/hotels.json", null, true));
+        assertEquals("^/hotels/$", ShadowTrafficAnnotationResolver.toRegex("/hotels/", Collections.emptyList(), true));
+        assertEquals("^/static(?:/.*)?$", ShadowTrafficAnnotationResolver.toRegex("/static/**", null, true));
+    }
+
+    @Test
+    public void testResolveOnlyAnnotatedHandlers() {
+        List<AnnotatedRoute> annotatedRoutes = ShadowTrafficAnnotationResolver.resolve(
+                Collections.singletonList(handlerMapping()), "/app");
+
+        annotatedRoutes.sort((a, b) -> (a.getRequestURI() + a.getMethod()).compareTo(b.getRequestURI() + b.getMethod()));
+        assertEquals(2, annotatedRoutes.size());
+        assertEquals("^/app/cars(?:\\.[^/]*|/)?$", annotatedRoutes.get(0).getRequestURI());
+        assertEquals("*", annotatedRoutes.get(0).getMethod());
+        assertNull(annotatedRoutes.get(0).getPercentage());
+        assertEquals("^/app/hotels/[^/]+(?:\\.[^/]*|/)?$", annotatedRoutes.get(1).getRequestURI());
+        assertEquals("GET", annotatedRoutes.get(1).getMethod());
+        assertEquals(Integer.valueOf(100), annotatedRoutes.get(1).getPercentage());
+        assertEquals(Collections.singletonList("annotated-host"), annotatedRoutes.get(1).getHosts());
+    }
+
+    @Test
+    public void testAnnotatedRoutesTakePrecedenceOverInclusionPatterns() {
+        ShadowTrafficConfig config = new ShadowTrafficConfig();
+        config.setEnabled(true);
+        config.setPercentage(10);
+        config.setHosts(Arrays.asList("configured-host"));
+        ShadowTrafficConfig.InclusionPattern inclusionPattern = new ShadowTrafficConfig.InclusionPattern();
+        inclusionPattern.setRequestURI("^/.*");
+        inclusionPattern.setMethod("GET");
+        config.setInclusionPatterns(Collections.singletonList(inclusionPattern));
+        ShadowTrafficConfigHelper helper = new ShadowTrafficConfigHelper(config);
+
+        StaticApplicationContext context = new StaticApplicationContext();
+        context.registerSingleton("testController", TestController.class);
+        context.registerSingleton("requestMappingHandlerMapping", RequestMappingHandlerMapping.class);
+        context.refresh();
+        ShadowTrafficAnnotationResolver resolver = new ShadowTrafficAnnotationResolver(helper);
+        resolver.setApplicationContext(context);
+        resolver.afterSingletonsInstantiated();
+
+        CompiledShadowTrafficConfig compiledConfig = helper.getCompiledConfig();
+        assertPolicy(compiledConfig, "GET", "/hotels/42", 100, "annotated-host");
+        assertPolicy(compiledConfig, "POST", "/cars", 10, "configured-host");
+        assertPolicy(compiledConfig, "GET", "/flights", 10, "configured-host");
+        assertArrayEquals(RouteMatcher.NO_ROUTES, compiledConfig.matchRoutes("POST", "/hotels/42"));
+        assertPolicy(compiledConfig, "GET", "/hotels/42.json", 100, "annotated-host");
+        assertPolicy(compiledConfig, "GET", "/hotels/42/", 100, "annotated-host");
+
+        helper.refresh();
+
+        assertPolicy(helper.getCompiledConfig(), "GET", "/hotels/42", 100, "annotated-host");
+    }
+
+    private void assertPolicy(CompiledShadowTrafficConfig compiledConfig, String method, String path, int percentage, String host) {
+        int[] routes = compiledConfig.matchRoutes(method, path);
+        assertEquals(method + " " + path, 1, routes.length);
+        ShadowTrafficPolicy policy = compiledConfig.getInclusionPatterns().get(routes[0]).getPolicy();
+        assertEquals(percentage, policy.getPercentage());
+        assertEquals(Collections.singletonList(host), policy.getHosts());
+    }
+
+    private RequestMappingHandlerMapping handlerMapping() {
+        StaticApplicationContext context = new StaticApplicationContext();
+        context.registerSingleton("testController", TestController.class);
+        context.refresh();
+        RequestMappingHandlerMapping handlerMapping = new RequestMappingHandlerMapping();
+        handlerMapping.setApplicationContext(context);
+        handlerMapping.afterPropertiesSet();
+        return handlerMapping;
+    }
+
+    @Controller
+    static class TestController {
+
+        @ShadowTraffic(percentage = 100, hosts = "annotated-host")
+        @GetMapping("/hotels/{id}")
+        public void hotel() {
+        }
+
+        @ShadowTraffic
+        @RequestMapping("/cars")
+        public void cars() {
+        }
+
+        @GetMapping("/flights")
+        public void flights() {
+        }
+    }
+}
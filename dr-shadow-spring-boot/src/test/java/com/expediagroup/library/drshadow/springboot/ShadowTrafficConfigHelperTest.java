@@ -21,7 +21,17 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNotSame;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ShadowTrafficConfigHelperTest {
@@ -47,5 +57,124 @@ public class ShadowTrafficConfigHelperTest {
 		// assert
 		assertNotNull(config);
 	}
+
+	@Test
+	public void testGetCompiledConfigReturnsSnapshot_HappyPath() {
+		// act
+		CompiledShadowTrafficConfig compiledConfig = shadowTrafficConfigHelper.getCompiledConfig();
+
+		// assert
+		assertNotNull(compiledConfig);
+		assertFalse(compiledConfig.isEnabled());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidInclusionPatternIsRejectedAtStartup() {
+		// arrange
+		ShadowTrafficConfig.InclusionPattern inclusionPattern = new ShadowTrafficConfig.InclusionPattern();
+		inclusionPattern.setRequestURI("[");
+		inclusionPattern.setMethod("*");
+		when(shadowTrafficConfig.getInclusionPatterns()).thenReturn(Collections.singletonList(inclusionPattern));
+
+		// act
+		new ShadowTrafficConfigHelper(shadowTrafficConfig);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInclusionPatternWithoutMethodIsRejectedAtStartup() {
+		// arrange
+		ShadowTrafficConfig.InclusionPattern inclusionPattern = new ShadowTrafficConfig.InclusionPattern();
+		inclusionPattern.setRequestURI("^/hotels$");
+		when(shadowTrafficConfig.getInclusionPatterns()).thenReturn(Collections.singletonList(inclusionPattern));
+
+		// act
+		new ShadowTrafficConfigHelper(shadowTrafficConfig);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidHostIsRejectedAtStartup() {
+		// arrange
+		when(shadowTrafficConfig.getHosts()).thenReturn(Collections.singletonList("shadow example.com"));
+
+		// act
+		new ShadowTrafficConfigHelper(shadowTrafficConfig);
+	}
+
+	@Test
+	public void testHostsAreResolvedAtStartup() {
+		// arrange
+		when(shadowTrafficConfig.getHosts()).thenReturn(Arrays.asList("shadow.example.com", "http://other.example.com"));
+		when(shadowTrafficConfig.isSsl()).thenReturn(true);
+
+		// act
+		CompiledShadowTrafficConfig compiledConfig = new ShadowTrafficConfigHelper(shadowTrafficConfig).getCompiledConfig();
+
+		// assert
+		assertEquals("https://shadow.example.com", compiledConfig.getShadowHost("shadow.example.com").getBaseUrl());
+		assertEquals("http://other.example.com", compiledConfig.getShadowHost("http://other.example.com").getBaseUrl());
+		assertNull(compiledConfig.getShadowHost("unknown.example.com"));
+	}
+
+	@Test
+	public void testRefreshPublishesNewSnapshot() {
+		// arrange
+		CompiledShadowTrafficConfig before = shadowTrafficConfigHelper.getCompiledConfig();
+		when(shadowTrafficConfig.isEnabled()).thenReturn(true);
+
+		// act
+		shadowTrafficConfigHelper.refresh();
+
+		// assert
+		assertNotSame(before, shadowTrafficConfigHelper.getCompiledConfig());
+		assertTrue(shadowTrafficConfigHelper.getCompiledConfig().isEnabled());
+	}
+
+	@Test
+	public void testInclusionPatternPolicyOverridesConfiguredPolicy() {
+		// arrange
+		ShadowTrafficConfig.InclusionPattern hotRoute = new ShadowTrafficConfig.InclusionPattern();
+		hotRoute.setRequestURI("^/hotels$");
+		hotRoute.setMethod("GET");
+		hotRoute.setPercentage(1);
+		ShadowTrafficConfig.InclusionPattern rareRoute = new ShadowTrafficConfig.InclusionPattern();
+		rareRoute.setRequestURI("^/bookings$");
+		rareRoute.setMethod("POST");
+		rareRoute.setPercentage(100);
+		rareRoute.setHosts(Collections.singletonList("candidate-host"));
+		rareRoute.setForwardHeaders(Collections.singletonList("x-booking-id"));
+		when(shadowTrafficConfig.getPercentage()).thenReturn(10);
+		when(shadowTrafficConfig.getHosts()).thenReturn(Arrays.asList("host-a", "host-b"));
+		when(shadowTrafficConfig.getCustomHeaders()).thenReturn(Collections.singletonMap("team", "search"));
+		when(shadowTrafficConfig.getForwardHeaders()).thenReturn(Collections.singletonList("x-cookie"));
+		when(shadowTrafficConfig.getInclusionPatterns()).thenReturn(Arrays.asList(hotRoute, rareRoute));
+
+		// act
+		shadowTrafficConfigHelper.refresh();
+
+		// assert
+		List<CompiledShadowTrafficConfig.CompiledInclusionPattern> routes = shadowTrafficConfigHelper.getCompiledConfig().getInclusionPatterns();
+		ShadowTrafficPolicy hotPolicy = routes.get(0).getPolicy();
+		assertEquals(1, hotPolicy.getPercentage());
+		assertEquals(Arrays.asList("host-a", "host-b"), hotPolicy.getHosts());
+		assertEquals(Collections.singletonList("x-cookie"), hotPolicy.getForwardHeaders());
+		ShadowTrafficPolicy rarePolicy = routes.get(1).getPolicy();
+		assertEquals(100, rarePolicy.getPercentage());
+		assertEquals(Collections.singletonList("candidate-host"), rarePolicy.getHosts());
+		assertEquals(Collections.singletonMap("team", "search"), rarePolicy.getCustomHeaders());
+		assertEquals(Collections.singletonList("x-booking-id"), rarePolicy.getForwardHeaders());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInclusionPatternWithInvalidPercentageIsRejectedAtStartup() {
+		// arrange
+		ShadowTrafficConfig.InclusionPattern inclusionPattern = new ShadowTrafficConfig.InclusionPattern();
+		inclusionPattern.setRequestURI("^/hotels$");
+		inclusionPattern.setMethod("GET");
+		inclusionPattern.setPercentage(101);
+		when(shadowTrafficConfig.getInclusionPatterns()).thenReturn(Collections.singletonList(inclusionPattern));
+
+		// act
+		new ShadowTrafficConfigHelper(shadowTrafficConfig);
+	}
 	
 }
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ShadowTrafficConnectionPoolsTest {
+
+    @Mock
+    private ShadowTrafficConfigHelper shadowTrafficConfigHelper;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private ServerSocket server;
+    private ExecutorService serverThreads;
+    private String baseUrl;
+    private ShadowTrafficConfig config;
+    private ShadowTrafficConnectionPools pools;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverThreads = Executors.newCachedThreadPool();
+        serverThreads.execute(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    serverThreads.execute(() -> serve(socket));
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        baseUrl = "http://localhost:" + server.getLocalPort();
+        config = new ShadowTrafficConfig();
+        config.setHttpCorePoolSize(3);
+        config.setHttpReadTimeoutMs(200);
+        config.setHosts(Collections.singletonList(baseUrl));
+    }
+
+    /**
+     * Minimal keep-alive HTTP/1.1 server, the /slow path answers after 2 seconds. Only chunked request bodies are supported, an HTTP/2
+     * connection preface is refused.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = s.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null) {
+                String line;
+                boolean chunked = false;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    chunked |= line.equalsIgnoreCase("transfer-encoding: chunked");
+                }
+                // bodyless requests may still be sent chunked, skip the chunks up to the last one and its trailer
+                while (chunked && (line = reader.readLine()) != null) {
+                    int size = Integer.parseInt(line.trim(), 16);
+                    reader.skip(size);
+                    reader.readLine();
+                    chunked = size > 0;
+                }
+                if (requestLine.startsWith("PRI ")) {
+                    // HTTP/2 connection preface
+                    out.write("HTTP/1.1 505 HTTP Version Not Supported\r\nConnection: close\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    return;
+                }
+                requests.incrementAndGet();
+                if (requestLine.contains(" /slow ")) {
+                    Thread.sleep(2000);
+                }
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // connection closed by the client
+        }
+    }
+
+    private String toStringAndRelease(DataBuffer buffer) {
+        String value = StandardCharsets.US_ASCII.decode(buffer.asByteBuffer()).toString();
+        DataBufferUtils.release(buffer);
+        return value;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (pools != null) {
+            pools.dispose();
+        }
+        server.close();
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void testWarmUp_expectPoolSizeConnectionsOpenedAndReused() throws InterruptedException {
+        pools = new ShadowTrafficConnectionPools(config);
+        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
+        when(shadowTrafficConfigHelper.getCompiledConfig()).thenReturn(CompiledShadowTrafficConfig.compile(config));
+        ShadowTrafficAdapter adapter = new ShadowTrafficAdapter(shadowTrafficConfigHelper, "machine", new ShadowTrafficMetrics(), pools);
+
+        adapter.warmUp();
+        ShadowTrafficConnectionPools.HostPool pool = pools.get(baseUrl);
+        for (int i = 0; i < 100 && (requests.get() < 3 || pool.getRequests() > 0); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(3, requests.get());
+        assertEquals(3, connections.get());
+
+        String response = pool.getWebClient().get().uri(baseUrl + "/hotels").retrieve().bodyToFlux(DataBuffer.class)
+                .map(this::toStringAndRelease)
+                .reduce(String::concat)
+                .block();
+
+        assertEquals("ok", response);
+        assertEquals(3, connections.get());
+    }
+
+    @Test
+    public void testResponseStalledPastReadTimeout_expectReadTimeout() {
+        pools = new ShadowTrafficConnectionPools(config);
+        WebClient webClient = pools.get(baseUrl).getWebClient();
+
+        long start = System.nanoTime();
+        try {
+            webClient.get().uri(baseUrl + "/slow").retrieve().bodyToMono(String.class).block();
+            fail("expected a read timeout");
+        } catch (RuntimeException ex) {
+            // the response comes after 2 seconds, the connection is closed once the 200ms read timeout elapsed
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1500);
+        }
+    }
+
+    @Test
+    public void testHttp2ToHttp11Host_expectFallbackToHttp11ForGood() {
+        config.setHttpProtocol(ShadowTrafficConfig.HttpProtocol.HTTP2);
+        pools = new ShadowTrafficConnectionPools(config);
+        WebClient webClient = pools.get(baseUrl).getWebClient();
+
+        for (int i = 0; i < 2; i++) {
+            String response = webClient.get().uri(baseUrl + "/hotels").retrieve().bodyToFlux(DataBuffer.class)
+                    .map(this::toStringAndRelease)
+                    .reduce(String::concat)
+                    .block();
+            assertEquals("ok", response);
+        }
+        // the refused HTTP/2 connection, then one pooled HTTP/1.1 connection
+        assertEquals(2, connections.get());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testRequestsPastConnectionsAndPendingAcquires_expectRejectedUntilReleased() {
+        WebClient webClient = mock(WebClient.class);
+        pools = new ShadowTrafficConnectionPools(2, 1, baseUrl -> webClient);
+        ShadowTrafficConnectionPools.HostPool pool = pools.get("http://first.example.com");
+
+        assertTrue(pool.tryAcquire());
+        assertTrue(pool.tryAcquire());
+        assertTrue(pool.tryAcquire());
+        assertFalse(pool.tryAcquire());
+        pool.release();
+        assertTrue(pool.tryAcquire());
+        assertSame(pool, pools.get("http://first.example.com"));
+        assertTrue(pools.get("http://second.example.com").tryAcquire());
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.MDC;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ShadowTrafficDispatcherTest {
+
+    private final ShadowTrafficAdapter adapter = Mockito.mock(ShadowTrafficAdapter.class);
+    private final ShadowTrafficMetrics metrics = new ShadowTrafficMetrics();
+    private final ShadowTrafficPolicy policy = new ShadowTrafficPolicy(100, Collections.singletonList("shadow.example.com"));
+    private ShadowTrafficDispatcher dispatcher;
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.dispose();
+        }
+        MDC.clear();
+    }
+
+    @Test
+    public void testDispatchFromSeveralThreads_expectEveryRequestSentOnDispatcherThreadsWithItsMdc() throws InterruptedException {
+        int requests = 1000;
+        CountDownLatch sent = new CountDownLatch(requests);
+        List<String> threads = new CopyOnWriteArrayList<>();
+        List<String> contexts = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            threads.add(Thread.currentThread().getName());
+            contexts.add(MDC.get("request-id"));
+            sent.countDown();
+            return null;
+        }).when(adapter).invokeShadowTraffic(any(), any());
+        dispatcher = new ShadowTrafficDispatcher(adapter, metrics, 2, requests);
+
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            String requestId = "producer-" + p;
+            producers[p] = new Thread(() -> {
+                MDC.put("request-id", requestId);
+                for (int i = 0; i < requests / producers.length; i++) {
+                    assertTrue(dispatcher.dispatch(request(), policy));
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        for (String thread : threads) {
+            assertTrue(thread.startsWith("shadow-traffic-dispatcher-"));
+        }
+        for (int p = 0; p < producers.length; p++) {
+            assertEquals(requests / producers.length, Collections.frequency(contexts, "producer-" + p));
+        }
+        assertEquals(0, metrics.getDispatchRejectedRequestCount());
+    }
+
+    @Test
+    public void testDispatchWhileDispatcherIsBusy_expectRejectedOnceTheRingIsFull() throws InterruptedException {
+        CountDownLatch taken = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            taken.countDown();
+            resume.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(adapter).invokeShadowTraffic(any(), any());
+        dispatcher = new ShadowTrafficDispatcher(adapter, metrics, 1, 2);
+
+        assertTrue(dispatcher.dispatch(request(), policy));
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.dispatch(request(), policy));
+        assertTrue(dispatcher.dispatch(request(), policy));
+        assertFalse(dispatcher.dispatch(request(), policy));
+        resume.countDown();
+
+        assertEquals(1, metrics.getDispatchRejectedRequestCount());
+    }
+
+    @Test
+    public void testDispatchWithoutThreads_expectSentOnCallingThread() {
+        String caller = Thread.currentThread().getName();
+        List<String> threads = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            threads.add(Thread.currentThread().getName());
+            return null;
+        }).when(adapter).invokeShadowTraffic(any(), any());
+        ShadowRequest shadowRequest = request();
+
+        assertTrue(new ShadowTrafficDispatcher(adapter, metrics).dispatch(shadowRequest, policy));
+
+        verify(adapter).invokeShadowTraffic(shadowRequest, policy);
+        assertEquals(Collections.singletonList(caller), threads);
+    }
+
+    @Test
+    public void testDispose_expectWaitingRequestsReleasedWithoutBeingSent() throws InterruptedException {
+        CountDownLatch taken = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            taken.countDown();
+            resume.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(adapter).invokeShadowTraffic(any(), any());
+        dispatcher = new ShadowTrafficDispatcher(adapter, metrics, 1, 4);
+        InFlightBudget budget = new InFlightBudget();
+        assertTrue(dispatcher.dispatch(request(), policy));
+        assertTrue(taken.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.dispatch(request(budget), policy));
+
+        Thread disposer = new Thread(dispatcher::dispose);
+        disposer.start();
+        while (disposer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.yield();
+        }
+        resume.countDown();
+        disposer.join();
+
+        verify(adapter, times(1)).invokeShadowTraffic(any(), any());
+        assertEquals(0, budget.getUsedBytes());
+        assertFalse(dispatcher.dispatch(request(), policy));
+    }
+
+    @Test
+    public void testMultipartPartsDeletedBeforeSent_expectCapturedBodySent() throws Exception {
+        AtomicBoolean deleted = new AtomicBoolean();
+        Part upload = Mockito.mock(Part.class);
+        when(upload.getHeaderNames()).thenReturn(Collections.singletonList("content-disposition"));
+        when(upload.getHeaders("content-disposition")).thenReturn(Collections.singletonList("form-data; name=\"file\""));
+        when(upload.getInputStream()).thenAnswer(invocation -> {
+            if (deleted.get()) {
+                throw new IOException("part deleted");
+            }
+            return new ByteArrayInputStream(new byte[]{1, 2, 3});
+        });
+        HttpServletRequest servletRequest = Mockito.mock(HttpServletRequest.class);
+        when(servletRequest.getHeader("content-type")).thenReturn("multipart/form-data; boundary=XyZ");
+        when(servletRequest.getParts()).thenReturn(Collections.singletonList(upload));
+        when(servletRequest.getContentLengthLong()).thenReturn(-1L);
+        CountDownLatch sent = new CountDownLatch(1);
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            ShadowRequest shadowRequest = invocation.getArgument(0);
+            bodies.add(new String(CaptureBufferTest.bytes(shadowRequest.getBody()), StandardCharsets.ISO_8859_1));
+            shadowRequest.release();
+            sent.countDown();
+            return null;
+        }).when(adapter).invokeShadowTraffic(any(), any());
+        dispatcher = new ShadowTrafficDispatcher(adapter, metrics, 1, 4);
+        MultiPartHttpServletRequest multipartRequest = new MultiPartHttpServletRequest(servletRequest);
+
+        assertTrue(multipartRequest.finishCapture());
+        ShadowRequest shadowRequest = ShadowRequest.of(multipartRequest, Collections.emptyList());
+        multipartRequest.release();
+        // what the container does with the parts once the request is done, before the dispatcher thread sends
+        deleted.set(true);
+        assertTrue(dispatcher.dispatch(shadowRequest, policy));
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("--XyZ\r\ncontent-disposition: form-data; name=\"file\"\r\n\r\n\u0001\u0002\u0003\r\n--XyZ--\r\n"),
+                bodies);
+    }
+
+    @Test
+    public void testAdapterThrowingAnError_expectDispatcherThreadKeepsSending() throws InterruptedException {
+        CountDownLatch sent = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            sent.countDown();
+            throw new NoClassDefFoundError("shadow traffic client");
+        }).when(adapter).invokeShadowTraffic(any(), any());
+        dispatcher = new ShadowTrafficDispatcher(adapter, metrics, 1, 4);
+
+        assertTrue(dispatcher.dispatch(request(), policy));
+        assertTrue(dispatcher.dispatch(request(), policy));
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDisposeWhileDispatching_expectEveryRequestSentOrReleased() throws InterruptedException {
+        InFlightBudget budget = new InFlightBudget();
+        doAnswer(invocation -> {
+            ((ShadowRequest) invocation.getArgument(0)).release();
+            return null;
+        }).when(adapter).invokeShadowTraffic(any(), any());
+        dispatcher = new ShadowTrafficDispatcher(adapter, metrics, 2, 8);
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            producers[p] = new Thread(() -> {
+                while (!stopped.get()) {
+                    ShadowRequest shadowRequest = request(budget);
+                    if (!dispatcher.dispatch(shadowRequest, policy)) {
+                        shadowRequest.release();
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        Thread.sleep(50);
+        dispatcher.dispose();
+        stopped.set(true);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoCapacity_expectRejected() {
+        new ShadowTrafficDispatcher(adapter, metrics, 1, 0);
+    }
+
+    private static ShadowRequest request() {
+        return request(new InFlightBudget());
+    }
+
+    /**
+     * Snapshot holding the last reference on its lease, the byte charged to the budget tells whether it was released.
+     */
+    private static ShadowRequest request(InFlightBudget budget) {
+        ShadowRequest.Lease lease = new ShadowRequest.Lease(ShadowRequest.Lease.NOTHING);
+        budget.tryAcquire(1, 0);
+        lease.charged(budget, 1);
+        DrShadowHttpServletRequest request = Mockito.mock(DrShadowHttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/hotels");
+        when(request.isCaptureComplete()).thenReturn(true);
+        when(request.getLease()).thenReturn(lease);
+        ShadowRequest shadowRequest = ShadowRequest.of(request, Collections.emptyList());
+        lease.release();
+        return shadowRequest;
+    }
+}
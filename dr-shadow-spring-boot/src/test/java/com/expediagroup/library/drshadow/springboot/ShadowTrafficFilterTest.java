@@ -18,17 +18,34 @@ package com.expediagroup.library.drshadow.springboot;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
 import org.mockito.junit.MockitoJUnitRunner;
 
 import javax.servlet.FilterChain;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
+import com.expediagroup.library.drshadow.springboot.CompiledShadowTrafficConfig.CompiledInclusionPattern;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -55,11 +72,23 @@ public class ShadowTrafficFilterTest {
     @Mock
     private ShadowTrafficConfigHelper shadowTrafficConfigHelper;
 
+    @Mock
+    private Random random;
+
+    private final InFlightBudget budget = new InFlightBudget();
+
     private ShadowTrafficFilter filter;
 
     @Before
     public void setUp() {
-        filter = new ShadowTrafficFilter(shadowTrafficConfigHelper, adapter);
+        ShadowTrafficMetrics metrics = new ShadowTrafficMetrics(budget);
+        filter = new ShadowTrafficFilter(shadowTrafficConfigHelper, new ShadowTrafficDispatcher(adapter, metrics), metrics, budget);
+        filter.setRandom(random);
+    }
+
+    private void compileConfig() {
+        CompiledShadowTrafficConfig compiledConfig = CompiledShadowTrafficConfig.compile(config);
+        when(shadowTrafficConfigHelper.getCompiledConfig()).thenReturn(compiledConfig);
     }
 
     @Test
@@ -73,9 +102,10 @@ public class ShadowTrafficFilterTest {
     @Test
     public void shouldNotFilter_hasShadowTrafficConfigDisabled_expectNoFilter() throws Exception {
 
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(false);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertTrue(result);
@@ -83,7 +113,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_inclusionPatternListIsEmpty_expectNoFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -91,6 +120,8 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertTrue(result);
@@ -98,7 +129,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_oneInclusionPatternWithnNeitherPathNorMethodMatching_expectNoFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -110,6 +140,8 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertTrue(result);
@@ -117,7 +149,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_oneInclusionPatternMatchesPathButNotMethod_expectNoFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -130,6 +161,8 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertTrue(result);
@@ -137,7 +170,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_oneInclusionPatternMatchesPathAndMethod_expectFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -150,6 +182,8 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertFalse(result);
@@ -157,7 +191,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_oneInclusionPatternMatchesPathAndMethodWithLowerCase_expectFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -170,6 +203,8 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertFalse(result);
@@ -177,7 +212,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_oneInclusionPatternMatchesPathAndAllMethods_expectFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -189,33 +223,15 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
-        boolean result = filter.shouldNotFilter(request);
-
-        assertFalse(result);
-    }
-
-    @Test
-    public void shouldNotFilter_oneInvalidInclusionPatternMatch_expectNoFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
-        when(config.isEnabled()).thenReturn(true);
-
-        when(request.getRequestURI()).thenReturn("/hotels");
-        List<ShadowTrafficConfig.InclusionPattern> inclusionPatterns = new ArrayList<>();
-        ShadowTrafficConfig.InclusionPattern pattern1 = new ShadowTrafficConfig.InclusionPattern();
-        pattern1.setRequestURI("[");
-        pattern1.setMethod("*");
-        inclusionPatterns.add(pattern1);
-
-        when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
+        compileConfig();
 
         boolean result = filter.shouldNotFilter(request);
 
-        assertTrue(result);
+        assertFalse(result);
     }
 
     @Test
     public void shouldNotFilter_oneNullInclusionPatternMatch_expectNoFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -224,6 +240,8 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertTrue(result);
@@ -231,7 +249,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_multipleInclusionPatternMatches_withLastOneMatching_expectFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotel-details");
@@ -249,6 +266,8 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertFalse(result);
@@ -256,7 +275,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_multipleInclusionPatternMatches_withFirstOneMatching_expectFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -274,6 +292,8 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertFalse(result);
@@ -281,7 +301,6 @@ public class ShadowTrafficFilterTest {
 
     @Test
     public void shouldNotFilter_multipleInclusionPatternMatches_withNoneMatching_expectNoFilter() throws Exception {
-        when(shadowTrafficConfigHelper.getConfig()).thenReturn(config);
         when(config.isEnabled()).thenReturn(true);
 
         when(request.getRequestURI()).thenReturn("/hotels");
@@ -299,8 +318,377 @@ public class ShadowTrafficFilterTest {
 
         when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
 
+        compileConfig();
+
+        boolean result = filter.shouldNotFilter(request);
+
+        assertTrue(result);
+    }
+
+    @Test
+    public void shouldNotFilter_oneInclusionPatternMatchesPathAndHeaderValueIgnoringCase_expectFilter() throws Exception {
+        when(config.isEnabled()).thenReturn(true);
+
+        when(request.getRequestURI()).thenReturn("/hotels");
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getHeader("x-brand")).thenReturn("Egencia");
+        List<ShadowTrafficConfig.InclusionPattern> inclusionPatterns = new ArrayList<>();
+        ShadowTrafficConfig.InclusionPattern pattern1 = new ShadowTrafficConfig.InclusionPattern();
+        pattern1.setRequestURI("^/hotels$");
+        pattern1.setMethod("GET");
+        ShadowTrafficConfig.HeaderPattern headerPattern = new ShadowTrafficConfig.HeaderPattern();
+        headerPattern.setHeaderKey("X-Brand");
+        headerPattern.setHeaderValue("EGEN.*");
+        pattern1.setHeaderPattern(Collections.singletonList(headerPattern));
+        inclusionPatterns.add(pattern1);
+
+        when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
+        compileConfig();
+
+        boolean result = filter.shouldNotFilter(request);
+
+        assertFalse(result);
+    }
+
+    @Test
+    public void shouldNotFilter_oneInclusionPatternMatchesPathButNotHeaderValue_expectNoFilter() throws Exception {
+        when(config.isEnabled()).thenReturn(true);
+
+        when(request.getRequestURI()).thenReturn("/hotels");
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getHeader("x-brand")).thenReturn("expedia");
+        List<ShadowTrafficConfig.InclusionPattern> inclusionPatterns = new ArrayList<>();
+        ShadowTrafficConfig.InclusionPattern pattern1 = new ShadowTrafficConfig.InclusionPattern();
+        pattern1.setRequestURI("^/hotels$");
+        pattern1.setMethod("GET");
+        ShadowTrafficConfig.HeaderPattern headerPattern = new ShadowTrafficConfig.HeaderPattern();
+        headerPattern.setHeaderKey("x-brand");
+        headerPattern.setHeaderValue("egencia");
+        pattern1.setHeaderPattern(Collections.singletonList(headerPattern));
+        inclusionPatterns.add(pattern1);
+
+        when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
+        compileConfig();
+
         boolean result = filter.shouldNotFilter(request);
 
         assertTrue(result);
     }
+
+    @Test
+    public void shouldNotFilter_requestIsAlreadyShadowTraffic_expectNoFilter() throws Exception {
+        when(config.isEnabled()).thenReturn(true);
+
+        when(request.getRequestURI()).thenReturn("/hotels");
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getHeader(ShadowTrafficAdapter.IS_SHADOW_TRAFFIC_KEY)).thenReturn("TRUE");
+        List<ShadowTrafficConfig.InclusionPattern> inclusionPatterns = new ArrayList<>();
+        ShadowTrafficConfig.InclusionPattern pattern1 = new ShadowTrafficConfig.InclusionPattern();
+        pattern1.setRequestURI("^/hotels$");
+        pattern1.setMethod("GET");
+        inclusionPatterns.add(pattern1);
+
+        when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
+        compileConfig();
+
+        boolean result = filter.shouldNotFilter(request);
+
+        assertTrue(result);
+    }
+
+    @Test
+    public void shouldNotFilter_pathDoesNotMatch_expectNoHeaderLookup() throws Exception {
+        when(config.isEnabled()).thenReturn(true);
+
+        when(request.getRequestURI()).thenReturn("/cars");
+        when(request.getMethod()).thenReturn("GET");
+        List<ShadowTrafficConfig.InclusionPattern> inclusionPatterns = new ArrayList<>();
+        ShadowTrafficConfig.InclusionPattern pattern1 = new ShadowTrafficConfig.InclusionPattern();
+        pattern1.setRequestURI("^/hotels$");
+        pattern1.setMethod("GET");
+        ShadowTrafficConfig.HeaderPattern headerPattern = new ShadowTrafficConfig.HeaderPattern();
+        headerPattern.setHeaderKey("x-brand");
+        headerPattern.setHeaderValue("egencia");
+        pattern1.setHeaderPattern(Collections.singletonList(headerPattern));
+        inclusionPatterns.add(pattern1);
+
+        when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
+        compileConfig();
+
+        boolean result = filter.shouldNotFilter(request);
+
+        assertTrue(result);
+        verify(request, never()).getHeader(anyString());
+        verify(request, never()).getHeaderNames();
+    }
+
+    @Test
+    public void shouldNotFilter_oneInclusionPatternMatches_expectRoutePolicyStoredOnRequest() throws Exception {
+        when(config.isEnabled()).thenReturn(true);
+        when(config.getPercentage()).thenReturn(25);
+
+        when(request.getRequestURI()).thenReturn("/hotels");
+        when(request.getMethod()).thenReturn("GET");
+        List<ShadowTrafficConfig.InclusionPattern> inclusionPatterns = new ArrayList<>();
+        ShadowTrafficConfig.InclusionPattern pattern1 = new ShadowTrafficConfig.InclusionPattern();
+        pattern1.setRequestURI("^/hotels$");
+        pattern1.setMethod("GET");
+        inclusionPatterns.add(pattern1);
+
+        when(config.getInclusionPatterns()).thenReturn(inclusionPatterns);
+        compileConfig();
+
+        boolean result = filter.shouldNotFilter(request);
+
+        assertFalse(result);
+        ArgumentCaptor<CompiledInclusionPattern> route = ArgumentCaptor.forClass(CompiledInclusionPattern.class);
+        verify(request).setAttribute(eq(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE), route.capture());
+        assertEquals(25, route.getValue().getPolicy().getPercentage());
+    }
+
+    @Test
+    public void doFilterInternal_randomValueGreaterThanPercentage_expectUnwrappedRequestAndNoShadowTraffic() throws Exception {
+        CompiledInclusionPattern route = route(50);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route);
+        when(request.getContentLengthLong()).thenReturn(1024L);
+        when(random.nextInt(eq(100))).thenReturn(50);
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(chain).doFilter(request, response);
+        verify(adapter, never()).invokeShadowTraffic(any(), any());
+        verify(request, never()).getInputStream();
+        assertEquals(1, filter.getShadowTrafficMetrics().getUnsampledRequestCount());
+        assertEquals(1024, filter.getShadowTrafficMetrics().getBytesSaved());
+    }
+
+    @Test
+    public void doFilterInternal_randomValueWithinPercentage_expectShadowTrafficInvoked() throws Exception {
+        CompiledInclusionPattern route = route(50);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route);
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(adapter).invokeShadowTraffic(any(ShadowRequest.class), eq(route.getPolicy()));
+        verify(chain).doFilter(any(BasicHttpServletRequest.class), eq(response));
+        assertEquals(1, filter.getShadowTrafficMetrics().getSampledRequestCount());
+        assertEquals(0, filter.getShadowTrafficMetrics().getBytesSaved());
+    }
+
+    @Test
+    public void doFilterInternal_declaredBodyAboveMaximum_expectUnwrappedRequestAndNoShadowTraffic() throws Exception {
+        when(config.getBodyMaxBytes()).thenReturn(1024);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route(50));
+        when(request.getContentLengthLong()).thenReturn(1025L);
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(chain).doFilter(request, response);
+        verify(adapter, never()).invokeShadowTraffic(any(), any());
+        verify(request, never()).getInputStream();
+        assertEquals(1, filter.getShadowTrafficMetrics().getOversizedRequestCount());
+    }
+
+    @Test
+    public void doFilterInternal_inFlightBudgetUsedUp_expectUnwrappedRequestAndNoShadowTraffic() throws Exception {
+        when(config.getBodyMaxBytes()).thenReturn(4096);
+        when(config.getBodyMaxInMemoryBytes()).thenReturn(4096);
+        when(config.getBodyMaxInFlightBytes()).thenReturn(1024L);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route(50));
+        when(request.getContentLengthLong()).thenReturn(100L);
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+        budget.tryAcquire(1000, 1024);
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(chain).doFilter(request, response);
+        verify(adapter, never()).invokeShadowTraffic(any(), any());
+        verify(request, never()).getInputStream();
+        assertEquals(1, filter.getShadowTrafficMetrics().getBudgetRejectedRequestCount());
+        assertEquals(1000, filter.getShadowTrafficMetrics().getInFlightBytes());
+    }
+
+    @Test
+    public void doFilterInternal_filtersWithoutBudget_expectSingleBudgetShared() throws Exception {
+        when(config.getBodyMaxBytes()).thenReturn(4096);
+        when(config.getBodyMaxInMemoryBytes()).thenReturn(4096);
+        when(config.getBodyMaxInFlightBytes()).thenReturn(InFlightBudget.DEFAULT.getUsedBytes() + 1024);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route(50));
+        when(request.getContentLengthLong()).thenReturn(600L);
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(
+                new ByteArrayInputStream(new byte[600])));
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+        ShadowTrafficFilter first = new ShadowTrafficFilter(shadowTrafficConfigHelper, adapter);
+        ShadowTrafficFilter second = new ShadowTrafficFilter(shadowTrafficConfigHelper, adapter);
+        first.setRandom(random);
+        second.setRandom(random);
+
+        first.doFilterInternal(request, response, chain);
+        second.doFilterInternal(request, response, chain);
+
+        ArgumentCaptor<ShadowRequest> shadowRequest = ArgumentCaptor.forClass(ShadowRequest.class);
+        verify(adapter).invokeShadowTraffic(shadowRequest.capture(), any());
+        assertEquals(1, second.getShadowTrafficMetrics().getBudgetRejectedRequestCount());
+        shadowRequest.getValue().release();
+    }
+
+    @Test
+    public void doFilterInternal_bodyOfUnknownLength_expectBytesHeldUntilAdapterReleased() throws Exception {
+        when(config.getBodyMaxBytes()).thenReturn(4096);
+        when(config.getBodyMaxInMemoryBytes()).thenReturn(4096);
+        when(config.getBodyMaxInFlightBytes()).thenReturn(1024L);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route(50));
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(
+                new ByteArrayInputStream(new byte[600])));
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+
+        ArgumentCaptor<ShadowRequest> shadowRequest = ArgumentCaptor.forClass(ShadowRequest.class);
+        verify(adapter).invokeShadowTraffic(shadowRequest.capture(), any());
+        assertEquals(600, filter.getShadowTrafficMetrics().getInFlightBytes());
+        shadowRequest.getValue().release();
+        assertEquals(0, filter.getShadowTrafficMetrics().getInFlightBytes());
+    }
+
+    @Test
+    public void doFilterInternal_teeBodyCapture_expectShadowTrafficInvokedAfterChain() throws Exception {
+        when(config.getBodyCaptureMode()).thenReturn(ShadowTrafficConfig.BodyCaptureMode.TEE);
+        CompiledInclusionPattern route = route(50);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route);
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+
+        InOrder inOrder = inOrder(chain, adapter);
+        inOrder.verify(chain).doFilter(any(TeeHttpServletRequest.class), eq(response));
+        inOrder.verify(adapter).invokeShadowTraffic(any(ShadowRequest.class), eq(route.getPolicy()));
+    }
+
+    @Test
+    public void doFilterInternal_streamedBodyRejectedByDispatcher_expectBodyAbortedBeforeTheApplicationReadsIt() throws Exception {
+        ShadowTrafficMetrics metrics = new ShadowTrafficMetrics(budget);
+        ShadowTrafficDispatcher dispatcher = new ShadowTrafficDispatcher(adapter, metrics, 1, 1);
+        dispatcher.dispose();
+        filter = new ShadowTrafficFilter(shadowTrafficConfigHelper, dispatcher, metrics, budget);
+        filter.setRandom(random);
+        when(config.getBodyCaptureMode()).thenReturn(ShadowTrafficConfig.BodyCaptureMode.STREAM);
+        when(config.getBodyMaxBytes()).thenReturn(4096);
+        when(config.getBodyStreamWindowBytes()).thenReturn(1024);
+        when(config.getBodyStreamConnectBytes()).thenReturn(1024);
+        when(config.getHosts()).thenReturn(Collections.singletonList("http://localhost"));
+        when(config.getPercentage()).thenReturn(50);
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(
+                new ByteArrayInputStream(new byte[600])));
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+        List<Boolean> abortedBeforeRead = new ArrayList<>();
+        doAnswer(invocation -> {
+            StreamingHttpServletRequest streamingRequest = invocation.getArgument(0);
+            abortedBeforeRead.add(((StreamingHttpServletRequest.StreamingShadowBody) streamingRequest.getBody()).isDone());
+            return null;
+        }).when(chain).doFilter(any(StreamingHttpServletRequest.class), eq(response));
+
+        filter.doFilterInternal(request, response, chain);
+
+        assertEquals(1, metrics.getDispatchRejectedRequestCount());
+        assertEquals(Collections.singletonList(true), abortedBeforeRead);
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void doFilterInternal_streamedBodyAboveBudget_expectChargedConnectAllowanceAndWindowPerHost() throws Exception {
+        when(config.getBodyCaptureMode()).thenReturn(ShadowTrafficConfig.BodyCaptureMode.STREAM);
+        when(config.getBodyMaxBytes()).thenReturn(4096);
+        when(config.getBodyStreamWindowBytes()).thenReturn(1024);
+        when(config.getBodyStreamConnectBytes()).thenReturn(1024);
+        when(config.getBodyMaxInFlightBytes()).thenReturn(4095L);
+        when(config.getHosts()).thenReturn(Arrays.asList("http://localhost", "http://127.0.0.1"));
+        when(config.getPercentage()).thenReturn(50);
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(chain).doFilter(request, response);
+        assertEquals(1, filter.getShadowTrafficMetrics().getBudgetRejectedRequestCount());
+    }
+
+    @Test
+    public void doFilterInternal_multipartWithEagerCapture_expectPartsCopiedAndShadowTrafficInvokedAfterChain() throws Exception {
+        when(config.getBodyMaxBytes()).thenReturn(4096);
+        when(config.getBodyMaxInMemoryBytes()).thenReturn(4096);
+        CompiledInclusionPattern route = route(50);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route);
+        when(request.getContentType()).thenReturn("multipart/form-data; boundary=XyZ");
+        when(request.getHeader("content-type")).thenReturn("multipart/form-data; boundary=XyZ");
+        when(request.getParts()).thenReturn(Collections.emptyList());
+        when(random.nextInt(eq(100))).thenReturn(49);
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+
+        InOrder inOrder = inOrder(chain, request, adapter);
+        inOrder.verify(chain).doFilter(any(MultiPartHttpServletRequest.class), eq(response));
+        inOrder.verify(request).getParts();
+        inOrder.verify(adapter).invokeShadowTraffic(any(ShadowRequest.class), eq(route.getPolicy()));
+    }
+
+    @Test
+    public void doFilterInternal_stickySamplingKeyPresent_expectBucketDecidesWithoutRandom() throws Exception {
+        when(config.getSamplingKeySource()).thenReturn(ShadowTrafficConfig.SamplingKeySource.HEADER);
+        when(config.getSamplingKeyName()).thenReturn("x-session-id");
+        when(request.getHeader("x-session-id")).thenReturn("session-42");
+        int bucket = StickySampler.bucket("session-42");
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route(bucket));
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+
+        // the bucket of the key is not below its own value
+        verify(chain).doFilter(request, response);
+        verify(random, never()).nextInt(anyInt());
+        assertEquals(1, filter.getShadowTrafficMetrics().getUnsampledRequestCount());
+    }
+
+    @Test
+    public void doFilterInternal_coverageSamplingEnabled_expectRouteMinimumShadowedThenZeroPercentageRouteSkipped() throws Exception {
+        when(config.isCoverageEnabled()).thenReturn(true);
+        when(config.getCoverageWindowMs()).thenReturn(60000);
+        when(config.getCoverageMaxRequestsPerWindow()).thenReturn(1);
+        when(config.getCoverageMinRequestsPerRoute()).thenReturn(1);
+        ShadowTrafficConfig.InclusionPattern pattern1 = new ShadowTrafficConfig.InclusionPattern();
+        pattern1.setRequestURI("^/hotels$");
+        pattern1.setMethod("GET");
+        when(config.getInclusionPatterns()).thenReturn(Collections.singletonList(pattern1));
+        CompiledInclusionPattern route = route(1);
+        when(request.getAttribute(ShadowTrafficFilter.SHADOW_TRAFFIC_ROUTE_ATTRIBUTE)).thenReturn(route, route, route(0));
+        compileConfig();
+
+        filter.doFilterInternal(request, response, chain);
+        filter.doFilterInternal(request, response, chain);
+        filter.doFilterInternal(request, response, chain);
+
+        verify(adapter).invokeShadowTraffic(any(ShadowRequest.class), eq(route.getPolicy()));
+        verify(random, never()).nextInt(anyInt());
+        assertEquals(1, filter.getShadowTrafficMetrics().getSampledRequestCount());
+        assertEquals(2, filter.getShadowTrafficMetrics().getUnsampledRequestCount());
+    }
+
+    private CompiledInclusionPattern route(int percentage) {
+        ShadowTrafficConfig.InclusionPattern inclusionPattern = new ShadowTrafficConfig.InclusionPattern();
+        inclusionPattern.setRequestURI("^/hotels$");
+        inclusionPattern.setMethod("GET");
+        return new CompiledInclusionPattern(inclusionPattern, new ShadowTrafficPolicy(percentage, null), 0);
+    }
 }
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import com.expediagroup.library.drshadow.springboot.ShadowTrafficConfig.SamplingKeySource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StickySamplerTest {
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Test
+    public void testSameKeyAlwaysLandsInSameBucket() {
+        assertEquals(StickySampler.bucket("user-1234"), StickySampler.bucket(new String("user-1234")));
+    }
+
+    @Test
+    public void testBucketsAreEvenlySpread() {
+        int[] counts = new int[StickySampler.BUCKETS];
+        for (int i = 0; i < 100000; i++) {
+            counts[StickySampler.bucket("session-" + i)]++;
+        }
+        for (int count : counts) {
+            // 1000 expected per bucket
+            assertTrue(String.valueOf(count), count > 850 && count < 1150);
+        }
+    }
+
+    @Test
+    public void testKeyFromHeader() {
+        when(request.getHeader("x-user-id")).thenReturn("user-1234");
+
+        assertEquals(StickySampler.bucket("user-1234"), new StickySampler(SamplingKeySource.HEADER, "x-user-id").bucket(request));
+    }
+
+    @Test
+    public void testKeyFromCookie() {
+        when(request.getCookies()).thenReturn(new Cookie[]{new Cookie("other", "x"), new Cookie("SESSION", "abc")});
+
+        assertEquals(StickySampler.bucket("abc"), new StickySampler(SamplingKeySource.COOKIE, "SESSION").bucket(request));
+    }
+
+    @Test
+    public void testKeyFromQueryParamIsReadWithoutParsingTheBody() {
+        when(request.getQueryString()).thenReturn("userIdx=1&userId=a%20b&c=d");
+
+        assertEquals(StickySampler.bucket("a b"), new StickySampler(SamplingKeySource.QUERY_PARAM, "userId").bucket(request));
+        verify(request, never()).getParameter("userId");
+    }
+
+    @Test
+    public void testQueryParamParsing() {
+        StickySampler stickySampler = new StickySampler(SamplingKeySource.QUERY_PARAM, "id");
+
+        assertEquals("1", stickySampler.queryParam("id=1"));
+        assertEquals("2", stickySampler.queryParam("a=b&id=2"));
+        assertEquals("", stickySampler.queryParam("id="));
+        assertEquals("%zz", stickySampler.queryParam("id=%zz"));
+        assertNull(stickySampler.queryParam("idx=1&&ids"));
+        assertNull(stickySampler.queryParam(null));
+    }
+
+    @Test
+    public void testMissingKeyHasNoBucket() {
+        assertEquals(StickySampler.NO_BUCKET, new StickySampler(SamplingKeySource.HEADER, "x-user-id").bucket(request));
+        assertEquals(StickySampler.NO_BUCKET, new StickySampler(SamplingKeySource.COOKIE, "SESSION").bucket(request));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyNameIsRequired() {
+        new StickySampler(SamplingKeySource.HEADER, " ");
+    }
+}
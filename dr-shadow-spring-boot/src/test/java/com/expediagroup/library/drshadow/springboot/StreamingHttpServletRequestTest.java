@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StreamingHttpServletRequestTest {
+
+    @Rule
+    public NettyLeakRule nettyLeakRule = new NettyLeakRule();
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Test
+    public void testBodyReadByApplication_expectStreamedToEveryHost() throws IOException {
+        byte[] body = body(3000);
+        StreamingHttpServletRequest streamingRequest = streamingRequest(body, 2, 4096, 1024 * 1024);
+
+        assertArrayEquals(body, readAll(streamingRequest.getInputStream()));
+        streamingRequest.endOfBody();
+
+        ShadowBody shadowBody = streamingRequest.getBody();
+        assertTrue(shadowBody.isStreamed());
+        assertEquals(body.length, shadowBody.length());
+        assertArrayEquals(body, join(shadowBody.content().collectList().block()));
+        assertArrayEquals(body, join(shadowBody.content().collectList().block()));
+        assertEquals(0, streamingRequest.getAbortedStreams());
+    }
+
+    @Test
+    public void testHostFallingBehind_expectOnlyItsStreamAbortedAndApplicationUnaffected() throws IOException {
+        byte[] body = body(64 * 1024);
+        StreamingHttpServletRequest streamingRequest = streamingRequest(body, 2, 8 * 1024, 1024 * 1024);
+        ShadowBody shadowBody = streamingRequest.getBody();
+        AtomicReference<Throwable> slowHostError = new AtomicReference<>();
+        shadowBody.content().subscribe(new BaseSubscriber<DataBuffer>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                // never requests anything
+            }
+
+            @Override
+            protected void hookOnError(Throwable throwable) {
+                slowHostError.set(throwable);
+            }
+        });
+        ByteArrayOutputStream fastHost = new ByteArrayOutputStream();
+        shadowBody.content().subscribe(buffer -> {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            fastHost.write(bytes, 0, bytes.length);
+        });
+
+        assertArrayEquals(body, readAll(streamingRequest.getInputStream()));
+        streamingRequest.endOfBody();
+
+        assertTrue(slowHostError.get() instanceof IOException);
+        assertArrayEquals(body, fastHost.toByteArray());
+        assertEquals(1, streamingRequest.getAbortedStreams());
+    }
+
+    @Test
+    public void testHostSubscribingAfterMoreThanTheWindow_expectStreamNotAborted() throws IOException {
+        byte[] body = body(64 * 1024);
+        StreamingHttpServletRequest streamingRequest = streamingRequest(body, 1, 8 * 1024, 1024 * 1024);
+
+        // the host is still connecting while the application reads the whole body
+        assertArrayEquals(body, readAll(streamingRequest.getInputStream()));
+        streamingRequest.endOfBody();
+
+        assertArrayEquals(body, join(streamingRequest.getBody().content().collectList().block()));
+        assertEquals(0, streamingRequest.getAbortedStreams());
+    }
+
+    @Test
+    public void testHostNotConnectedWithinTheConnectAllowance_expectOnlyItsStreamAborted() throws IOException {
+        byte[] body = body(64 * 1024);
+        StreamingHttpServletRequest streamingRequest = streamingRequest(body, 2, 8 * 1024, 16 * 1024, 1024 * 1024);
+        ShadowBody shadowBody = streamingRequest.getBody();
+        Flux<DataBuffer> connectingHost = shadowBody.content();
+        ByteArrayOutputStream connectedHost = new ByteArrayOutputStream();
+        shadowBody.content().subscribe(buffer -> {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            connectedHost.write(bytes, 0, bytes.length);
+        });
+
+        assertArrayEquals(body, readAll(streamingRequest.getInputStream()));
+        streamingRequest.endOfBody();
+
+        assertTrue(connectingHost.materialize().blockLast().getThrowable() instanceof IOException);
+        assertArrayEquals(body, connectedHost.toByteArray());
+        assertEquals(1, streamingRequest.getAbortedStreams());
+    }
+
+    @Test
+    public void testStreamDiscarded_expectNoChunkQueuedForItAndOtherHostsUnaffected() throws IOException {
+        byte[] body = body(64 * 1024);
+        StreamingHttpServletRequest streamingRequest = streamingRequest(body, 2, 8 * 1024, 1024 * 1024);
+        ShadowBody shadowBody = streamingRequest.getBody();
+        Flux<DataBuffer> refusedHost = shadowBody.content();
+        Flux<DataBuffer> otherHost = shadowBody.content();
+
+        shadowBody.discard(refusedHost);
+        assertArrayEquals(body, readAll(streamingRequest.getInputStream()));
+        streamingRequest.endOfBody();
+
+        assertTrue(refusedHost.materialize().blockLast().getThrowable() instanceof CancellationException);
+        assertArrayEquals(body, join(otherHost.collectList().block()));
+        assertEquals(0, streamingRequest.getAbortedStreams());
+    }
+
+    @Test
+    public void testBodyAborted_expectNothingQueuedWhileTheApplicationReads() throws IOException {
+        byte[] body = body(64 * 1024);
+        StreamingHttpServletRequest streamingRequest = streamingRequest(body, 2, 8 * 1024, 1024 * 1024);
+        StreamingHttpServletRequest.StreamingShadowBody shadowBody = (StreamingHttpServletRequest.StreamingShadowBody) streamingRequest.getBody();
+
+        shadowBody.abort();
+
+        assertTrue(shadowBody.isDone());
+        assertArrayEquals(body, readAll(streamingRequest.getInputStream()));
+        assertTrue(shadowBody.content().materialize().blockLast().isOnError());
+        assertTrue(shadowBody.whenComplete().materialize().block().isOnError());
+    }
+
+    @Test
+    public void testBodyPartiallyRead_expectRemainderStreamedAtEndOfBody() throws IOException {
+        byte[] body = body(1000);
+        StreamingHttpServletRequest streamingRequest = streamingRequest(body, 1, 4096, 1024 * 1024);
+
+        streamingRequest.getInputStream().read(new byte[10]);
+        streamingRequest.endOfBody();
+
+        assertArrayEquals(body, join(streamingRequest.getBody().content().collectList().block()));
+    }
+
+    @Test
+    public void testBodyAboveMaximum_expectStreamsAbortedAndOversized() throws IOException {
+        byte[] body = body(1000);
+        StreamingHttpServletRequest streamingRequest = streamingRequest(body, 1, 4096, 100);
+
+        assertArrayEquals(body, readAll(streamingRequest.getInputStream()));
+        streamingRequest.endOfBody();
+
+        assertTrue(streamingRequest.isOversized());
+        assertEquals(0, streamingRequest.getAbortedStreams());
+        assertTrue(streamingRequest.getBody().content().materialize().blockLast().isOnError());
+        assertTrue(streamingRequest.getBody().whenComplete().materialize().block().isOnError());
+    }
+
+    private StreamingHttpServletRequest streamingRequest(byte[] body, int streams, int windowBytes, int maxBytes) throws IOException {
+        return streamingRequest(body, streams, windowBytes, 1024 * 1024, maxBytes);
+    }
+
+    private StreamingHttpServletRequest streamingRequest(byte[] body, int streams, int windowBytes, int connectBytes, int maxBytes)
+            throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(body)));
+        when(request.getContentLengthLong()).thenReturn((long) body.length);
+        return new StreamingHttpServletRequest(request, streams, windowBytes, connectBytes, maxBytes);
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        new Random(7).nextBytes(body);
+        return body;
+    }
+
+    private static byte[] readAll(ServletInputStream in) throws IOException {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int length;
+        while ((length = in.read(chunk, 0, chunk.length)) != -1) {
+            read.write(chunk, 0, length);
+        }
+        return read.toByteArray();
+    }
+
+    private static byte[] join(List<DataBuffer> buffers) {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (DataBuffer buffer : buffers) {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            joined.write(bytes, 0, bytes.length);
+        }
+        return joined.toByteArray();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2019 Expedia, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.expediagroup.library.drshadow.springboot;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TeeHttpServletRequestTest {
+
+    private static final byte[] BODY = "{\"hotelId\":\"hôtel\",\"rooms\":2}".getBytes(StandardCharsets.UTF_8);
+
+    @Mock
+    private HttpServletRequest request;
+
+    @Test
+    public void testBodyReadByApplication_expectSameBytesCaptured() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        when(request.getContentLengthLong()).thenReturn((long) BODY.length);
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request);
+
+        byte[] read = new byte[BODY.length];
+        ServletInputStream in = teeRequest.getInputStream();
+        int first = in.read();
+        int count = in.read(read, 1, read.length - 1);
+        read[0] = (byte) first;
+
+        assertEquals(BODY.length - 1, count);
+        assertArrayEquals(BODY, read);
+        assertNull(teeRequest.getBody());
+        assertTrue(teeRequest.finishCapture());
+        assertArrayEquals(BODY, CaptureBufferTest.bytes(teeRequest.getBody()));
+    }
+
+    @Test
+    public void testBodyPartiallyRead_expectRemainderDrainedOnFinish() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request);
+
+        teeRequest.getInputStream().read(new byte[5]);
+
+        assertTrue(teeRequest.finishCapture());
+        assertArrayEquals(BODY, CaptureBufferTest.bytes(teeRequest.getBody()));
+    }
+
+    @Test
+    public void testBodyNeverRead_expectBodyReadOnFinish() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request);
+
+        assertTrue(teeRequest.finishCapture());
+        assertArrayEquals(BODY, CaptureBufferTest.bytes(teeRequest.getBody()));
+    }
+
+    @Test
+    public void testBodyReadThroughReader_expectDecodedWithRequestEncodingAndBytesCaptured() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        when(request.getCharacterEncoding()).thenReturn("UTF-8");
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request);
+
+        assertEquals("{\"hotelId\":\"hôtel\",\"rooms\":2}", teeRequest.getReader().readLine());
+        assertTrue(teeRequest.finishCapture());
+        assertArrayEquals(BODY, CaptureBufferTest.bytes(teeRequest.getBody()));
+    }
+
+    @Test
+    public void testBodyAboveMaximum_expectNotCapturedAndOversized() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        when(request.getContentLengthLong()).thenReturn(-1L);
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request, 8, 16);
+
+        assertFalse(teeRequest.finishCapture());
+        assertTrue(teeRequest.isOversized());
+        assertNull(teeRequest.getBody());
+    }
+
+    @Test
+    public void testDeclaredLengthAboveMaximum_expectUnreadBodyNotDrained() throws IOException {
+        ByteArrayInputStream original = new ByteArrayInputStream(BODY);
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(original));
+        when(request.getContentLengthLong()).thenReturn((long) BODY.length);
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request, 8, 16);
+
+        assertFalse(teeRequest.finishCapture());
+        assertTrue(teeRequest.isOversized());
+        assertEquals(BODY.length, original.available());
+    }
+
+    @Test
+    public void testDeclaredLengthAboveMaximum_expectApplicationStillReadsTheBody() throws IOException {
+        when(request.getInputStream()).thenReturn(new BasicHttpServletRequest.DrShadowTrafficServletInputStream(new ByteArrayInputStream(BODY)));
+        when(request.getContentLengthLong()).thenReturn((long) BODY.length);
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request, 8, 16);
+
+        byte[] read = new byte[BODY.length];
+        assertEquals(BODY.length, teeRequest.getInputStream().read(read));
+        assertArrayEquals(BODY, read);
+        assertFalse(teeRequest.finishCapture());
+        assertNull(teeRequest.getBody());
+    }
+
+    @Test
+    public void testNonBlockingReadNotFinished_expectCaptureIncomplete() throws IOException {
+        ServletInputStream original = mock(ServletInputStream.class);
+        when(original.isFinished()).thenReturn(false);
+        when(request.getInputStream()).thenReturn(original);
+        TeeHttpServletRequest teeRequest = new TeeHttpServletRequest(request);
+
+        teeRequest.getInputStream().setReadListener(mock(ReadListener.class));
+
+        assertFalse(teeRequest.finishCapture());
+        assertNull(teeRequest.getBody());
+    }
+}